@@ -0,0 +1,178 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.bmartel.protocol.websocket.client.IWebsocketClientChannel;
+import fr.bmartel.protocol.websocket.client.IWebsocketClientEventListener;
+import fr.bmartel.protocol.websocket.client.WebsocketClient;
+
+/**
+ * In-process loopback echo : a websocket client sends binary messages to a
+ * websocket server echoing them back. Round trip benchmark measures latency
+ * (one message in flight), pipelined benchmark measures throughput (a window
+ * of messages in flight). Each benchmark thread owns a client connected to a
+ * server shared by all threads.
+ *
+ * @author Bertrand Martel
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoBenchmark {
+
+	/** number of messages in flight in pipelined benchmark */
+	private final static int PIPELINE_SIZE = 64;
+
+	/** maximum time to wait for client connection (ms) */
+	private final static long CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * Echo server shared by benchmark threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		/** server engine : blocking (thread per client) or nio */
+		@Param({ "blocking", "nio" })
+		public String engine;
+
+		/** echo server */
+		EchoServer server;
+
+		@Setup
+		public void setup() throws IOException {
+			server = new EchoServer(0, "nio".equals(engine));
+			server.start();
+		}
+
+		@TearDown
+		public void tearDown() throws InterruptedException {
+			server.close();
+		}
+	}
+
+	/**
+	 * Client owned by a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+
+		/** message payload size */
+		@Param({ "64", "1024", "16384" })
+		public int payloadSize;
+
+		/** message sent to server */
+		private byte[] payload;
+
+		/** websocket client */
+		private WebsocketClient client;
+
+		/** released each time an echo is received */
+		private final Semaphore echoes = new Semaphore(0);
+
+		@Setup
+		public void setup(Server server) throws InterruptedException {
+			payload = new byte[payloadSize];
+			new Random(payloadSize).nextBytes(payload);
+
+			final CountDownLatch connected = new CountDownLatch(1);
+
+			client = new WebsocketClient("127.0.0.1", server.server.getPort());
+			client.addClientSocketEventListener(new IWebsocketClientEventListener() {
+
+				@Override
+				public void onSocketConnected() {
+					connected.countDown();
+				}
+
+				@Override
+				public void onSocketClosed() {
+				}
+
+				@Override
+				public void onIncomingMessageReceived(byte[] data,
+						IWebsocketClientChannel channel) {
+					echoes.release();
+				}
+
+				@Override
+				public void onIncomingBinaryMessageReceived(ByteBuffer data,
+						IWebsocketClientChannel channel) {
+					echoes.release();
+				}
+			});
+			client.connect();
+
+			if (!connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException(
+						"cannot connect to echo server on port "
+								+ server.server.getPort());
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			client.closeSocket();
+		}
+	}
+
+	@Benchmark
+	public void roundTrip(Client client) throws InterruptedException {
+		client.client.writeMessage(client.payload, 0, client.payloadSize);
+		client.echoes.acquire();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIPELINE_SIZE)
+	public void pipelined(Client client) throws InterruptedException {
+		for (int i = 0; i < PIPELINE_SIZE; i++) {
+			client.client.writeMessage(client.payload, 0, client.payloadSize);
+		}
+		client.echoes.acquire(PIPELINE_SIZE);
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.server.IWebsocketClient;
+import fr.bmartel.protocol.websocket.server.WebsocketServer;
+
+/**
+ * Websocket server sending back every message it receives, running in its
+ * own thread
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class EchoServer {
+
+	/** maximum time to wait for server to accept connections (ms) */
+	private final static long START_TIMEOUT = 10000;
+
+	/** server port */
+	private final int port;
+
+	/** echo server */
+	private final WebsocketServer server;
+
+	/** thread running server */
+	private Thread serverThread;
+
+	/**
+	 * Build echo server
+	 *
+	 * @param port
+	 *            server port (0 to pick a free port)
+	 * @param nio
+	 *            define if server uses nio engine instead of a thread per
+	 *            client
+	 * @throws IOException
+	 */
+	public EchoServer(int port, boolean nio) throws IOException {
+		if (port == 0) {
+			ServerSocket socket = new ServerSocket(0);
+			port = socket.getLocalPort();
+			socket.close();
+		}
+		this.port = port;
+
+		server = new WebsocketServer(port);
+		server.setNio(nio);
+		server.addServerEventListener(new IClientEventListener() {
+
+			@Override
+			public void onClientClose(IWebsocketClient client) {
+			}
+
+			@Override
+			public void onClientConnection(IWebsocketClient client) {
+			}
+
+			@Override
+			public void onMessageReceivedFromClient(IWebsocketClient client,
+					String message) {
+				client.sendMessage(message);
+			}
+
+			@Override
+			public void onBinaryMessageReceivedFromClient(
+					IWebsocketClient client, ByteBuffer message) {
+				client.sendBinary(message);
+			}
+		});
+	}
+
+	/**
+	 * Start server and wait until it accepts connections
+	 *
+	 * @throws IOException
+	 *             server did not accept connections in time
+	 */
+	public void start() throws IOException {
+		serverThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				server.start();
+			}
+		}, "echo-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+		}
+	}
+
+	/**
+	 * Close server and wait for server thread to end
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		server.closeServer();
+		serverThread.join(START_TIMEOUT);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public WebsocketServer getServer() {
+		return server;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+
+/**
+ * Encoding and decoding of a single binary frame : frame building, blocking
+ * stream decoder and buffer decoder (used by NIO engine) with and without
+ * buffer pool
+ *
+ * @author Bertrand Martel
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	/** frame payload size (7 bits, 16 bits and 64 bits length fields) */
+	@Param({ "16", "1024", "65536" })
+	public int payloadSize;
+
+	/** define if frame is masked (client to server frame) */
+	@Param({ "true", "false" })
+	public boolean masked;
+
+	/** message encoded by buildMessage benchmark */
+	private WebSocketMessage message;
+
+	/** encoded frame decoded by other benchmarks */
+	private byte[] frame;
+
+	/** stream over encoded frame (rewound before each decoding) */
+	private ByteArrayInputStream frameStream;
+
+	/** buffer over encoded frame (rewound before each decoding) */
+	private ByteBuffer frameBuffer;
+
+	/** decoder without buffer pool */
+	private WebSocketChannel channel;
+
+	/** decoder using a buffer pool */
+	private WebSocketChannel pooledChannel;
+
+	@Setup
+	public void setup() {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+
+		message = new WebSocketMessage(1, 0,
+				WebSocketOpcode.BINARY_FRAME.frameTypeValue, masked ? 1 : 0,
+				new byte[] { 0x12, 0x34, 0x56, 0x78 }, payload);
+
+		frame = message.buildMessage();
+		frameStream = new ByteArrayInputStream(frame);
+		frameBuffer = ByteBuffer.wrap(frame);
+
+		channel = new WebSocketChannel();
+
+		pooledChannel = new WebSocketChannel();
+		pooledChannel.setBufferPool(new BufferPool());
+	}
+
+	@Benchmark
+	public byte[] buildMessage() {
+		return message.buildMessage();
+	}
+
+	@Benchmark
+	public byte[] decapsulateMessage() throws IOException {
+		frameStream.reset();
+		return channel.decapsulateMessage(frameStream);
+	}
+
+	@Benchmark
+	public int readMessage() throws IOException {
+		frameBuffer.clear();
+		WebSocketMessage decoded = channel.readMessage(frameBuffer);
+		return decoded.payloadData[payloadSize - 1];
+	}
+
+	@Benchmark
+	public int readMessagePooled() throws IOException {
+		frameBuffer.clear();
+		WebSocketMessage decoded = pooledChannel.readMessage(frameBuffer);
+		int last = decoded.payloadData[payloadSize - 1];
+		decoded.release();
+		return last;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.bmartel.protocol.http.HttpFrame;
+import fr.bmartel.protocol.websocket.UpgradeRequest;
+import fr.bmartel.protocol.websocket.WebSocketHandshake;
+
+/**
+ * Server side of websocket opening handshake : accept key, response built
+ * from an already parsed upgrade request, upgrade request parsing, and whole
+ * upgrade (request parsing and response) measured in time per handshake and in
+ * handshakes per second. Upgrade with http-endec HttpFrame parser is kept for
+ * comparison
+ *
+ * @author Bertrand Martel
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	/** Sec-WebSocket-Key of upgrade request */
+	private final static String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+	/** upgrade request sent by a browser */
+	private final static String UPGRADE_REQUEST = "GET /chat HTTP/1.1\r\n"
+			+ "Host: 127.0.0.1:8443\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+			+ "Accept: */*\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Sec-WebSocket-Version: 13\r\n"
+			+ "Origin: http://127.0.0.1:8443\r\n"
+			+ "Sec-WebSocket-Key: " + KEY + "\r\n"
+			+ "Connection: keep-alive, Upgrade\r\n"
+			+ "Pragma: no-cache\r\n" + "Cache-Control: no-cache\r\n"
+			+ "Upgrade: websocket\r\n" + "\r\n";
+
+	/** upgrade request as read from socket */
+	private byte[] request;
+
+	/** parsed upgrade request */
+	private HttpFrame frame;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		request = UPGRADE_REQUEST.getBytes("UTF-8");
+
+		frame = new HttpFrame();
+		frame.parseHttp(new ByteArrayInputStream(request));
+	}
+
+	@Benchmark
+	public String acceptKey() throws IOException {
+		return WebSocketHandshake.retrieveWebsocketAccept(KEY);
+	}
+
+	@Benchmark
+	public String writeWebSocketHandShake() throws IOException {
+		return WebSocketHandshake.writeWebSocketHandShake(frame);
+	}
+
+	@Benchmark
+	public byte[] buildHandshakeResponse() {
+		return WebSocketHandshake.buildHandshakeResponse(frame, null);
+	}
+
+	@Benchmark
+	public int parseUpgradeRequest() {
+		return new UpgradeRequest().append(ByteBuffer.wrap(request));
+	}
+
+	@Benchmark
+	public byte[] upgrade() {
+		UpgradeRequest upgradeRequest = new UpgradeRequest();
+		upgradeRequest.append(ByteBuffer.wrap(request));
+		return WebSocketHandshake.buildHandshakeResponse(
+				upgradeRequest.getKey(), null);
+	}
+
+	@Benchmark
+	public byte[] upgradeHttpFrame() throws IOException, InterruptedException {
+		HttpFrame upgradeFrame = new HttpFrame();
+		upgradeFrame.parseHttp(WebSocketHandshake
+				.readHttpHeaders(new ByteArrayInputStream(request), null));
+		return WebSocketHandshake.buildHandshakeResponse(upgradeFrame, null);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public byte[] handshakesPerSecond() {
+		return upgrade();
+	}
+}
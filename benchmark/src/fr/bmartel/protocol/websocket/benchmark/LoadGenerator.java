@@ -0,0 +1,656 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import fr.bmartel.protocol.websocket.client.IWebsocketClientChannel;
+import fr.bmartel.protocol.websocket.client.IWebsocketClientEventListener;
+import fr.bmartel.protocol.websocket.client.WebsocketClient;
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+
+/**
+ * Headless load generator : opens connections to a websocket echo server,
+ * sends binary messages at a fixed rate (open loop) or as soon as previous
+ * messages have been echoed (closed loop), and reports throughput and round
+ * trip latency percentiles.
+ *
+ * Each message carries its intended and actual send times. In open loop,
+ * latency is measured from intended send time : when server (or client)
+ * stalls, messages that should have been sent meanwhile are late and their
+ * delay is recorded instead of being omitted (coordinated omission
+ * correction). Latency from actual send time is reported as well for
+ * comparison.
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class LoadGenerator {
+
+	/** bytes used by send times at beginning of each message */
+	private final static int TIMESTAMPS_SIZE = 16;
+
+	/** maximum time to wait for connections to be established (ms) */
+	private final static long CONNECT_TIMEOUT = 30000;
+
+	/** maximum time to wait for messages in flight once sending stopped (ms) */
+	private final static long DRAIN_TIMEOUT = 5000;
+
+	/** number of significant digits of latency histograms */
+	private final static int HISTOGRAM_PRECISION = 3;
+
+	/** percentiles reported */
+	private final static double[] PERCENTILES = new double[] { 50, 90, 99,
+			99.9, 99.99 };
+
+	/** server hostname */
+	private String host = "127.0.0.1";
+
+	/** server port (0 to pick a free port for embedded server) */
+	private int port = 0;
+
+	/** embedded echo server engine : blocking, nio or none (external server) */
+	private String server = "nio";
+
+	/** number of connections */
+	private int connectionCount = 10;
+
+	/** message size in bytes */
+	private int messageSize = 64;
+
+	/** open (fixed rate) or closed (send on echo) loop */
+	private boolean openLoop = true;
+
+	/** total number of messages sent per second in open loop */
+	private int rate = 10000;
+
+	/** number of messages in flight per connection in closed loop */
+	private int window = 1;
+
+	/** number of threads sending messages in open loop */
+	private int senderCount = Runtime.getRuntime().availableProcessors();
+
+	/** warmup duration in seconds (not measured) */
+	private int warmup = 5;
+
+	/** measurement duration in seconds */
+	private int duration = 30;
+
+	/** define if client sockets are read with virtual threads */
+	private boolean virtualThreads = false;
+
+	/** file receiving latency distribution (null if none) */
+	private String histogramFile = null;
+
+	/** define if messages are being sent */
+	private volatile boolean running = false;
+
+	/** latency from intended send time (ns) */
+	private final Recorder latencyRecorder = new Recorder(HISTOGRAM_PRECISION);
+
+	/** latency from actual send time (ns) */
+	private final Recorder serviceTimeRecorder = new Recorder(
+			HISTOGRAM_PRECISION);
+
+	/** number of messages sent */
+	private final AtomicLong sentCount = new AtomicLong();
+
+	/** number of echoes received */
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	/** number of messages that could not be sent */
+	private final AtomicLong sendErrorCount = new AtomicLong();
+
+	/** number of connections closed while running */
+	private final AtomicLong closedCount = new AtomicLong();
+
+	/** connections to server */
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	public static void main(String[] args) throws Exception {
+
+		LoadGenerator generator = new LoadGenerator();
+
+		String error = generator.parseArguments(args);
+		if (error != null) {
+			System.err.println(error);
+			printUsage();
+			System.exit(1);
+		}
+		generator.run();
+	}
+
+	/**
+	 * Print command line syntax
+	 */
+	private static void printUsage() {
+		System.err.println("Usage : LoadGenerator [options]");
+		System.err.println("  --server blocking|nio|none  embedded echo server engine, none to load an external echo server (default nio)");
+		System.err.println("  --host <host>               server hostname (default 127.0.0.1)");
+		System.err.println("  --port <port>               server port (default free port for embedded server)");
+		System.err.println("  --connections <count>       number of connections (default 10)");
+		System.err.println("  --size <bytes>              message size, at least " + TIMESTAMPS_SIZE + " (default 64)");
+		System.err.println("  --mode open|closed          fixed rate or send on echo (default open)");
+		System.err.println("  --rate <messages/s>         total send rate in open loop (default 10000)");
+		System.err.println("  --window <count>            messages in flight per connection in closed loop (default 1)");
+		System.err.println("  --senders <count>           sending threads in open loop (default number of processors)");
+		System.err.println("  --warmup <seconds>          warmup duration (default 5)");
+		System.err.println("  --duration <seconds>        measurement duration (default 30)");
+		System.err.println("  --virtual                   read client sockets with virtual threads (JDK 21+)");
+		System.err.println("  --histogram <file>          write latency distribution (HdrHistogram percentile format)");
+	}
+
+	/**
+	 * Read command line options
+	 *
+	 * @param args
+	 *            command line arguments
+	 * @return error message or null if options are valid
+	 */
+	private String parseArguments(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+
+				String name = args[i];
+
+				if (name.equals("--virtual")) {
+					virtualThreads = true;
+					continue;
+				}
+				if (i + 1 == args.length) {
+					return "missing value for option " + name;
+				}
+				String value = args[++i];
+
+				switch (name) {
+				case "--server":
+					server = value;
+					break;
+				case "--host":
+					host = value;
+					break;
+				case "--port":
+					port = Integer.parseInt(value);
+					break;
+				case "--connections":
+					connectionCount = Integer.parseInt(value);
+					break;
+				case "--size":
+					messageSize = Integer.parseInt(value);
+					break;
+				case "--mode":
+					if (!value.equals("open") && !value.equals("closed")) {
+						return "unknown mode " + value;
+					}
+					openLoop = value.equals("open");
+					break;
+				case "--rate":
+					rate = Integer.parseInt(value);
+					break;
+				case "--window":
+					window = Integer.parseInt(value);
+					break;
+				case "--senders":
+					senderCount = Integer.parseInt(value);
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(value);
+					break;
+				case "--duration":
+					duration = Integer.parseInt(value);
+					break;
+				case "--histogram":
+					histogramFile = value;
+					break;
+				default:
+					return "unknown option " + name;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return "invalid number " + e.getMessage();
+		}
+
+		if (!server.equals("blocking") && !server.equals("nio")
+				&& !server.equals("none")) {
+			return "unknown server engine " + server;
+		}
+		if (server.equals("none") && port == 0) {
+			return "port of external server must be specified";
+		}
+		if (messageSize < TIMESTAMPS_SIZE) {
+			return "message size must be at least " + TIMESTAMPS_SIZE;
+		}
+		if (connectionCount < 1 || rate < 1 || window < 1 || senderCount < 1
+				|| warmup < 0 || duration < 1) {
+			return "connections, rate, window, senders and duration must be positive";
+		}
+		return null;
+	}
+
+	/**
+	 * Connect clients, send messages during warmup and measurement periods
+	 * and print results
+	 */
+	private void run() throws Exception {
+
+		EchoServer echoServer = null;
+
+		if (!server.equals("none")) {
+			echoServer = new EchoServer(port, server.equals("nio"));
+			echoServer.start();
+			port = echoServer.getPort();
+		}
+
+		try {
+			if (!connect()) {
+				return;
+			}
+
+			System.out.println((openLoop ? "open loop : " + rate
+					+ " messages/s" : "closed loop : " + window
+					+ " message(s) in flight per connection")
+					+ ", " + connectionCount + " connection(s), "
+					+ messageSize + " bytes messages, warmup " + warmup
+					+ "s, duration " + duration + "s");
+
+			running = true;
+
+			List<Thread> senders = startSending();
+
+			Histogram latency = new Histogram(HISTOGRAM_PRECISION);
+			Histogram serviceTime = new Histogram(HISTOGRAM_PRECISION);
+
+			long measuredSent = report(latency, serviceTime);
+
+			running = false;
+			for (int i = 0; i < senders.size(); i++) {
+				senders.get(i).join();
+			}
+
+			/* wait for messages still in flight */
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+			while (receivedCount.get() < sentCount.get()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			printSummary(latency, serviceTime, measuredSent);
+
+		} finally {
+			running = false;
+			disconnect();
+			if (echoServer != null) {
+				echoServer.close();
+			}
+		}
+	}
+
+	/**
+	 * Open all connections
+	 *
+	 * @return false if some connections could not be established
+	 */
+	private boolean connect() throws InterruptedException {
+
+		CountDownLatch connected = new CountDownLatch(connectionCount);
+
+		for (int i = 0; i < connectionCount; i++) {
+			Connection connection = new Connection(connected);
+
+			if (virtualThreads && !connection.client.useVirtualThreads()) {
+				System.err.println("virtual threads are not supported by this JVM");
+				virtualThreads = false;
+			}
+			connections.add(connection);
+			connection.client.connect();
+		}
+
+		if (!connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+			System.err.println((connected.getCount()) + " connection(s) to "
+					+ host + ":" + port + " failed");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close all connections with close handshake, connections still open
+	 * after drain timeout are closed
+	 */
+	private void disconnect() throws InterruptedException {
+
+		for (int i = 0; i < connections.size(); i++) {
+			connections.get(i).client.close(WebSocketCloseCode.NORMAL_CLOSURE,
+					"");
+		}
+
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+		for (int i = 0; i < connections.size(); i++) {
+			WebsocketClient client = connections.get(i).client;
+
+			while (client.isConnected()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			client.closeSocket();
+		}
+	}
+
+	/**
+	 * Start sending messages : sender threads in open loop, first window of
+	 * messages in closed loop (next messages are sent on echo)
+	 *
+	 * @return sender threads
+	 */
+	private List<Thread> startSending() {
+
+		List<Thread> senders = new ArrayList<Thread>();
+
+		if (!openLoop) {
+			for (int i = 0; i < window; i++) {
+				for (int j = 0; j < connections.size(); j++) {
+					connections.get(j).send(System.nanoTime());
+				}
+			}
+			return senders;
+		}
+
+		int count = Math.min(senderCount, connections.size());
+
+		/* each sender thread serves its own connections at rate / count */
+		long interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) * count / rate);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			List<Connection> served = new ArrayList<Connection>();
+			for (int j = i; j < connections.size(); j += count) {
+				served.add(connections.get(j));
+			}
+			Thread sender = new Thread(new Sender(served, start + i
+					* interval / count, interval), "load-sender-" + i);
+			sender.start();
+			senders.add(sender);
+		}
+		return senders;
+	}
+
+	/**
+	 * Print throughput and latency every second, accumulate measurement
+	 * period into total histograms
+	 *
+	 * @param latency
+	 *            total latency from intended send time
+	 * @param serviceTime
+	 *            total latency from actual send time
+	 * @return number of messages sent during measurement period
+	 */
+	private long report(Histogram latency, Histogram serviceTime) {
+
+		Histogram intervalLatency = null;
+		Histogram intervalServiceTime = null;
+
+		long start = System.nanoTime();
+		long lastSent = 0;
+		long lastReceived = 0;
+		long measuredSent = 0;
+
+		for (int second = 1; second <= warmup + duration; second++) {
+
+			long wakeup = start + TimeUnit.SECONDS.toNanos(second);
+			long now;
+			while ((now = System.nanoTime()) < wakeup) {
+				LockSupport.parkNanos(wakeup - now);
+			}
+
+			intervalLatency = latencyRecorder
+					.getIntervalHistogram(intervalLatency);
+			intervalServiceTime = serviceTimeRecorder
+					.getIntervalHistogram(intervalServiceTime);
+
+			long sent = sentCount.get();
+			long received = receivedCount.get();
+
+			System.out.printf(
+					"%4ds %-7s sent %8d/s received %8d/s latency p50 %10.1f p99 %10.1f max %10.1f us%n",
+					second, second <= warmup ? "warmup" : "", sent
+							- lastSent, received - lastReceived,
+					toMicros(intervalLatency.getValueAtPercentile(50)),
+					toMicros(intervalLatency.getValueAtPercentile(99)),
+					toMicros(intervalLatency.getMaxValue()));
+
+			if (second > warmup) {
+				latency.add(intervalLatency);
+				serviceTime.add(intervalServiceTime);
+				measuredSent += sent - lastSent;
+			}
+			lastSent = sent;
+			lastReceived = received;
+		}
+		return measuredSent;
+	}
+
+	/**
+	 * Print throughput and latency percentiles of measurement period
+	 *
+	 * @param latency
+	 *            latency from intended send time
+	 * @param serviceTime
+	 *            latency from actual send time
+	 * @param measuredSent
+	 *            number of messages sent during measurement period
+	 */
+	private void printSummary(Histogram latency, Histogram serviceTime,
+			long measuredSent) throws FileNotFoundException {
+
+		long received = latency.getTotalCount();
+
+		System.out.println();
+		System.out.printf("throughput : sent %.0f messages/s, received %.0f messages/s (%.2f MB/s each way)%n",
+				measuredSent / (double) duration, received / (double) duration,
+				received * (double) messageSize / duration / (1024 * 1024));
+		System.out.printf("errors     : %d send error(s), %d connection(s) closed, %d message(s) without echo%n",
+				sendErrorCount.get(), closedCount.get(), sentCount.get()
+						- receivedCount.get());
+
+		System.out.println();
+		System.out.printf("%-12s %14s %14s%n", "latency (us)",
+				openLoop ? "from intended" : "", "from sent");
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			double percentile = PERCENTILES[i];
+			printPercentile(percentile == Math.rint(percentile) ? "p"
+					+ (int) percentile : "p" + percentile,
+					latency.getValueAtPercentile(percentile),
+					serviceTime.getValueAtPercentile(percentile));
+		}
+		printPercentile("max", latency.getMaxValue(),
+				serviceTime.getMaxValue());
+
+		if (histogramFile != null) {
+			PrintStream out = new PrintStream(histogramFile);
+			latency.outputPercentileDistribution(out, 1000.0);
+			out.close();
+			System.out.println();
+			System.out.println("latency distribution written to "
+					+ histogramFile);
+		}
+	}
+
+	/**
+	 * Print a line of latency table
+	 *
+	 * @param name
+	 *            percentile name
+	 * @param latency
+	 *            latency from intended send time (ns)
+	 * @param serviceTime
+	 *            latency from actual send time (ns)
+	 */
+	private void printPercentile(String name, long latency, long serviceTime) {
+		/* both latencies are the same in closed loop */
+		if (openLoop) {
+			System.out.printf("%-12s %14.1f %14.1f%n", name,
+					toMicros(latency), toMicros(serviceTime));
+		} else {
+			System.out.printf("%-12s %14s %14.1f%n", name, "",
+					toMicros(serviceTime));
+		}
+	}
+
+	private static double toMicros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+	/**
+	 * Sender thread of open loop : sends messages to its connections in turn,
+	 * at a fixed interval. A late sender sends immediately until it catches
+	 * up with its schedule, each message keeping its intended send time.
+	 */
+	private class Sender implements Runnable {
+
+		/** connections served by this sender */
+		private final List<Connection> served;
+
+		/** intended send time of first message (ns) */
+		private final long start;
+
+		/** time between two messages (ns) */
+		private final long interval;
+
+		Sender(List<Connection> served, long start, long interval) {
+			this.served = served;
+			this.start = start;
+			this.interval = interval;
+		}
+
+		@Override
+		public void run() {
+			long next = start;
+			int index = 0;
+
+			while (running) {
+				long now = System.nanoTime();
+				if (now < next) {
+					LockSupport.parkNanos(next - now);
+					continue;
+				}
+				served.get(index).send(next);
+
+				index = (index + 1) % served.size();
+				next += interval;
+			}
+		}
+	}
+
+	/**
+	 * Client connection recording latency of echoed messages
+	 */
+	private class Connection implements IWebsocketClientEventListener {
+
+		/** websocket client */
+		private final WebsocketClient client;
+
+		/** message sent (timestamps are written at beginning) */
+		private final byte[] message = new byte[messageSize];
+
+		/** view over message used to write timestamps */
+		private final ByteBuffer timestamps = ByteBuffer.wrap(message);
+
+		/** counted down once connected */
+		private final CountDownLatch connected;
+
+		Connection(CountDownLatch connected) {
+			this.connected = connected;
+			this.client = new WebsocketClient(host, port);
+			this.client.addClientSocketEventListener(this);
+		}
+
+		/**
+		 * Send a message
+		 *
+		 * @param intendedTime
+		 *            time at which message should have been sent (ns)
+		 */
+		void send(long intendedTime) {
+			/* in closed loop, reading thread sends while first window is sent */
+			synchronized (this) {
+				timestamps.putLong(0, intendedTime);
+				timestamps.putLong(8, System.nanoTime());
+
+				if (client.writeMessage(message, 0, message.length) == 0) {
+					sentCount.incrementAndGet();
+				} else {
+					sendErrorCount.incrementAndGet();
+				}
+			}
+		}
+
+		@Override
+		public void onSocketConnected() {
+			connected.countDown();
+		}
+
+		@Override
+		public void onSocketClosed() {
+			if (running) {
+				closedCount.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void onIncomingMessageReceived(byte[] data,
+				IWebsocketClientChannel channel) {
+			onIncomingBinaryMessageReceived(ByteBuffer.wrap(data), channel);
+		}
+
+		@Override
+		public void onIncomingBinaryMessageReceived(ByteBuffer data,
+				IWebsocketClientChannel channel) {
+			long now = System.nanoTime();
+
+			if (data.remaining() < TIMESTAMPS_SIZE) {
+				return;
+			}
+			latencyRecorder.recordValue(now - data.getLong(data.position()));
+			serviceTimeRecorder.recordValue(now
+					- data.getLong(data.position() + 8));
+			receivedCount.incrementAndGet();
+
+			if (!openLoop && running) {
+				send(now);
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+
+/**
+ * Payload unmasking : WebSocketChannel.unmask compared with a byte per byte
+ * loop. Data is unmasked in place, each invocation toggles it between masked
+ * and unmasked state.
+ *
+ * @author Bertrand Martel
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskingBenchmark {
+
+	/** number of bytes to unmask */
+	@Param({ "7", "125", "1024", "65536" })
+	public int payloadSize;
+
+	/** offset of masked data in array (payload follows frame header) */
+	@Param({ "0", "6" })
+	public int offset;
+
+	/** masked data */
+	private byte[] data;
+
+	/** mask key */
+	private final byte[] mask = new byte[] { 0x12, 0x34, 0x56, 0x78 };
+
+	@Setup
+	public void setup() {
+		data = new byte[offset + payloadSize];
+		new Random(payloadSize).nextBytes(data);
+	}
+
+	@Benchmark
+	public byte[] unmask() {
+		WebSocketChannel.unmask(data, offset, payloadSize, mask);
+		return data;
+	}
+
+	@Benchmark
+	public byte[] unmaskBytePerByte() {
+		for (int i = 0; i < payloadSize; i++) {
+			data[offset + i] ^= mask[i % 4];
+		}
+		return data;
+	}
+}
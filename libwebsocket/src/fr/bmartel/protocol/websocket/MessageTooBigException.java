@@ -0,0 +1,60 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket;
+
+import java.net.ProtocolException;
+
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+
+/**
+ * <b>Message received exceeds maximum message size</b>
+ *
+ * Connection is closed with MESSAGE_TOO_BIG close code instead of
+ * PROTOCOL_ERROR.
+ *
+ * @author Bertrand Martel
+ */
+public class MessageTooBigException extends ProtocolException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Build exception
+	 *
+	 * @param message
+	 *            detail message
+	 */
+	public MessageTooBigException(String message) {
+		super(message);
+	}
+
+	/**
+	 * Retrieve close code to send to peer
+	 *
+	 * @return MESSAGE_TOO_BIG
+	 */
+	public int getCloseCode() {
+		return WebSocketCloseCode.MESSAGE_TOO_BIG;
+	}
+}
@@ -0,0 +1,469 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import fr.bmartel.protocol.websocket.constants.WebSocketHeader;
+
+/**
+ * <b>Bounded parser of websocket upgrade requests</b>
+ *
+ * Request is accumulated in a single array (from a blocking inputstream or
+ * from buffers read by a non-blocking channel) until the empty line ending
+ * headers. Header lines are then scanned in place : names are compared
+ * byte by byte without case conversion and only headers needed by the
+ * handshake are retained, so that no object is allocated per header.
+ *
+ * A request bigger than maximum size or with too many headers is rejected
+ * before being parsed, so that a client sending endless headers cannot make
+ * server buffer them (slowloris, together with server handshake timeout).
+ *
+ * @author Bertrand Martel
+ */
+public class UpgradeRequest {
+
+	/** empty line ending headers has not been received yet */
+	public final static int INCOMPLETE = 0;
+
+	/** request has been parsed and is a valid websocket upgrade request */
+	public final static int COMPLETE = 1;
+
+	/** request is not a valid websocket upgrade request */
+	public final static int MALFORMED = -1;
+
+	/** request exceeds maximum size or maximum header count */
+	public final static int TOO_LARGE = -2;
+
+	/** maximum number of header lines */
+	public final static int MAX_HEADER_COUNT = 100;
+
+	/** websocket protocol version supported */
+	private final static int WEBSOCKET_VERSION = 13;
+
+	/** initial size of request array (grows up to maximum size) */
+	private final static int INITIAL_SIZE = 1024;
+
+	/** request line prefix */
+	private final static byte[] GET = "GET ".getBytes(StandardCharsets.US_ASCII);
+
+	/** http version prefix at end of request line */
+	private final static byte[] HTTP_1 = " HTTP/1."
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/** header names (lower case) */
+	private final static byte[] UPGRADE = lowerCase("Upgrade");
+	private final static byte[] CONNECTION = lowerCase("Connection");
+	private final static byte[] KEY = lowerCase(WebSocketHeader.SC_WEBSOCKET_KEY);
+	private final static byte[] VERSION = lowerCase(WebSocketHeader.SEC_WEBSOCKET_VERSION);
+	private final static byte[] EXTENSIONS = lowerCase(WebSocketHeader.SEC_WEBSOCKET_EXTENSIONS);
+
+	/** header tokens (lower case) */
+	private final static byte[] WEBSOCKET_TOKEN = lowerCase("websocket");
+	private final static byte[] UPGRADE_TOKEN = lowerCase("upgrade");
+
+	/** maximum request size in bytes */
+	private final int maxSize;
+
+	/** request data (may contain data following headers) */
+	private byte[] buffer = new byte[INITIAL_SIZE];
+
+	/** number of bytes in buffer */
+	private int length = 0;
+
+	/** number of bytes already searched for end of headers */
+	private int scanned = 0;
+
+	/** offset following empty line ending headers (-1 if not found yet) */
+	private int headerEnd = -1;
+
+	/** define if Upgrade header contains websocket token */
+	private boolean upgrade = false;
+
+	/** define if Connection header contains upgrade token */
+	private boolean connectionUpgrade = false;
+
+	/** Sec-WebSocket-Key value (null if missing) */
+	private String key = null;
+
+	/** Sec-WebSocket-Version value (-1 if missing) */
+	private int version = -1;
+
+	/** Sec-WebSocket-Extensions values joined by a comma (null if missing) */
+	private String extensions = null;
+
+	/**
+	 * Build parser with default maximum request size
+	 */
+	public UpgradeRequest() {
+		this(WebSocketHandshake.MAX_HANDSHAKE_SIZE);
+	}
+
+	/**
+	 * Build parser
+	 *
+	 * @param maxSize
+	 *            maximum request size in bytes
+	 */
+	public UpgradeRequest(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Read request from a blocking inputstream. Data is read in bulk : bytes
+	 * following headers (frames sent right after request) are kept and given
+	 * by getRemaining().
+	 *
+	 * @param in
+	 *            socket inputstream
+	 * @return COMPLETE, MALFORMED, TOO_LARGE or INCOMPLETE if end of stream
+	 *         has been reached
+	 * @throws IOException
+	 */
+	public int read(InputStream in) throws IOException {
+		while (true) {
+			if (length == buffer.length && !grow()) {
+				return TOO_LARGE;
+			}
+			int count = in.read(buffer, length, buffer.length - length);
+			if (count == -1) {
+				return INCOMPLETE;
+			}
+			length += count;
+
+			int status = scan();
+			if (status != INCOMPLETE) {
+				return status;
+			}
+		}
+	}
+
+	/**
+	 * Append data read from a non-blocking channel. Buffer position is moved
+	 * past data consumed : data left in buffer once request is complete
+	 * follows it.
+	 *
+	 * @param data
+	 *            data read from socket channel
+	 * @return COMPLETE, MALFORMED, TOO_LARGE or INCOMPLETE if more data is
+	 *         needed
+	 */
+	public int append(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			if (length == buffer.length && !grow()) {
+				return TOO_LARGE;
+			}
+			int count = Math.min(data.remaining(), buffer.length - length);
+			data.get(buffer, length, count);
+			length += count;
+
+			int status = scan();
+			if (status != INCOMPLETE) {
+				return status;
+			}
+		}
+		return INCOMPLETE;
+	}
+
+	/**
+	 * Double request array up to maximum size
+	 *
+	 * @return false if array has already reached maximum size
+	 */
+	private boolean grow() {
+		if (buffer.length >= maxSize) {
+			return false;
+		}
+		byte[] grown = new byte[Math.min(buffer.length * 2, maxSize)];
+		System.arraycopy(buffer, 0, grown, 0, length);
+		buffer = grown;
+		return true;
+	}
+
+	/**
+	 * Search newly received bytes for end of headers and parse request once
+	 * found
+	 *
+	 * @return status of request
+	 */
+	private int scan() {
+		for (int i = Math.max(scanned - 3, 0); i + 3 < length; i++) {
+			if (buffer[i] == '\r' && buffer[i + 1] == '\n'
+					&& buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+				headerEnd = i + 4;
+				return parse(buffer, 0, headerEnd);
+			}
+		}
+		scanned = length;
+		return length >= maxSize ? TOO_LARGE : INCOMPLETE;
+	}
+
+	/**
+	 * Parse headers of an upgrade request
+	 *
+	 * @param data
+	 *            array containing request
+	 * @param offset
+	 *            offset of request line
+	 * @param end
+	 *            offset following empty line ending headers
+	 * @return COMPLETE, MALFORMED or TOO_LARGE
+	 */
+	public int parse(byte[] data, int offset, int end) {
+		upgrade = false;
+		connectionUpgrade = false;
+		key = null;
+		version = -1;
+		extensions = null;
+
+		int lineEnd = indexOfLineEnd(data, offset, end);
+
+		/* request line : GET <request-target> HTTP/1.x */
+		if (lineEnd == -1 || !startsWith(data, offset, lineEnd, GET)
+				|| lineEnd - offset < GET.length + HTTP_1.length + 2
+				|| !startsWith(data, lineEnd - HTTP_1.length - 1, lineEnd,
+						HTTP_1)) {
+			return MALFORMED;
+		}
+		int headerCount = 0;
+		int lineStart = lineEnd + 2;
+
+		while ((lineEnd = indexOfLineEnd(data, lineStart, end)) != lineStart) {
+
+			if (lineEnd == -1) {
+				return MALFORMED;
+			}
+			if (++headerCount > MAX_HEADER_COUNT) {
+				return TOO_LARGE;
+			}
+			int colon = indexOf(data, lineStart, lineEnd, (byte) ':');
+
+			/* no whitespace allowed between header name and colon */
+			if (colon <= lineStart || data[colon - 1] == ' '
+					|| data[colon - 1] == '\t') {
+				return MALFORMED;
+			}
+			int valueStart = colon + 1;
+			int valueEnd = lineEnd;
+			while (valueStart < valueEnd && isWhitespace(data[valueStart])) {
+				valueStart++;
+			}
+			while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+				valueEnd--;
+			}
+			header(data, lineStart, colon, valueStart, valueEnd);
+
+			lineStart = lineEnd + 2;
+		}
+
+		if (!upgrade || !connectionUpgrade || key == null
+				|| (version != -1 && version != WEBSOCKET_VERSION)) {
+			return MALFORMED;
+		}
+		return COMPLETE;
+	}
+
+	/**
+	 * Retain value of a header needed by handshake
+	 */
+	private void header(byte[] data, int nameStart, int nameEnd,
+			int valueStart, int valueEnd) {
+		int nameLength = nameEnd - nameStart;
+
+		if (nameLength == UPGRADE.length
+				&& equalsIgnoreCase(data, nameStart, UPGRADE)) {
+			upgrade |= containsToken(data, valueStart, valueEnd,
+					WEBSOCKET_TOKEN);
+		} else if (nameLength == CONNECTION.length
+				&& equalsIgnoreCase(data, nameStart, CONNECTION)) {
+			connectionUpgrade |= containsToken(data, valueStart, valueEnd,
+					UPGRADE_TOKEN);
+		} else if (nameLength == KEY.length
+				&& equalsIgnoreCase(data, nameStart, KEY)) {
+			key = new String(data, valueStart, valueEnd - valueStart,
+					StandardCharsets.ISO_8859_1);
+		} else if (nameLength == VERSION.length
+				&& equalsIgnoreCase(data, nameStart, VERSION)) {
+			version = parseInt(data, valueStart, valueEnd);
+		} else if (nameLength == EXTENSIONS.length
+				&& equalsIgnoreCase(data, nameStart, EXTENSIONS)) {
+			String value = new String(data, valueStart, valueEnd - valueStart,
+					StandardCharsets.ISO_8859_1);
+			extensions = extensions == null ? value : extensions + ", "
+					+ value;
+		}
+	}
+
+	/**
+	 * Find end of line (CRLF) in a range
+	 *
+	 * @return offset of CR or -1 if not found
+	 */
+	private static int indexOfLineEnd(byte[] data, int start, int end) {
+		for (int i = start; i + 1 < end; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] data, int start, int end, byte value) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] data, int start, int end,
+			byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare bytes with a lower case ascii name
+	 */
+	private static boolean equalsIgnoreCase(byte[] data, int start,
+			byte[] lowerCase) {
+		for (int i = 0; i < lowerCase.length; i++) {
+			if (toLowerCase(data[start + i]) != lowerCase[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if a comma separated header value contains a token
+	 * (case-insensitive)
+	 */
+	private static boolean containsToken(byte[] data, int start, int end,
+			byte[] lowerCase) {
+		int tokenStart = start;
+
+		while (tokenStart < end) {
+			int tokenEnd = indexOf(data, tokenStart, end, (byte) ',');
+			if (tokenEnd == -1) {
+				tokenEnd = end;
+			}
+			int next = tokenEnd + 1;
+
+			while (tokenStart < tokenEnd && isWhitespace(data[tokenStart])) {
+				tokenStart++;
+			}
+			while (tokenEnd > tokenStart && isWhitespace(data[tokenEnd - 1])) {
+				tokenEnd--;
+			}
+			if (tokenEnd - tokenStart == lowerCase.length
+					&& equalsIgnoreCase(data, tokenStart, lowerCase)) {
+				return true;
+			}
+			tokenStart = next;
+		}
+		return false;
+	}
+
+	/**
+	 * Parse a positive decimal number
+	 *
+	 * @return number or 0 if value is not a number
+	 */
+	private static int parseInt(byte[] data, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end && i - start < 9; i++) {
+			if (data[i] < '0' || data[i] > '9') {
+				return 0;
+			}
+			value = value * 10 + (data[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return value == ' ' || value == '\t';
+	}
+
+	private static byte toLowerCase(byte value) {
+		return value >= 'A' && value <= 'Z' ? (byte) (value + 32) : value;
+	}
+
+	private static byte[] lowerCase(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = toLowerCase(bytes[i]);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Retrieve data received after headers (frames sent right after upgrade
+	 * request), without copy
+	 *
+	 * @return buffer wrapping remaining data (empty if none)
+	 */
+	public ByteBuffer getRemaining() {
+		if (headerEnd == -1) {
+			return ByteBuffer.allocate(0);
+		}
+		return ByteBuffer.wrap(buffer, headerEnd, length - headerEnd);
+	}
+
+	/**
+	 * Retrieve number of bytes buffered (headers and data following them)
+	 *
+	 * @return request size
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public String getExtensions() {
+		return extensions;
+	}
+
+	public boolean isUpgrade() {
+		return upgrade && connectionUpgrade;
+	}
+}
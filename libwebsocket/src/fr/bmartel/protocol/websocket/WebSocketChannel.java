@@ -26,12 +26,27 @@ package fr.bmartel.protocol.websocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
 import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
 import fr.bmartel.protocol.websocket.constants.WebSocketProtocol;
 import fr.bmartel.protocol.websocket.constants.WebSocketStates;
+import fr.bmartel.protocol.websocket.extensions.DeflateCodec;
+import fr.bmartel.protocol.websocket.extensions.PerMessageDeflate;
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.FrameTypeObject;
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
 import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+import fr.bmartel.protocol.websocket.utils.ByteUtils;
 
 /**
  * Encapsulation and Decapsulation of data according to websocket protocol
@@ -45,10 +60,740 @@ public class WebSocketChannel {
 
 	private SocketBuffer socketBuffer = null;
 
+	/** current state of non-blocking decoder (see WebSocketStates) */
+	private int decoderState = WebSocketStates.NONE;
+
+	/** number of bytes already read for current decoder state */
+	private int decoderCounter = 0;
+
+	/** websocket message being decoded by non-blocking decoder */
+	private WebSocketMessage decoderMessage = null;
+
+	/** payload length of frame being decoded */
+	private long frameLength = 0;
+
+	/** number of payload bytes of frame being decoded already decoded */
+	private long frameOffset = 0;
+
+	/** default maximum size of message parts in streaming mode */
+	public final static int DEFAULT_PART_SIZE = 64 * 1024;
+
+	/** maximum size of a byte array */
+	private final static int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/** default maximum size of a received message (16 MB) */
+	public final static long DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/** maximum size of a message (sum of payload length of its frames) */
+	private long maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+	/** deliver data messages in parts as they arrive instead of reassembling them */
+	private boolean streaming = false;
+
+	/** maximum size of message parts in streaming mode */
+	private int partSize = DEFAULT_PART_SIZE;
+
+	/** type of data message being received (text or binary) or null */
+	private FrameTypeObject messageType = null;
+
+	/** payload size of data message being received */
+	private long messageSize = 0;
+
+	/** type of data message last decoded part belongs to */
+	private FrameTypeObject partMessageType = null;
+
+	/** define if data message being received is compressed */
+	private boolean messageCompressed = false;
+
+	/** define if data message last decoded part belongs to is compressed */
+	private boolean partCompressed = false;
+
+	/** permessage-deflate settings used in handshake (null if disabled) */
+	private PerMessageDeflate perMessageDeflate = null;
+
+	/** negotiated compression state (null if messages are not compressed) */
+	private volatile DeflateCodec deflateCodec = null;
+
+	/** payload of fragmented message being reassembled */
+	private byte[] assembly = null;
+
+	/** number of bytes in reassembly array */
+	private int assemblyLength = 0;
+
+	/** pooled buffer holding reassembly array (null if not pooled) */
+	private PooledBuffer assemblyBuffer = null;
+
+	/**
+	 * pool providing payload arrays of data frames (null to allocate a new
+	 * array for each frame)
+	 */
+	private BufferPool bufferPool = null;
+
+	/** message released by its owner, reused for next frame */
+	private final AtomicReference<WebSocketMessage> spareMessage = new AtomicReference<WebSocketMessage>();
+
+	/** mask key rotated for a part not starting on a mask boundary */
+	private final byte[] rotatedMask = new byte[WebSocketProtocol.MASK_KEY_SIZE];
+
+	/** size of buffer used to read from inputstream */
+	private final static int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * buffer reused to read from inputstream (bytes between position and
+	 * limit have been read but not decoded yet)
+	 */
+	private ByteBuffer readBuffer = null;
+
+	/**
+	 * payload size under which header and payload are copied to frame buffer
+	 * and written at once
+	 */
+	private final static int SMALL_FRAME_SIZE = 1024;
+
+	/**
+	 * lock held while writing to outputstream : frames of a connection are
+	 * never interleaved (a ReentrantLock does not pin carrier thread of a
+	 * virtual thread blocked in socket write)
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/** metrics notified of decoded and written frames (may be null) */
+	private IWebsocketMetrics metrics = null;
+
+	/** buffer reused to write frame header (and payload of small frames) */
+	private byte[] frameBuffer = new byte[WebSocketProtocol.MAX_HEADER_SIZE
+			+ SMALL_FRAME_SIZE];
+
 	public WebSocketChannel() {
 		this.socketBuffer = new SocketBuffer();
 	}
 
+	/**
+	 * Build websocket channel writing through a socket buffer shared with
+	 * other channels
+	 * 
+	 * @param socketBuffer
+	 *            socket buffer used to write frames
+	 */
+	public WebSocketChannel(SocketBuffer socketBuffer) {
+		this.socketBuffer = socketBuffer;
+	}
+
+	/**
+	 * Decapsulate websocket frames from a byte buffer without blocking. Bytes
+	 * are consumed from buffer until a complete frame has been decoded or
+	 * buffer is empty. Decoding state is kept between calls so a frame may be
+	 * split among several buffers. In streaming mode, frames larger than part
+	 * size are returned in several parts.
+	 *
+	 * @param buffer
+	 *            buffer containing data read from socket
+	 * @return decoded websocket message (payload data unmasked) or null if
+	 *         more data is needed
+	 * @throws ProtocolException
+	 *             if frame does not respect websocket protocol or message is
+	 *             too big
+	 */
+	@SuppressWarnings("fallthrough")
+	public WebSocketMessage decapsulateFrame(ByteBuffer buffer)
+			throws ProtocolException {
+
+		while (buffer.hasRemaining()
+				|| decoderState == WebSocketStates.PAYLOAD_DATA) {
+
+			switch (decoderState) {
+			case WebSocketStates.NONE:
+				decoderMessage = newMessage();
+				decoderCounter = 0;
+				if (decapsulateHeader(buffer)) {
+					break;
+				}
+				decoderState = WebSocketStates.FIN_STATE;
+				/* falls through */
+			case WebSocketStates.FIN_STATE:
+				int currentByte = buffer.get() & 0xFF;
+				decoderMessage.setFIN(currentByte & WebSocketProtocol.FIN);
+				decoderMessage.setRSV(currentByte & WebSocketProtocol.RSV);
+				decoderMessage.setOPCODE(currentByte & WebSocketProtocol.OPCODE);
+				decoderMessage.setOpcodeType(WebSocketOpcode
+						.getOpcode((byte) decoderMessage.getOPCODE()));
+				decoderState = WebSocketStates.MASK_STATE;
+				break;
+			case WebSocketStates.MASK_STATE:
+				currentByte = buffer.get() & 0xFF;
+				decoderMessage.setMASK(currentByte & WebSocketProtocol.MASK);
+				decoderMessage.setPAYLOAD_LENGTH_FRAME(currentByte
+						& WebSocketProtocol.PAYLOAD_LENGTH);
+				if (decoderMessage.getPAYLOAD_LENGTH_FRAME() < WebSocketProtocol.PAYLOAD_SIZE_LIMIT1) {
+					frameLength = decoderMessage.getPAYLOAD_LENGTH_FRAME();
+					startMaskingKey();
+				} else if (decoderMessage.getPAYLOAD_LENGTH_FRAME() == WebSocketProtocol.PAYLOAD_SIZE_LIMIT1) {
+					preparePayloadLength(WebSocketProtocol.PAYLOAD_SIZE_2BYTES);
+					decoderState = WebSocketStates.PAYLOAD_LENGTH_2_BYTES;
+				} else {
+					preparePayloadLength(WebSocketProtocol.PAYLOAD_SIZE_8BYTES);
+					decoderState = WebSocketStates.PAYLOAD_LENGTH_8_BYTES;
+				}
+				break;
+			case WebSocketStates.PAYLOAD_LENGTH_2_BYTES:
+			case WebSocketStates.PAYLOAD_LENGTH_8_BYTES:
+				decoderMessage.payloadLength[decoderCounter++] = buffer.get();
+				if (decoderCounter == decoderMessage.payloadLength.length) {
+					frameLength = toLength(decoderMessage.payloadLength);
+					startMaskingKey();
+				}
+				break;
+			case WebSocketStates.MASKING_KEY:
+				decoderMessage.maskKey[decoderCounter++] = buffer.get();
+				if (decoderCounter == WebSocketProtocol.MASK_KEY_SIZE) {
+					startPayloadData();
+				}
+				break;
+			case WebSocketStates.PAYLOAD_DATA:
+				int length = Math.min(buffer.remaining(),
+						decoderMessage.getPayload_length() - decoderCounter);
+				buffer.get(decoderMessage.payloadData, decoderCounter, length);
+				decoderCounter += length;
+
+				if (decoderCounter < decoderMessage.getPayload_length()) {
+					return null;
+				}
+				return finishPart();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Unmask payload of part being decoded and prepare next part or reset
+	 * decoder state if frame is complete
+	 *
+	 * @return decoded websocket message
+	 */
+	private WebSocketMessage finishPart() {
+		WebSocketMessage message = decoderMessage;
+
+		int length = message.getPayload_length();
+
+		if (message.getMASK() == 0x01) {
+			unmask(message.payloadData, 0, length,
+					rotateMask(message.maskKey, frameOffset));
+		}
+		frameOffset += length;
+
+		boolean frameComplete = frameOffset == frameLength;
+
+		partMessageType = message.getOpcodeType();
+		if (!isControlFrame(message)) {
+			partMessageType = messageType;
+			partCompressed = messageCompressed;
+			message.setLastPart(frameComplete && message.getFIN() == 1);
+			if (message.isLastPart()) {
+				messageType = null;
+			}
+		}
+
+		if (frameComplete) {
+			if (metrics != null) {
+				metrics.onFrameReceived(message.getOPCODE(), frameLength);
+			}
+			decoderMessage = null;
+			decoderState = WebSocketStates.NONE;
+		} else {
+			/* next part of the same frame */
+			decoderMessage = newMessage();
+			decoderMessage.setFIN(message.getFIN() << 7);
+			decoderMessage.setRSV(message.getRSV() << 4);
+			decoderMessage.setOPCODE(message.getOPCODE());
+			decoderMessage.setOpcodeType(message.getOpcodeType());
+			decoderMessage.setMASK(message.getMASK() << 7);
+			if (message.getMASK() == 0x01) {
+				prepareMaskKey();
+				System.arraycopy(message.maskKey, 0, decoderMessage.maskKey,
+						0, WebSocketProtocol.MASK_KEY_SIZE);
+			}
+			startPart();
+		}
+
+		if (DEBUG)
+			System.out.println("Received websocket message with type : "
+					+ message.getOpcodeType().frameTypeName);
+		return message;
+	}
+
+	/**
+	 * Decapsulate a websocket frame from a blocking inputstream. Data is read
+	 * in bulk into a reused buffer, headers are decoded from this buffer and
+	 * payload data not already buffered is read directly into payload array
+	 *
+	 * @param in
+	 *            inputstream
+	 * @return decoded websocket message (payload data unmasked) or null if end
+	 *         of stream has been reached
+	 * @throws IOException
+	 */
+	public WebSocketMessage decapsulateFrame(InputStream in) throws IOException {
+
+		if (readBuffer == null) {
+			readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			readBuffer.limit(0);
+		}
+
+		while (true) {
+
+			if (readBuffer.hasRemaining()) {
+				WebSocketMessage message = decapsulateFrame(readBuffer);
+				if (message != null) {
+					return message;
+				}
+			}
+
+			if (decoderState == WebSocketStates.PAYLOAD_DATA) {
+				/* buffered data has been consumed : read the rest in place */
+				int length = decoderMessage.getPayload_length();
+				while (decoderCounter < length) {
+					int count = in.read(decoderMessage.payloadData,
+							decoderCounter, length - decoderCounter);
+					if (count == -1) {
+						return null;
+					}
+					decoderCounter += count;
+				}
+				return finishPart();
+			}
+
+			/* header is incomplete : read more data */
+			int count = in.read(readBuffer.array(), 0, readBuffer.capacity());
+			if (count == -1) {
+				return null;
+			}
+			readBuffer.position(0);
+			readBuffer.limit(count);
+		}
+	}
+
+	/**
+	 * Give back data read from inputstream past opening handshake (frames
+	 * sent right after upgrade request) : it is decoded before more data is
+	 * read from inputstream. Must be called before decoding starts.
+	 *
+	 * @param data
+	 *            data following handshake
+	 */
+	public void unread(ByteBuffer data) {
+		if (!data.hasRemaining()) {
+			return;
+		}
+		readBuffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE,
+				data.remaining()));
+		readBuffer.put(data);
+		readBuffer.flip();
+	}
+
+	/**
+	 * Decode a complete frame header in one pass if it is entirely available
+	 * in buffer. Nothing is consumed if header is incomplete : state machine
+	 * will be used to read it byte per byte
+	 *
+	 * @param buffer
+	 *            buffer containing data read from socket
+	 * @return true if header has been decoded
+	 */
+	private boolean decapsulateHeader(ByteBuffer buffer)
+			throws ProtocolException {
+
+		if (buffer.remaining() < 2) {
+			return false;
+		}
+		int position = buffer.position();
+		int firstByte = buffer.get(position) & 0xFF;
+		int secondByte = buffer.get(position + 1) & 0xFF;
+
+		int lengthFrame = secondByte & WebSocketProtocol.PAYLOAD_LENGTH;
+		int lengthSize = 0;
+		if (lengthFrame == WebSocketProtocol.PAYLOAD_SIZE_LIMIT1) {
+			lengthSize = WebSocketProtocol.PAYLOAD_SIZE_2BYTES;
+		} else if (lengthFrame == WebSocketProtocol.PAYLOAD_SIZE_LIMIT2) {
+			lengthSize = WebSocketProtocol.PAYLOAD_SIZE_8BYTES;
+		}
+		int maskSize = ((secondByte & WebSocketProtocol.MASK) != 0) ? WebSocketProtocol.MASK_KEY_SIZE
+				: 0;
+
+		if (buffer.remaining() < 2 + lengthSize + maskSize) {
+			return false;
+		}
+		buffer.position(position + 2);
+
+		decoderMessage.setFIN(firstByte & WebSocketProtocol.FIN);
+		decoderMessage.setRSV(firstByte & WebSocketProtocol.RSV);
+		decoderMessage.setOPCODE(firstByte & WebSocketProtocol.OPCODE);
+		decoderMessage.setOpcodeType(WebSocketOpcode
+				.getOpcode((byte) decoderMessage.getOPCODE()));
+		decoderMessage.setMASK(secondByte & WebSocketProtocol.MASK);
+		decoderMessage.setPAYLOAD_LENGTH_FRAME(lengthFrame);
+
+		if (lengthSize == 0) {
+			frameLength = lengthFrame;
+		} else {
+			preparePayloadLength(lengthSize);
+			buffer.get(decoderMessage.payloadLength);
+			frameLength = toLength(decoderMessage.payloadLength);
+		}
+		if (maskSize != 0) {
+			prepareMaskKey();
+			buffer.get(decoderMessage.maskKey);
+		}
+		startPayloadData();
+		return true;
+	}
+
+	/**
+	 * Retrieve a message to be decoded : a message released by its owner is
+	 * reused when payloads are pooled
+	 *
+	 * @return empty message
+	 */
+	private WebSocketMessage newMessage() {
+		if (bufferPool == null) {
+			return new WebSocketMessage();
+		}
+		WebSocketMessage message = spareMessage.getAndSet(null);
+		if (message != null) {
+			message.reset();
+			return message;
+		}
+		message = new WebSocketMessage();
+		message.owner = this;
+		return message;
+	}
+
+	/**
+	 * Keep a released message to be reused for next frame
+	 *
+	 * @param message
+	 *            message released by its owner
+	 */
+	void recycle(WebSocketMessage message) {
+		spareMessage.set(message);
+	}
+
+	/**
+	 * Make sure message being decoded has a payload length array of the
+	 * right size (array of a reused message is kept)
+	 *
+	 * @param size
+	 *            size of payload length field (2 or 8 bytes)
+	 */
+	private void preparePayloadLength(int size) {
+		if (decoderMessage.payloadLength == null
+				|| decoderMessage.payloadLength.length != size) {
+			decoderMessage.payloadLength = new byte[size];
+		}
+	}
+
+	/**
+	 * Make sure message being decoded has a mask key array (array of a reused
+	 * message is kept)
+	 */
+	private void prepareMaskKey() {
+		if (decoderMessage.maskKey == null) {
+			decoderMessage.maskKey = new byte[WebSocketProtocol.MASK_KEY_SIZE];
+		}
+	}
+
+	/**
+	 * Go to masking key state if data payload is masked or directly to data
+	 * payload state
+	 */
+	private void startMaskingKey() throws ProtocolException {
+		decoderCounter = 0;
+		if (decoderMessage.getMASK() == 0x01) {
+			prepareMaskKey();
+			decoderState = WebSocketStates.MASKING_KEY;
+		} else {
+			startPayloadData();
+		}
+	}
+
+	/**
+	 * Check frame header against protocol rules and message size limit, then
+	 * go to payload data state
+	 * 
+	 * @throws ProtocolException
+	 */
+	private void startPayloadData() throws ProtocolException {
+		FrameTypeObject opcodeType = decoderMessage.getOpcodeType();
+
+		if (frameLength < 0) {
+			throw new ProtocolException("invalid payload length");
+		}
+		/* RSV1 is only allowed on first frame of a compressed message */
+		int rsv = decoderMessage.getRSV();
+		if (rsv != 0
+				&& (rsv != WebSocketProtocol.RSV1 || deflateCodec == null
+						|| isControlFrame(decoderMessage) || opcodeType == WebSocketOpcode.CONTINUATION_FRAME)) {
+			throw new ProtocolException("invalid RSV bits");
+		}
+		if (isControlFrame(decoderMessage)) {
+			if (opcodeType == WebSocketOpcode.CONTROL_FRAME) {
+				throw new ProtocolException("unknown opcode");
+			}
+			if (decoderMessage.getFIN() == 0
+					|| frameLength > WebSocketProtocol.PAYLOAD_SIZE_LIMIT1 - 1) {
+				throw new ProtocolException("invalid control frame");
+			}
+		} else {
+			if (opcodeType == WebSocketOpcode.CONTINUATION_FRAME) {
+				if (messageType == null) {
+					throw new ProtocolException("unexpected continuation frame");
+				}
+			} else if (opcodeType == WebSocketOpcode.TEXT_FRAME
+					|| opcodeType == WebSocketOpcode.BINARY_FRAME) {
+				if (messageType != null) {
+					throw new ProtocolException(
+							"new message before end of fragmented message");
+				}
+				messageType = opcodeType;
+				messageCompressed = rsv != 0;
+				messageSize = 0;
+			} else {
+				throw new ProtocolException("unknown opcode");
+			}
+			messageSize += frameLength;
+			if (messageSize > maxMessageSize
+					|| (!streaming && messageSize > MAX_ARRAY_SIZE)) {
+				throw new MessageTooBigException("message too big");
+			}
+		}
+		frameOffset = 0;
+		startPart();
+	}
+
+	/**
+	 * Allocate payload data of next part of current frame and go to payload
+	 * data state. Frames are decoded in one part unless streaming mode is
+	 * enabled. Payload of data frames is taken from buffer pool if any :
+	 * control frames payloads may be kept by connection (pong answer) and are
+	 * never pooled.
+	 */
+	private void startPart() {
+		long remaining = frameLength - frameOffset;
+		int length = (int) (streaming ? Math.min(remaining, partSize)
+				: remaining);
+
+		decoderCounter = 0;
+		if (bufferPool != null && !isControlFrame(decoderMessage)) {
+			decoderMessage.setBuffer(bufferPool.acquire(length));
+		} else {
+			decoderMessage.setPayload_length(length);
+			decoderMessage.payloadData = new byte[length];
+		}
+		decoderState = WebSocketStates.PAYLOAD_DATA;
+	}
+
+	/**
+	 * Determine if a frame is a control frame (close, ping, pong)
+	 * 
+	 * @param message
+	 *            frame
+	 * @return true if control frame
+	 */
+	private static boolean isControlFrame(WebSocketMessage message) {
+		return (message.getOPCODE() & 0x08) != 0;
+	}
+
+	/**
+	 * Convert a 2 or 8 bytes payload length to its value
+	 * 
+	 * @param length
+	 *            payload length bytes (network byte order)
+	 * @return payload length value (negative if most significant bit is set)
+	 */
+	private static long toLength(byte[] length) {
+		long value = 0;
+		for (int i = 0; i < length.length; i++) {
+			value = (value << 8) | (length[i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Retrieve mask key to be used for a part starting at a given offset of
+	 * frame payload
+	 * 
+	 * @param mask
+	 *            frame mask key
+	 * @param offset
+	 *            offset of part in frame payload
+	 * @return mask key aligned on part first byte
+	 */
+	private byte[] rotateMask(byte[] mask, long offset) {
+		int shift = (int) (offset & 3);
+		if (shift == 0) {
+			return mask;
+		}
+		for (int i = 0; i < rotatedMask.length; i++) {
+			rotatedMask[i] = mask[(i + shift) & 3];
+		}
+		return rotatedMask;
+	}
+
+	/**
+	 * Decode next websocket message from a byte buffer without blocking.
+	 * Control frames are returned as soon as they are decoded. Fragmented data
+	 * messages are reassembled, or returned part by part in streaming mode
+	 * (message type is then text or binary for all parts and last part is
+	 * flagged with isLastPart()).
+	 * 
+	 * @param buffer
+	 *            buffer containing data read from socket
+	 * @return decoded message or null if more data is needed
+	 * @throws ProtocolException
+	 *             if frame does not respect websocket protocol or message is
+	 *             too big
+	 */
+	public WebSocketMessage readMessage(ByteBuffer buffer)
+			throws ProtocolException {
+		WebSocketMessage part;
+		while ((part = decapsulateFrame(buffer)) != null) {
+			WebSocketMessage message = assemble(part);
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decode next websocket message from a blocking inputstream (see
+	 * readMessage(ByteBuffer))
+	 * 
+	 * @param in
+	 *            inputstream
+	 * @return decoded message or null if end of stream has been reached
+	 * @throws IOException
+	 */
+	public WebSocketMessage readMessage(InputStream in) throws IOException {
+		WebSocketMessage part;
+		while ((part = decapsulateFrame(in)) != null) {
+			WebSocketMessage message = assemble(part);
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reassemble data message parts
+	 * 
+	 * @param part
+	 *            decoded message part
+	 * @return complete message, message part in streaming mode or null if
+	 *         message is not complete
+	 * @throws ProtocolException
+	 *             if compressed data is not valid or message is too big
+	 */
+	private WebSocketMessage assemble(WebSocketMessage part)
+			throws ProtocolException {
+		if (isControlFrame(part)) {
+			return part;
+		}
+		part.setOpcodeType(partMessageType);
+		part.setOPCODE(partMessageType.frameTypeValue);
+
+		if (streaming) {
+			return partCompressed ? decompress(part) : part;
+		}
+		if (part.isLastPart() && assembly == null) {
+			/* message in a single frame */
+			return partCompressed ? decompress(part) : part;
+		}
+		int length = part.getPayload_length();
+
+		if (assembly == null) {
+			assemblyLength = 0;
+			growAssembly(Math.max(length, 1024));
+		}
+		if (assemblyLength + length > assembly.length) {
+			growAssembly((int) Math.min(Math.max(assembly.length * 2L,
+					assemblyLength + length), MAX_ARRAY_SIZE));
+		}
+		System.arraycopy(part.payloadData, 0, assembly, assemblyLength,
+				length);
+		assemblyLength += length;
+
+		if (!part.isLastPart()) {
+			/* part payload has been copied */
+			part.release();
+			return null;
+		}
+		part.releaseBuffer();
+
+		if (assemblyBuffer != null) {
+			assemblyBuffer.setLength(assemblyLength);
+			part.setBuffer(assemblyBuffer);
+		} else {
+			part.payloadData = assemblyLength == assembly.length ? assembly
+					: Arrays.copyOf(assembly, assemblyLength);
+			part.setPayload_length(assemblyLength);
+		}
+		part.setFIN(WebSocketProtocol.FIN & 0xFF);
+		assembly = null;
+		assemblyBuffer = null;
+		assemblyLength = 0;
+		return partCompressed ? decompress(part) : part;
+	}
+
+	/**
+	 * Replace reassembly array with a larger one, taken from buffer pool if
+	 * any. Bytes already reassembled are copied.
+	 *
+	 * @param capacity
+	 *            size of new array
+	 */
+	private void growAssembly(int capacity) {
+		if (bufferPool == null) {
+			assembly = (assembly == null) ? new byte[capacity] : Arrays
+					.copyOf(assembly, capacity);
+			return;
+		}
+		PooledBuffer buffer = bufferPool.acquire(capacity);
+		if (assembly != null) {
+			System.arraycopy(assembly, 0, buffer.array(), 0, assemblyLength);
+			assemblyBuffer.release();
+		}
+		assemblyBuffer = buffer;
+		assembly = buffer.array();
+	}
+
+	/**
+	 * Decompress payload of a message (or message part in streaming mode)
+	 * compressed with permessage-deflate. Decompressed size is checked
+	 * against maximum message size.
+	 * 
+	 * @param part
+	 *            message or message part
+	 * @return message with decompressed payload
+	 * @throws ProtocolException
+	 *             if compressed data is not valid or message is too big
+	 */
+	private WebSocketMessage decompress(WebSocketMessage part)
+			throws ProtocolException {
+		long maxSize = streaming ? maxMessageSize : Math.min(maxMessageSize,
+				MAX_ARRAY_SIZE);
+
+		byte[] data = deflateCodec.decompress(part.payloadData, 0,
+				part.getPayload_length(), part.isLastPart(), maxSize);
+
+		/* compressed payload is not needed anymore */
+		part.releaseBuffer();
+		part.payloadData = data;
+		part.setPayload_length(data.length);
+		part.setRSV(0);
+		return part;
+	}
+
 	/**
 	 * Decapsulate a websocket message from a basic inputstream
 	 * 
@@ -59,124 +804,25 @@ public class WebSocketChannel {
 	 */
 	public byte[] decapsulateMessage(InputStream in) throws IOException,
 			SocketException {
-		/* initialize state machine */
-		int currentState = WebSocketStates.NONE;
-		int sizeCounter = 0;
-		int maskKeyCounter = 0;
-		int payloadLengthCounter = 0;
-
-		/* initialize a brand new wedsocket message object */
-		WebSocketMessage message = new WebSocketMessage();
-
-		/* read one byte from inputstream (block if nothing to be read) */
-		int currentByte;
 		try {
-			while ((currentByte = in.read()) != -1)
-				switch (currentState) {
-				case WebSocketStates.NONE:
-					sizeCounter = 0;
-					currentState = WebSocketStates.FIN_STATE;
-				case WebSocketStates.FIN_STATE:
-					message.setFIN(currentByte & WebSocketProtocol.FIN);
-					currentState = WebSocketStates.RSV_STATE;
-				case WebSocketStates.RSV_STATE:
-					message.setRSV(currentByte & WebSocketProtocol.RSV);
-					currentState = WebSocketStates.OPCODE_STATE;
-				case WebSocketStates.OPCODE_STATE:
-					message.setOPCODE(currentByte & WebSocketProtocol.OPCODE);
-					message.setOpcodeType(WebSocketOpcode
-							.getOpcode((byte) message.getOPCODE()));
-					if (message.getOpcodeType().frameTypeValue == WebSocketOpcode.CONNECTION_CLOSE_FRAME.frameTypeValue) {
-						return null;
-					} else {
-						if (DEBUG)
-							System.out
-									.println("Received websocket message with type : "
-											+ message.getOpcodeType().frameTypeName);
-					}
-					currentState = WebSocketStates.MASK_STATE;
-					break;
-				case WebSocketStates.MASK_STATE:
-					message.setMASK(currentByte & WebSocketProtocol.MASK);
-					currentState = WebSocketStates.PAYLOAD_LENGTH;
-				case WebSocketStates.PAYLOAD_LENGTH:
-					message.setPAYLOAD_LENGTH_FRAME(currentByte
-							& WebSocketProtocol.PAYLOAD_LENGTH);
-					if (message.getPAYLOAD_LENGTH_FRAME() < WebSocketProtocol.PAYLOAD_SIZE_LIMIT1) {
-						message.setPayload_length(message
-								.getPAYLOAD_LENGTH_FRAME());
-						if (message.getMASK() == 0x01) {
-							currentState = WebSocketStates.MASKING_KEY;
-							message.maskKey = new byte[WebSocketProtocol.MASK_KEY_SIZE];
-						} else {
-							message.payloadData = new byte[message
-									.getPayload_length()];
-							currentState = WebSocketStates.PAYLOAD_DATA;
-						}
-					} else if (message.getPAYLOAD_LENGTH_FRAME() == WebSocketProtocol.PAYLOAD_SIZE_LIMIT1) {
-						message.payloadLength = new byte[WebSocketProtocol.PAYLOAD_SIZE_2BYTES];
-						currentState = WebSocketStates.PAYLOAD_LENGTH_2_BYTES;
-					} else {
-						message.payloadLength = new byte[WebSocketProtocol.PAYLOAD_SIZE_8BYTES];
-						currentState = WebSocketStates.PAYLOAD_LENGTH_8_BYTES;
-					}
-					break;
-				case WebSocketStates.PAYLOAD_LENGTH_2_BYTES:
-					message.payloadLength[sizeCounter] = (byte) currentByte;
-					sizeCounter++;
-					if (sizeCounter == WebSocketProtocol.PAYLOAD_SIZE_2BYTES) {
-						message.setPayload_length(message.payloadLength);
-						if (message.getMASK() == 0x01) {
-							currentState = WebSocketStates.MASKING_KEY;
-							message.maskKey = new byte[WebSocketProtocol.MASK_KEY_SIZE];
-						} else {
-							message.payloadData = new byte[message
-									.getPayload_length()];
-							currentState = WebSocketStates.PAYLOAD_DATA;
-						}
-					}
-					break;
-				case WebSocketStates.PAYLOAD_LENGTH_8_BYTES:
-					message.payloadLength[sizeCounter] = (byte) currentByte;
-					sizeCounter++;
-					if (sizeCounter == WebSocketProtocol.PAYLOAD_SIZE_8BYTES) {
-						message.setPayload_length(message.payloadLength);
-						if (message.getMASK() == 0x01) {
-							currentState = WebSocketStates.MASKING_KEY;
-							message.maskKey = new byte[WebSocketProtocol.MASK_KEY_SIZE];
-						} else {
-							message.payloadData = new byte[message
-									.getPayload_length()];
-							currentState = WebSocketStates.PAYLOAD_DATA;
-						}
-					}
-					break;
-				case WebSocketStates.MASKING_KEY:
-					message.maskKey[maskKeyCounter] = (byte) currentByte;
-					maskKeyCounter++;
-					if (maskKeyCounter == WebSocketProtocol.MASK_KEY_SIZE) {
-						message.payloadData = new byte[message
-								.getPayload_length()];
-						currentState = WebSocketStates.PAYLOAD_DATA;
-					}
-					break;
-				case WebSocketStates.PAYLOAD_DATA:
-					message.payloadData[payloadLengthCounter] = (byte) currentByte;
-					payloadLengthCounter++;
-					if (payloadLengthCounter == message.getPayload_length()) {
-						currentState = WebSocketStates.FINISHED_LOADING;
-					} else {
-						break;
-					}
-				case WebSocketStates.FINISHED_LOADING:
-					byte[] data = new byte[] {};
-					if (message.getMASK() == 0x01) {
-						data = unmask(message.payloadData, message.maskKey);
-					} else {
-						data = message.payloadData;
-					}
-					return data;
+			WebSocketMessage message = readMessage(in);
+
+			/* ping and pong frames carry no data */
+			while (message != null
+					&& (message.getOpcodeType() == WebSocketOpcode.PING_FRAME || message
+							.getOpcodeType() == WebSocketOpcode.PONG_FRAME)) {
+				message = readMessage(in);
+			}
+			if (message != null
+					&& message.getOpcodeType() != WebSocketOpcode.CONNECTION_CLOSE_FRAME) {
+				if (message.getBuffer() == null) {
+					return message.payloadData;
 				}
+				byte[] data = Arrays.copyOf(message.payloadData,
+						message.getPayload_length());
+				message.release();
+				return data;
+			}
 		} catch (SocketException e) {
 
 		} catch (Exception e) {
@@ -196,18 +842,37 @@ public class WebSocketChannel {
 	 * j = i MOD 4 transformed-octet-i = original-octet-i XOR
 	 * masking-key-octet-j
 	 * 
-	 * @param maskedData
+	 * Data is unmasked in place, 8 bytes at a time with the mask key repeated
+	 * twice in a long, remaining bytes are unmasked one by one.
+	 * 
+	 * @param data
 	 *            data masked (from client)
+	 * @param offset
+	 *            offset of first masked byte (matching first mask key octet)
+	 * @param length
+	 *            number of bytes to unmask
 	 * @param mask
 	 *            mask id byte array
-	 * @return unmasked data payload
 	 */
-	private byte[] unmask(byte[] maskedData, byte[] mask) {
-		byte[] unmaskedData = new byte[maskedData.length];
-		for (int i = 0; i < maskedData.length; i++) {
-			unmaskedData[i] = (byte) ((maskedData[i] & 0xFF) ^ (mask[i % 4] & 0xFF) & 0xFF);
+	public static void unmask(byte[] data, int offset, int length, byte[] mask) {
+
+		long mask32 = ((mask[0] & 0xFFL) << 24) | ((mask[1] & 0xFFL) << 16)
+				| ((mask[2] & 0xFFL) << 8) | (mask[3] & 0xFFL);
+		long mask64 = (mask32 << 32) | mask32;
+
+		/* big endian view matches byte order of mask key */
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		int end = offset + length;
+		int longEnd = offset + (length & ~7);
+
+		int i = offset;
+		for (; i < longEnd; i += 8) {
+			buffer.putLong(i, buffer.getLong(i) ^ mask64);
+		}
+		for (; i < end; i++) {
+			data[i] ^= mask[(i - offset) & 3];
 		}
-		return unmaskedData;
 	}
 
 	/**
@@ -223,13 +888,565 @@ public class WebSocketChannel {
 	public void encapsulateMessage(String message, OutputStream out)
 			throws IOException, InterruptedException, SocketException {
 
-		WebSocketMessage websocketMessage = new WebSocketMessage(1, 0,
-				WebSocketOpcode.TEXT_FRAME.frameTypeValue, 0, null,
-				message.getBytes("UTF-8"));
-
 		if (DEBUG) {
 			System.out.println("Message sent to websocket : " + message);
 		}
-		this.socketBuffer.separateBlock(websocketMessage.buildMessage(), out);
+		if (bufferPool != null
+				&& message.length() <= bufferPool.getMaxBufferSize()) {
+			/* encode message in a pooled array */
+			PooledBuffer buffer = bufferPool.acquire(ByteUtils
+					.utf8Length(message));
+			try {
+				int length = ByteUtils.encodeUtf8(message, buffer.array(), 0);
+				writeMessage(WebSocketOpcode.TEXT_FRAME.frameTypeValue,
+						buffer.array(), 0, length, out);
+			} finally {
+				buffer.release();
+			}
+			return;
+		}
+		byte[] payload = message.getBytes("UTF-8");
+
+		writeMessage(WebSocketOpcode.TEXT_FRAME.frameTypeValue, payload, 0,
+				payload.length, out);
+	}
+
+	/**
+	 * Write a data message in a single frame, compressed if permessage-deflate
+	 * has been negotiated and message is over compression threshold
+	 * 
+	 * @param opcode
+	 *            opcode frame value (text or binary)
+	 * @param payload
+	 *            array containing message data
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	private void writeMessage(int opcode, byte[] payload, int offset,
+			int length, OutputStream out) throws IOException {
+		DeflateCodec codec = deflateCodec;
+
+		if (codec == null || !codec.shouldCompress(length)) {
+			writeFrame(opcode, payload, offset, length, out);
+			return;
+		}
+		/* compression context must follow the order messages are written in */
+		writeLock.lock();
+		try {
+			byte[] compressed = codec.compress(payload, offset, length);
+			writeFrame(true, WebSocketProtocol.RSV1, opcode, compressed, 0,
+					compressed.length, out);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Send a message read from an inputstream as a sequence of frames (first
+	 * frame followed by continuation frames) without reading the whole
+	 * message in memory. No other message can be sent meanwhile on the same
+	 * outputstream.
+	 * 
+	 * @param in
+	 *            inputstream containing message data (read until end of
+	 *            stream)
+	 * @param binary
+	 *            true for a binary message, false for a text message (UTF-8
+	 *            data)
+	 * @param fragmentSize
+	 *            maximum payload size of each frame
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	public void encapsulateStream(InputStream in, boolean binary,
+			int fragmentSize, OutputStream out) throws IOException {
+
+		byte[] fragment = new byte[fragmentSize];
+		int opcode = binary ? WebSocketOpcode.BINARY_FRAME.frameTypeValue
+				: WebSocketOpcode.TEXT_FRAME.frameTypeValue;
+
+		writeLock.lock();
+		try {
+			boolean fin = false;
+			while (!fin) {
+				int length = readFragment(in, fragment);
+				fin = length < fragment.length;
+
+				writeFrame(fin, opcode, fragment, 0, length, out);
+				opcode = WebSocketOpcode.CONTINUATION_FRAME.frameTypeValue;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Read inputstream until fragment array is full or end of stream has been
+	 * reached
+	 * 
+	 * @param in
+	 *            inputstream
+	 * @param fragment
+	 *            array receiving data
+	 * @return number of bytes read (less than array length only at end of
+	 *         stream)
+	 * @throws IOException
+	 */
+	public static int readFragment(InputStream in, byte[] fragment)
+			throws IOException {
+		int length = 0;
+		while (length < fragment.length) {
+			int count = in.read(fragment, length, fragment.length - length);
+			if (count == -1) {
+				break;
+			}
+			length += count;
+		}
+		return length;
+	}
+
+	/**
+	 * Send a binary message according to websocket protocol. Payload is
+	 * written directly from caller array.
+	 * 
+	 * @param data
+	 *            array containing message data
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	public void encapsulateMessage(byte[] data, int offset, int length,
+			OutputStream out) throws IOException {
+		writeMessage(WebSocketOpcode.BINARY_FRAME.frameTypeValue, data,
+				offset, length, out);
+	}
+
+	/**
+	 * Send a binary message according to websocket protocol. Remaining bytes
+	 * of buffer are sent, buffer position is not modified.
+	 * 
+	 * @param data
+	 *            buffer containing message data
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	public void encapsulateMessage(ByteBuffer data, OutputStream out)
+			throws IOException {
+		if (data.hasArray()) {
+			encapsulateMessage(data.array(),
+					data.arrayOffset() + data.position(), data.remaining(), out);
+		} else {
+			byte[] payload = new byte[data.remaining()];
+			data.duplicate().get(payload);
+			encapsulateMessage(payload, 0, payload.length, out);
+		}
+	}
+
+	/**
+	 * Write a complete frame to outputstream : header is built in a reused
+	 * buffer and payload is written directly from caller array. Small frames
+	 * are gathered in a single write so that header and payload are not sent
+	 * in separate packets.
+	 * 
+	 * @param opcode
+	 *            opcode frame value
+	 * @param payload
+	 *            array containing payload data
+	 * @param offset
+	 *            offset of payload data in array
+	 * @param length
+	 *            payload data length
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	public void writeFrame(int opcode, byte[] payload, int offset, int length,
+			OutputStream out) throws IOException {
+		writeFrame(true, opcode, payload, offset, length, out);
+	}
+
+	/**
+	 * Write a frame which may be a fragment of a message to outputstream (see
+	 * writeFrame(int, byte[], int, int, OutputStream))
+	 * 
+	 * @param fin
+	 *            true if this is the final fragment of message
+	 * @param opcode
+	 *            opcode frame value
+	 * @param payload
+	 *            array containing payload data
+	 * @param offset
+	 *            offset of payload data in array
+	 * @param length
+	 *            payload data length
+	 * @param out
+	 *            outputstream to which it will be sent
+	 * @throws IOException
+	 */
+	public void writeFrame(boolean fin, int opcode, byte[] payload,
+			int offset, int length, OutputStream out) throws IOException {
+		writeFrame(fin, 0, opcode, payload, offset, length, out);
+	}
+
+	/**
+	 * Write a frame with RSV bits set by an extension (see writeFrame(boolean,
+	 * int, byte[], int, int, OutputStream))
+	 */
+	private void writeFrame(boolean fin, int rsv, int opcode, byte[] payload,
+			int offset, int length, OutputStream out) throws IOException {
+
+		long start = metrics != null ? System.nanoTime() : 0;
+
+		writeLock.lock();
+		try {
+			int headerSize = WebSocketMessage.buildHeader(frameBuffer, fin ? 1
+					: 0, rsv, opcode, null, length);
+
+			if (length <= SMALL_FRAME_SIZE) {
+				System.arraycopy(payload, offset, frameBuffer, headerSize,
+						length);
+				socketBuffer.write(frameBuffer, 0, headerSize + length, out);
+			} else {
+				socketBuffer.write(frameBuffer, 0, headerSize, out);
+				socketBuffer.write(payload, offset, length, out);
+			}
+			socketBuffer.flush(out);
+
+			if (metrics != null) {
+				metrics.onFrameSent(opcode, headerSize + length,
+						System.nanoTime() - start);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Build a websocket text frame to be written to a non-blocking channel
+	 * with a gathering write
+	 *
+	 * @param message
+	 *            message string to be sent
+	 * @return frame header buffer followed by payload buffer
+	 * @throws UnsupportedEncodingException
+	 */
+	public static ByteBuffer[] encapsulateFrame(String message)
+			throws UnsupportedEncodingException {
+		byte[] payload = message.getBytes("UTF-8");
+
+		return encapsulateFrame(WebSocketOpcode.TEXT_FRAME.frameTypeValue,
+				payload, 0, payload.length);
+	}
+
+	/**
+	 * Build a websocket text frame in an array taken from a buffer pool : text
+	 * is encoded right after frame header so that frame is written from a
+	 * single buffer
+	 *
+	 * @param message
+	 *            message string to be sent
+	 * @param pool
+	 *            buffer pool
+	 * @return pooled buffer containing the whole frame (caller owns a
+	 *         reference on it)
+	 */
+	public static PooledBuffer encapsulateFrame(String message, BufferPool pool) {
+		int length = ByteUtils.utf8Length(message);
+
+		PooledBuffer buffer = pool.acquire(WebSocketProtocol.MAX_HEADER_SIZE
+				+ length);
+
+		int headerSize = WebSocketMessage.buildHeader(buffer.array(), 1, 0,
+				WebSocketOpcode.TEXT_FRAME.frameTypeValue, null, length);
+		ByteUtils.encodeUtf8(message, buffer.array(), headerSize);
+		buffer.setLength(headerSize + length);
+		return buffer;
+	}
+
+	/**
+	 * Build a websocket binary frame to be written with a gathering write.
+	 * Remaining bytes of buffer are used as payload without being copied,
+	 * buffer position is not modified.
+	 *
+	 * @param data
+	 *            buffer containing message data
+	 * @return frame header buffer followed by payload buffer
+	 */
+	public static ByteBuffer[] encapsulateFrame(ByteBuffer data) {
+		byte[] header = new byte[WebSocketProtocol.MAX_HEADER_SIZE];
+
+		int headerSize = WebSocketMessage.buildHeader(header, 1, 0,
+				WebSocketOpcode.BINARY_FRAME.frameTypeValue, null,
+				data.remaining());
+
+		return new ByteBuffer[] { ByteBuffer.wrap(header, 0, headerSize),
+				data.slice() };
+	}
+
+	/**
+	 * Build a websocket frame to be written to a non-blocking channel with a
+	 * gathering write. Payload is not copied.
+	 *
+	 * @param opcode
+	 *            opcode frame value
+	 * @param payload
+	 *            array containing payload data
+	 * @param offset
+	 *            offset of payload data in array
+	 * @param length
+	 *            payload data length
+	 * @return frame header buffer followed by payload buffer
+	 */
+	public static ByteBuffer[] encapsulateFrame(int opcode, byte[] payload,
+			int offset, int length) {
+		return encapsulateFrame(true, opcode, payload, offset, length);
+	}
+
+	/**
+	 * Build payload of a close frame : status code followed by UTF-8 encoded
+	 * reason, truncated so that payload fits in a control frame
+	 *
+	 * @param code
+	 *            close status code
+	 * @param reason
+	 *            close reason (may be null)
+	 * @return close frame payload
+	 */
+	public static byte[] buildClosePayload(int code, String reason) {
+		byte[] text = reason != null ? reason.getBytes(StandardCharsets.UTF_8)
+				: new byte[0];
+		int length = Math.min(text.length,
+				WebSocketProtocol.PAYLOAD_SIZE_LIMIT1 - 3);
+
+		/* do not cut a multi-byte character */
+		while (length < text.length && length > 0
+				&& (text[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		byte[] payload = new byte[2 + length];
+		payload[0] = (byte) (code >> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, length);
+		return payload;
+	}
+
+	/**
+	 * Retrieve status code of a close frame
+	 *
+	 * @param payload
+	 *            close frame payload
+	 * @return status code, NO_STATUS_RECEIVED if payload is empty or -1 if
+	 *         status code is not valid
+	 */
+	public static int getCloseCode(byte[] payload) {
+		if (payload.length == 0) {
+			return WebSocketCloseCode.NO_STATUS_RECEIVED;
+		}
+		if (payload.length == 1) {
+			return -1;
+		}
+		int code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+		return WebSocketCloseCode.isValid(code) ? code : -1;
+	}
+
+	/**
+	 * Retrieve reason of a close frame
+	 *
+	 * @param payload
+	 *            close frame payload
+	 * @return close reason (empty if none)
+	 */
+	public static String getCloseReason(byte[] payload) {
+		if (payload.length <= 2) {
+			return "";
+		}
+		return new String(payload, 2, payload.length - 2,
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build a websocket frame which may be a fragment of a message to be
+	 * written with a gathering write. Payload is not copied.
+	 *
+	 * @param fin
+	 *            true if this is the final fragment of message
+	 * @param opcode
+	 *            opcode frame value
+	 * @param payload
+	 *            array containing payload data
+	 * @param offset
+	 *            offset of payload data in array
+	 * @param length
+	 *            payload data length
+	 * @return frame header buffer followed by payload buffer
+	 */
+	public static ByteBuffer[] encapsulateFrame(boolean fin, int opcode,
+			byte[] payload, int offset, int length) {
+		return encapsulateFrame(fin, 0, opcode, payload, offset, length);
+	}
+
+	/**
+	 * Build a websocket frame with RSV bits set by an extension (see
+	 * encapsulateFrame(boolean, int, byte[], int, int))
+	 */
+	private static ByteBuffer[] encapsulateFrame(boolean fin, int rsv,
+			int opcode, byte[] payload, int offset, int length) {
+		byte[] header = new byte[WebSocketProtocol.MAX_HEADER_SIZE];
+
+		int headerSize = WebSocketMessage.buildHeader(header, fin ? 1 : 0,
+				rsv, opcode, null, length);
+
+		return new ByteBuffer[] { ByteBuffer.wrap(header, 0, headerSize),
+				ByteBuffer.wrap(payload, offset, length) };
+	}
+
+	/**
+	 * Build a data frame compressed with negotiated permessage-deflate codec
+	 * to be written with a gathering write. Caller must queue frames in the
+	 * order they have been compressed.
+	 *
+	 * @param opcode
+	 *            opcode frame value (text or binary)
+	 * @param payload
+	 *            array containing message data
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @return frame header buffer followed by compressed payload buffer
+	 * @throws IOException
+	 *             if codec has been closed
+	 */
+	public ByteBuffer[] encapsulateCompressedFrame(int opcode, byte[] payload,
+			int offset, int length) throws IOException {
+		byte[] compressed = deflateCodec.compress(payload, offset, length);
+
+		return encapsulateFrame(true, WebSocketProtocol.RSV1, opcode,
+				compressed, 0, compressed.length);
+	}
+
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
+	/**
+	 * Set permessage-deflate settings to be negotiated in handshake (null to
+	 * disable compression)
+	 * 
+	 * @param perMessageDeflate
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
+	public DeflateCodec getDeflateCodec() {
+		return deflateCodec;
+	}
+
+	/**
+	 * Set compression state negotiated in handshake : received messages with
+	 * RSV1 bit are decompressed and sent messages are compressed
+	 * 
+	 * @param deflateCodec
+	 */
+	public void setDeflateCodec(DeflateCodec deflateCodec) {
+		this.deflateCodec = deflateCodec;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Set maximum size of a received message (sum of payload length of its
+	 * frames) : a bigger message is rejected with a ProtocolException before
+	 * its payload is read (default is DEFAULT_MAX_MESSAGE_SIZE,
+	 * Long.MAX_VALUE for no limit)
+	 * 
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Deliver received data messages in parts of at most part size bytes as
+	 * they arrive instead of reassembling them
+	 * 
+	 * @param streaming
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set pool providing payload arrays of decoded data frames and arrays of
+	 * encoded text messages. Decoded messages must then be released once
+	 * processed (see WebSocketMessage.release())
+	 * 
+	 * @param bufferPool
+	 *            buffer pool (null to allocate a new array for each frame)
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Retrieve lock held while writing frames to outputstream : other writers
+	 * of the same outputstream must hold it
+	 * 
+	 * @return write lock
+	 */
+	public ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+
+	public IWebsocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set metrics notified of decoded frames and of frames written to
+	 * outputstream (send latency includes time spent waiting for write lock)
+	 * 
+	 * @param metrics
+	 *            metrics (null to disable)
+	 */
+	public void setMetrics(IWebsocketMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Set maximum size of message parts delivered in streaming mode (at least
+	 * 125 bytes so that control frames are never split)
+	 * 
+	 * @param partSize
+	 */
+	public void setPartSize(int partSize) {
+		this.partSize = Math.max(partSize,
+				WebSocketProtocol.PAYLOAD_SIZE_LIMIT1 - 1);
 	}
 }
@@ -1,19 +1,19 @@
 package fr.bmartel.protocol.websocket;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.Arrays;
+import java.util.Base64;
 
 import fr.bmartel.protocol.http.HttpFrame;
-import fr.bmartel.protocol.http.HttpResponseFrame;
-import fr.bmartel.protocol.http.HttpVersion;
-import fr.bmartel.protocol.http.StatusCodeObject;
 import fr.bmartel.protocol.http.constants.HttpHeader;
-import fr.bmartel.protocol.http.constants.MediaType;
-import fr.bmartel.protocol.http.constants.StatusCodeList;
 import fr.bmartel.protocol.http.states.HttpStates;
 import fr.bmartel.protocol.websocket.constants.WebSocketHeader;
 
@@ -33,6 +33,99 @@ public class WebSocketHandshake {
 	 */
 	public static String GLOBAL_UID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 
+	/** maximum size of http headers read before upgrade */
+	public final static int MAX_HANDSHAKE_SIZE = 8192;
+
+	/** size of Sec-WebSocket-Accept value (base64 of a SHA-1 digest) */
+	private final static int ACCEPT_SIZE = 28;
+
+	/** 101 response up to Sec-WebSocket-Accept value */
+	private final static byte[] RESPONSE_HEAD = ("HTTP/1.1 101 Switching Protocols\r\n"
+			+ "Upgrade: websocket\r\n"
+			+ "Connection: Upgrade\r\n"
+			+ "Sec-WebSocket-Accept: ").getBytes(StandardCharsets.ISO_8859_1);
+
+	/** extensions header of 101 response (preceded by end of accept line) */
+	private final static byte[] RESPONSE_EXTENSIONS = "\r\nSec-WebSocket-Extensions: "
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	/** end of last header line and empty line ending 101 response */
+	private final static byte[] RESPONSE_END = "\r\n\r\n"
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * SHA-1 digest and buffers computing accept keys, one per thread :
+	 * MessageDigest.getInstance() is not called for each connection
+	 */
+	private final static ThreadLocal<AcceptKeyEncoder> ACCEPT_KEY_ENCODER = new ThreadLocal<AcceptKeyEncoder>() {
+
+		@Override
+		protected AcceptKeyEncoder initialValue() {
+			return new AcceptKeyEncoder();
+		}
+	};
+
+	/**
+	 * Compute Sec-WebSocket-Accept value from Sec-WebSocket-Key without
+	 * allocating (instances are confined to a thread)
+	 */
+	private static class AcceptKeyEncoder {
+
+		/** SHA-1 digest reset after each computation */
+		private final MessageDigest sha1;
+
+		/** GUID appended to websocket key */
+		private final byte[] uid = GLOBAL_UID
+				.getBytes(StandardCharsets.ISO_8859_1);
+
+		/** websocket key followed by GUID */
+		private byte[] input = new byte[64];
+
+		/** SHA-1 of input */
+		private final byte[] digest = new byte[20];
+
+		/** base64 of digest */
+		private final byte[] accept = new byte[ACCEPT_SIZE];
+
+		private AcceptKeyEncoder() {
+			try {
+				sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				/* every JRE must support SHA-1 */
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Compute accept value
+		 * 
+		 * @param websocketKey
+		 *            Sec-WebSocket-Key value
+		 * @return array containing accept value (overwritten by next call)
+		 */
+		private byte[] encode(String websocketKey) {
+			int length = websocketKey.length() + uid.length;
+
+			if (length > input.length) {
+				input = new byte[length];
+			}
+			/* key is base64 : chars are ascii */
+			for (int i = 0; i < websocketKey.length(); i++) {
+				input[i] = (byte) websocketKey.charAt(i);
+			}
+			System.arraycopy(uid, 0, input, websocketKey.length(), uid.length);
+
+			sha1.update(input, 0, length);
+			try {
+				sha1.digest(digest, 0, digest.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			Base64.getEncoder().encode(digest, accept);
+			return accept;
+		}
+	}
+
 	/**
 	 * HTTP headers for web socket protocol handshake
 	 * 
@@ -43,16 +136,65 @@ public class WebSocketHandshake {
 	 * @return http headers for handshake
 	 */
 	public static String buildWebsocketHandshakeResponse(String key) {
-		HttpVersion version = new HttpVersion(1, 1);
-		StatusCodeObject returnCode = StatusCodeList.SWITCHING_PROTOCOL;
-		HashMap<String, String> headers = new HashMap<String, String>();
-		headers.put(HttpHeader.CONTENT_TYPE, MediaType.APPLICATION_JSON_CHARSET);
-		headers.put(HttpHeader.UPGRADE, "websocket");
-		headers.put(HttpHeader.CONNECTION, "Upgrade");
-		headers.put(WebSocketHeader.SEC_WEBSOCKET_ACCEPT, key);
-		HttpResponseFrame httpFrame = new HttpResponseFrame(returnCode,
-				version, headers, new byte[] {});
-		return httpFrame.toString();
+		return buildWebsocketHandshakeResponse(key, null);
+	}
+
+	/**
+	 * HTTP headers for web socket protocol handshake accepting extensions
+	 * 
+	 * @param key
+	 *            Nonce that has been generated and that must be sent to browser
+	 *            to prevent from middle-attack
+	 * @param extensions
+	 *            extensions accepted by server (null if none)
+	 * 
+	 * @return http headers for handshake
+	 */
+	public static String buildWebsocketHandshakeResponse(String key,
+			String extensions) {
+		byte[] accept = key.getBytes(StandardCharsets.ISO_8859_1);
+		return new String(buildResponse(accept, accept.length, extensions),
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Build 101 response in a single pre-sized array from template
+	 * 
+	 * @param accept
+	 *            array containing Sec-WebSocket-Accept value
+	 * @param acceptLength
+	 *            Sec-WebSocket-Accept value length
+	 * @param extensions
+	 *            extensions accepted by server (null if none)
+	 * @return response to be written to socket
+	 */
+	private static byte[] buildResponse(byte[] accept, int acceptLength,
+			String extensions) {
+		int size = RESPONSE_HEAD.length + acceptLength + RESPONSE_END.length;
+		if (extensions != null) {
+			size += RESPONSE_EXTENSIONS.length + extensions.length();
+		}
+		byte[] response = new byte[size];
+
+		System.arraycopy(RESPONSE_HEAD, 0, response, 0, RESPONSE_HEAD.length);
+		int offset = RESPONSE_HEAD.length;
+
+		System.arraycopy(accept, 0, response, offset, acceptLength);
+		offset += acceptLength;
+
+		if (extensions != null) {
+			System.arraycopy(RESPONSE_EXTENSIONS, 0, response, offset,
+					RESPONSE_EXTENSIONS.length);
+			offset += RESPONSE_EXTENSIONS.length;
+
+			/* extension header is built by server : chars are ascii */
+			for (int i = 0; i < extensions.length(); i++) {
+				response[offset++] = (byte) extensions.charAt(i);
+			}
+		}
+		System.arraycopy(RESPONSE_END, 0, response, offset,
+				RESPONSE_END.length);
+		return response;
 	}
 
 	/**
@@ -65,17 +207,57 @@ public class WebSocketHandshake {
 	 * @return http headers for handshake
 	 */
 	public static String buildWebsocketHandshakeRequest(String key) {
-		HttpVersion version = new HttpVersion(1, 1);
-		StatusCodeObject returnCode = StatusCodeList.SWITCHING_PROTOCOL;
-		HashMap<String, String> headers = new HashMap<String, String>();
-		headers.put(HttpHeader.CONTENT_TYPE, MediaType.APPLICATION_JSON_CHARSET);
-		headers.put(HttpHeader.UPGRADE, "websocket");
-		headers.put(HttpHeader.CONNECTION, "Upgrade");
-		headers.put(WebSocketHeader.SC_WEBSOCKET_KEY, key);
-
-		HttpResponseFrame httpFrame = new HttpResponseFrame(returnCode,
-				version, headers, new byte[] {});
-		return httpFrame.toString();
+		return buildWebsocketHandshakeRequest(key, null);
+	}
+
+	/**
+	 * HTTP headers for web socket protocol handshake request offering
+	 * extensions
+	 * 
+	 * @param key
+	 *            Nonce that has been generated and that must be sent to browser
+	 *            to prevent from middle-attack
+	 * @param extensions
+	 *            extensions offered by client (null if none)
+	 * 
+	 * @return http headers for handshake
+	 */
+	public static String buildWebsocketHandshakeRequest(String key,
+			String extensions) {
+		return buildWebsocketHandshakeRequest(null, key, extensions);
+	}
+
+	/**
+	 * HTTP upgrade request sent to server
+	 * 
+	 * @param host
+	 *            Host header value (host:port, null to omit it)
+	 * @param key
+	 *            Nonce that has been generated and that must be sent to browser
+	 *            to prevent from middle-attack
+	 * @param extensions
+	 *            extensions offered by client (null if none)
+	 * 
+	 * @return http upgrade request
+	 */
+	public static String buildWebsocketHandshakeRequest(String host,
+			String key, String extensions) {
+		StringBuilder request = new StringBuilder(256);
+		request.append("GET / HTTP/1.1\r\n");
+		if (host != null) {
+			request.append("Host: ").append(host).append("\r\n");
+		}
+		request.append("Upgrade: websocket\r\n");
+		request.append("Connection: Upgrade\r\n");
+		request.append(WebSocketHeader.SC_WEBSOCKET_KEY).append(": ")
+				.append(key).append("\r\n");
+		request.append(WebSocketHeader.SEC_WEBSOCKET_VERSION).append(": 13\r\n");
+		if (extensions != null) {
+			request.append(WebSocketHeader.SEC_WEBSOCKET_EXTENSIONS)
+					.append(": ").append(extensions).append("\r\n");
+		}
+		request.append("\r\n");
+		return request.toString();
 	}
 
 	/**
@@ -88,29 +270,59 @@ public class WebSocketHandshake {
 	 */
 	public static String writeWebSocketHandShake(HttpFrame httpFrameParser)
 			throws UnsupportedEncodingException {
+		return writeWebSocketHandShake(httpFrameParser, null);
+	}
 
-		/* build response according to Websocket protocol */
-		String websocketKey = httpFrameParser.getHeaders().get(
-				WebSocketHeader.SC_WEBSOCKET_KEY.toLowerCase());
-
-		/* concat websocket key and global unique identifier */
-		String keysConcat = websocketKey + "" + WebSocketHandshake.GLOBAL_UID;
-
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
-		byte[] dig1 = new byte[20];
+	/**
+	 * Build a complete new handshake response accepting extensions
+	 * 
+	 * @param httpFrameParser
+	 *            http request content
+	 * @param extensions
+	 *            extensions accepted by server (null if none)
+	 * @return http handshake response to be sent to browser
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String writeWebSocketHandShake(HttpFrame httpFrameParser,
+			String extensions) throws UnsupportedEncodingException {
+		return new String(buildHandshakeResponse(httpFrameParser, extensions),
+				StandardCharsets.ISO_8859_1);
+	}
 
-		dig1 = md.digest(keysConcat.getBytes("iso-8859-1"));
-		String websocketclientNonce = new String(Base64.encodeBase64(dig1),
-				"UTF-8");
+	/**
+	 * Build handshake response accepting extensions, ready to be written to
+	 * socket
+	 * 
+	 * @param httpFrameParser
+	 *            http request content
+	 * @param extensions
+	 *            extensions accepted by server (null if none)
+	 * @return http handshake response
+	 */
+	public static byte[] buildHandshakeResponse(HttpFrame httpFrameParser,
+			String extensions) {
+		return buildHandshakeResponse(
+				httpFrameParser.getHeaders().get(
+						WebSocketHeader.SC_WEBSOCKET_KEY.toLowerCase()),
+				extensions);
+	}
 
-		/* send response for websocket handshake */
-		return WebSocketHandshake
-				.buildWebsocketHandshakeResponse(websocketclientNonce);
+	/**
+	 * Build handshake response accepting extensions, ready to be written to
+	 * socket. Accept key is computed with a digest cached per thread and
+	 * response is copied from a template into a single array.
+	 * 
+	 * @param websocketKey
+	 *            Sec-WebSocket-Key value of upgrade request
+	 * @param extensions
+	 *            extensions accepted by server (null if none)
+	 * @return http handshake response
+	 */
+	public static byte[] buildHandshakeResponse(String websocketKey,
+			String extensions) {
+		byte[] accept = ACCEPT_KEY_ENCODER.get().encode(
+				websocketKey != null ? websocketKey : "");
+		return buildResponse(accept, ACCEPT_SIZE, extensions);
 	}
 
 	/**
@@ -122,24 +334,8 @@ public class WebSocketHandshake {
 	 */
 	public static String retrieveWebsocketAccept(String websocketKey)
 			throws UnsupportedEncodingException {
-
-		/* concat websocket key and global unique identifier */
-		String keysConcat = websocketKey + "" + WebSocketHandshake.GLOBAL_UID;
-
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
-		byte[] dig1 = new byte[20];
-
-		dig1 = md.digest(keysConcat.getBytes("iso-8859-1"));
-
-		String websocketclientNonce = new String(Base64.encodeBase64(dig1),
-				"UTF-8");
-
-		return websocketclientNonce;
+		return new String(ACCEPT_KEY_ENCODER.get().encode(websocketKey), 0,
+				ACCEPT_SIZE, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -173,4 +369,61 @@ public class WebSocketHandshake {
 		return false;
 	}
 
+	/**
+	 * Read http headers from input stream up to the empty line ending them.
+	 * Data is read in bulk : bytes following the headers (frames sent right
+	 * after handshake response) are given back to websocket decoder.
+	 * 
+	 * Http parser blocks on socket while holding its monitor which would pin
+	 * virtual threads to their carrier : headers are read here and parser is
+	 * fed with the in-memory copy.
+	 * 
+	 * @param inputStream
+	 *            socket input stream
+	 * @param decoder
+	 *            websocket decoder reading frames following the headers
+	 *            (null to discard them)
+	 * @return stream containing headers read (truncated on end of stream or
+	 *         when exceeding MAX_HANDSHAKE_SIZE)
+	 * @throws IOException
+	 */
+	public static InputStream readHttpHeaders(InputStream inputStream,
+			WebSocketChannel decoder) throws IOException {
+
+		byte[] headers = new byte[512];
+
+		int length = 0;
+
+		int scanned = 0;
+
+		while (length < MAX_HANDSHAKE_SIZE) {
+
+			if (length == headers.length) {
+				headers = Arrays.copyOf(headers,
+						Math.min(headers.length * 2, MAX_HANDSHAKE_SIZE));
+			}
+			int count = inputStream.read(headers, length, headers.length
+					- length);
+
+			if (count == -1) {
+				break;
+			}
+			length += count;
+
+			for (int i = Math.max(scanned - 3, 0); i + 3 < length; i++) {
+				if (headers[i] == '\r' && headers[i + 1] == '\n'
+						&& headers[i + 2] == '\r' && headers[i + 3] == '\n') {
+
+					if (decoder != null) {
+						decoder.unread(ByteBuffer.wrap(headers, i + 4, length
+								- i - 4));
+					}
+					return new ByteArrayInputStream(headers, 0, i + 4);
+				}
+			}
+			scanned = length;
+		}
+		return new ByteArrayInputStream(headers, 0, length);
+	}
+
 }
@@ -2,7 +2,7 @@ package fr.bmartel.protocol.websocket;
 
 import fr.bmartel.protocol.websocket.constants.WebSocketProtocol;
 import fr.bmartel.protocol.websocket.socketutils.FrameTypeObject;
-import fr.bmartel.protocol.websocket.utils.ByteUtils;
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
 
 
 /**
@@ -65,12 +65,92 @@ public class WebSocketMessage {
 	 */
 	private FrameTypeObject opcodeType;
 
+	/**
+	 * define if this is the last part of a message received in several parts
+	 * (always true for control frames and complete messages)
+	 */
+	private boolean lastPart = true;
+
+	/** pooled buffer holding payload data (null if payload is not pooled) */
+	private PooledBuffer buffer = null;
+
+	/** decoder reusing this message once released (null if not reused) */
+	WebSocketChannel owner = null;
+
 	/**
 	 * Default constructor for websocket message object
 	 */
 	public WebSocketMessage() {
 	}
 
+	/**
+	 * Clear state of a message being reused by decoder (mask key and payload
+	 * length arrays are kept to be reused)
+	 */
+	void reset() {
+		FIN_FRAME = 0;
+		RSV_FRAME = 0;
+		OPCODE_FRAME = 0;
+		MASK_FRAME = 0;
+		PAYLOAD_LENGTH_FRAME = 0;
+		payloadLengthValue = 0;
+		payloadData = null;
+		opcodeType = null;
+		lastPart = true;
+		buffer = null;
+	}
+
+	/**
+	 * Retrieve pooled buffer holding payload data. Payload data array is then
+	 * larger than payload : only first getPayload_length() bytes are valid.
+	 * 
+	 * @return pooled buffer or null if payload is not pooled
+	 */
+	public PooledBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Set pooled buffer holding payload data : payload data and payload
+	 * length are taken from buffer
+	 * 
+	 * @param buffer
+	 *            pooled buffer (message owns a reference on it)
+	 */
+	public void setBuffer(PooledBuffer buffer) {
+		this.buffer = buffer;
+		this.payloadData = buffer.array();
+		this.payloadLengthValue = buffer.length();
+	}
+
+	/**
+	 * Release pooled buffer holding payload data once message has been
+	 * processed : neither message nor its payload must be used afterwards.
+	 * Does nothing if payload is not pooled.
+	 */
+	public void release() {
+		if (releaseBuffer() && owner != null) {
+			owner.recycle(this);
+		}
+	}
+
+	/**
+	 * Release pooled buffer holding payload data while message is still in
+	 * use (payload data is about to be replaced)
+	 * 
+	 * @return true if a pooled buffer has been released
+	 */
+	boolean releaseBuffer() {
+		PooledBuffer released = buffer;
+		if (released == null) {
+			return false;
+		}
+		buffer = null;
+		payloadData = null;
+		released.release();
+		return true;
+	}
+
 	/**
 	 * Websocket builder for building a new websocket message
 	 * 
@@ -106,61 +186,64 @@ public class WebSocketMessage {
 	 * @return byte array to be sent to outputstream
 	 * */
 	public byte[] buildMessage() {
-		int mask_size = 0;
-		int lengthIndicator = 0;
-		byte[] lengthSize;
+		byte[] header = new byte[WebSocketProtocol.MAX_HEADER_SIZE];
 
-		if (this.MASK_FRAME == 0x01) {
-			mask_size = WebSocketProtocol.MASK_KEY_SIZE;
-		}
+		int headerSize = buildHeader(header, this.FIN_FRAME, this.RSV_FRAME,
+				this.OPCODE_FRAME, (this.MASK_FRAME == 0x01) ? this.maskKey
+						: null, this.payloadData.length);
+
+		byte[] message = new byte[headerSize + this.payloadData.length];
+		System.arraycopy(header, 0, message, 0, headerSize);
+		System.arraycopy(this.payloadData, 0, message, headerSize,
+				this.payloadData.length);
+		return message;
+	}
+
+	/**
+	 * Write a frame header (2 to 14 bytes) at the beginning of header array
+	 * 
+	 * @param header
+	 *            array of at least WebSocketProtocol.MAX_HEADER_SIZE bytes
+	 * @param fin
+	 *            fin frame value
+	 * @param rsv
+	 *            rsv frame value
+	 * @param opcode
+	 *            opcode frame value
+	 * @param maskKey
+	 *            mask key value (null if payload is not masked)
+	 * @param payloadLength
+	 *            length of payload data following the header
+	 * @return number of bytes written in header array
+	 */
+	public static int buildHeader(byte[] header, int fin, int rsv,
+			int opcode, byte[] maskKey, long payloadLength) {
+
+		int mask = (maskKey != null) ? WebSocketProtocol.MASK & 0xFF : 0;
+		int size = 2;
 
-		/* offset for number of bytes defining length */
+		header[0] = (byte) ((fin << 7) + (rsv << 4) + opcode);
 
 		/* FFFF = 65536 => 8 bytes for payload data length */
-		if (this.payloadData.length > 65535) {
-
-			byte[] array = new byte[8];
-			lengthIndicator = WebSocketProtocol.PAYLOAD_SIZE_LIMIT2;
-			int left = this.payloadData.length;
-			int unit = 256;
-			for (int i = 8; i > 0; i--) {
-				array[i - 1] = (byte) (left % unit);
-				left = left / unit;
-
-				if (left == 0)
-					break;
+		if (payloadLength > 65535) {
+			header[1] = (byte) (mask + WebSocketProtocol.PAYLOAD_SIZE_LIMIT2);
+			for (int i = 0; i < WebSocketProtocol.PAYLOAD_SIZE_8BYTES; i++) {
+				header[size++] = (byte) (payloadLength >>> (8 * (7 - i)));
 			}
-			lengthSize = new byte[] { array[0], array[1], array[2], array[3],
-					array[4], array[5], array[6], array[7] };
-		} else if (this.payloadData.length > 125) {
+		} else if (payloadLength > 125) {
 			/* 01111111 == 127 max */
-			byte[] array = ByteUtils
-					.convertIntToByte2Array(this.payloadData.length);
-			lengthIndicator = WebSocketProtocol.PAYLOAD_SIZE_LIMIT1;
-			lengthSize = new byte[] { array[0], array[1] };
+			header[1] = (byte) (mask + WebSocketProtocol.PAYLOAD_SIZE_LIMIT1);
+			header[size++] = (byte) (payloadLength >>> 8);
+			header[size++] = (byte) payloadLength;
 		} else {
-			lengthIndicator = this.payloadData.length;
-			lengthSize = new byte[] {};
+			header[1] = (byte) (mask + payloadLength);
 		}
-		byte[] message = new byte[1 + 1 + lengthSize.length + mask_size
-				+ this.payloadData.length];
-		message[0] = (byte) ((this.FIN_FRAME << 7) + (this.RSV_FRAME << 4) + (this.OPCODE_FRAME));
-		message[1] = (byte) ((this.MASK_FRAME << 7) + lengthIndicator);
-		for (int i = 0; i < lengthSize.length; i++) {
-			message[i + 2] = lengthSize[i];
-		}
-		if (mask_size != 0) {
-			message[2 + lengthSize.length] = this.maskKey[0];
-			message[2 + lengthSize.length + 1] = this.maskKey[1];
-			message[2 + lengthSize.length + 2] = this.maskKey[2];
-			message[2 + lengthSize.length + 3] = this.maskKey[3];
-			System.arraycopy(this.payloadData, 0, message,
-					2 + lengthSize.length + 4, this.payloadData.length);
-		} else {
-			System.arraycopy(this.payloadData, 0, message,
-					2 + lengthSize.length, this.payloadData.length);
+		if (maskKey != null) {
+			System.arraycopy(maskKey, 0, header, size,
+					WebSocketProtocol.MASK_KEY_SIZE);
+			size += WebSocketProtocol.MASK_KEY_SIZE;
 		}
-		return message;
+		return size;
 	}
 
 	/**
@@ -307,6 +390,25 @@ public class WebSocketMessage {
 		this.payloadLengthValue = payload_length;
 	}
 
+	/**
+	 * Determine if this is the last part of a message received in several
+	 * parts
+	 * 
+	 * @return true if message is complete with this part
+	 */
+	public boolean isLastPart() {
+		return lastPart;
+	}
+
+	/**
+	 * Set if this is the last part of a message received in several parts
+	 * 
+	 * @param lastPart
+	 */
+	public void setLastPart(boolean lastPart) {
+		this.lastPart = lastPart;
+	}
+
 	/**
 	 * Set data payload length with a byte array as parameters
 	 * 
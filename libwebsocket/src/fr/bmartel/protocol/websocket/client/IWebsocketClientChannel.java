@@ -1,5 +1,10 @@
 package fr.bmartel.protocol.websocket.client;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
 
 public interface IWebsocketClientChannel {
 
@@ -8,6 +13,35 @@ public interface IWebsocketClientChannel {
 	 */
 	public void closeSocket();
 
+	/**
+	 * Start close handshake : close frame is sent to server and socket is
+	 * closed once server has answered (or close timeout has expired). No
+	 * message can be sent afterwards.
+	 * 
+	 * @param code
+	 *            close status code (see WebSocketCloseCode)
+	 * @param reason
+	 *            close reason (truncated to 123 bytes)
+	 * @return 0 if close frame has been sent -1 otherwise
+	 */
+	public int close(int code, String reason);
+
+	/**
+	 * Retrieve status code of connection closing (sent by client or received
+	 * from server)
+	 * 
+	 * @return close status code, ABNORMAL_CLOSURE if no close frame has been
+	 *         exchanged
+	 */
+	public int getCloseCode();
+
+	/**
+	 * Retrieve reason of connection closing
+	 * 
+	 * @return close reason (empty if none)
+	 */
+	public String getCloseReason();
+
 	/**
 	 * Write data to client socket outputstream
 	 * 
@@ -16,6 +50,57 @@ public interface IWebsocketClientChannel {
 	 */
 	public int writeMessage(String message);
 
+	/**
+	 * Write a binary message to client socket outputstream. Data is written
+	 * directly from caller array.
+	 * 
+	 * @param data
+	 *            array containing message data
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @return 0 if success -1 if error
+	 */
+	public int writeMessage(byte[] data, int offset, int length);
+
+	/**
+	 * Write remaining bytes of a buffer as a binary message to client socket
+	 * outputstream (buffer position is not modified)
+	 * 
+	 * @param data
+	 *            buffer containing message data
+	 * @return 0 if success -1 if error
+	 */
+	public int writeMessage(ByteBuffer data);
+
+	/**
+	 * Write a message read from an inputstream as a sequence of fragments
+	 * without reading the whole message in memory
+	 * 
+	 * @param in
+	 *            inputstream containing message data (read until end of
+	 *            stream)
+	 * @param binary
+	 *            true for a binary message, false for a text message (UTF-8
+	 *            data)
+	 * @return 0 if success -1 if error
+	 */
+	public int writeStream(InputStream in, boolean binary);
+
+	/**
+	 * Write a message read from a channel as a sequence of fragments without
+	 * reading the whole message in memory
+	 * 
+	 * @param in
+	 *            channel containing message data (read until end of stream)
+	 * @param binary
+	 *            true for a binary message, false for a text message (UTF-8
+	 *            data)
+	 * @return 0 if success -1 if error
+	 */
+	public int writeStream(ReadableByteChannel in, boolean binary);
+
 	/**
 	 * connect to client socket
 	 * 
@@ -54,4 +139,16 @@ public interface IWebsocketClientChannel {
 	 * @param socketTimeout
 	 */
 	public void setSocketTimeout(int socketTimeout);
+
+	/**
+	 * Keep payload of binary message being delivered to listener after
+	 * listener returns : when a buffer pool is used, payload goes back to pool
+	 * once listeners return unless it has been retained. Must be called from
+	 * listener.
+	 * 
+	 * @return pooled buffer holding payload, to be released once message has
+	 *         been processed, or null if payload is not pooled (buffer
+	 *         received by listener may then be kept as is)
+	 */
+	public PooledBuffer retainMessage();
 }
@@ -1,5 +1,7 @@
 package fr.bmartel.protocol.websocket.client;
 
+import java.nio.ByteBuffer;
+
 /**
  * 
  * Websocket client event listener used to be notified of all websocket client's
@@ -31,4 +33,16 @@ public interface IWebsocketClientEventListener {
 	 */
 	public void onIncomingMessageReceived(byte[] data,
 			IWebsocketClientChannel channel);
+
+	/**
+	 * incoming binary message has arrived from server
+	 * 
+	 * @param data
+	 *            incoming data (buffer wraps received payload without copy)
+	 * @param channel
+	 *            websocket client channel object used generally to write back
+	 *            to the server (or close the connection)
+	 */
+	public void onIncomingBinaryMessageReceived(ByteBuffer data,
+			IWebsocketClientChannel channel);
 }
@@ -1,29 +1,41 @@
 package fr.bmartel.protocol.websocket.client;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadFactory;
 
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.SSLSocket;
 
 import fr.bmartel.protocol.http.HttpFrame;
 import fr.bmartel.protocol.http.states.HttpStates;
+import fr.bmartel.protocol.websocket.MessageTooBigException;
 import fr.bmartel.protocol.websocket.WebSocketChannel;
 import fr.bmartel.protocol.websocket.WebSocketHandshake;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+import fr.bmartel.protocol.websocket.constants.WebSocketHeader;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
+import fr.bmartel.protocol.websocket.extensions.PerMessageDeflate;
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
+import fr.bmartel.protocol.websocket.socketutils.SSLContextCache;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+import fr.bmartel.protocol.websocket.socketutils.WebsocketThreadFactory;
 
 public class WebsocketClient implements IWebsocketClientChannel {
 	/**
@@ -76,12 +88,43 @@ public class WebsocketClient implements IWebsocketClientChannel {
 	 */
 	private String trustorePassword = "";
 
+	/**
+	 * SSL context shared with other clients (null to build it from ssl
+	 * parameters)
+	 */
+	private SSLContext sslContext = null;
+
+	/** define if TLS handshake of last connection has resumed a session */
+	private volatile boolean sessionResumed = false;
+
 	/**
 	 * define socket timeout (-1 if no timeout defined)
 	 */
 	private int socketTimeout = -1;
 
-	private WebSocketChannel websocketChannel = new WebSocketChannel();
+	/** socket buffer used to write to socket */
+	private SocketBuffer socketBuffer = new SocketBuffer();
+
+	/** maximum size of a message received from server */
+	private long maxMessageSize = WebSocketChannel.DEFAULT_MAX_MESSAGE_SIZE;
+
+	/** pool of frame payload arrays (may be null) */
+	private BufferPool bufferPool = null;
+
+	/** message being delivered to listeners (accessed by reading thread) */
+	private WebSocketMessage deliveredMessage = null;
+
+	/** permessage-deflate settings (null if compression is not offered) */
+	private PerMessageDeflate perMessageDeflate = null;
+
+	/** metrics notified of handshake, frames and closing (may be null) */
+	private IWebsocketMetrics metrics = null;
+
+	/** maximum payload size of frames written with writeStream() */
+	private final static int STREAM_FRAGMENT_SIZE = 64 * 1024;
+
+	private WebSocketChannel websocketChannel = new WebSocketChannel(
+			socketBuffer);
 
 	/**
 	 * socket object
@@ -98,6 +141,25 @@ public class WebsocketClient implements IWebsocketClientChannel {
 
 	private volatile boolean websocket = false;
 
+	/** factory creating socket reading thread */
+	private ThreadFactory threadFactory = new WebsocketThreadFactory(
+			"websocket-reader", false);
+
+	/** default time in milliseconds given to server to answer close frame */
+	public final static int DEFAULT_CLOSE_TIMEOUT = 5000;
+
+	/** time in milliseconds given to server to answer close frame */
+	private int closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+	/** define if close frame has been sent (no more message may be sent) */
+	private volatile boolean closeSent = false;
+
+	/** status code of connection closing */
+	private volatile int closeCode = WebSocketCloseCode.ABNORMAL_CLOSURE;
+
+	/** reason of connection closing */
+	private volatile String closeReason = "";
+
 	/**
 	 * Build Client socket
 	 * 
@@ -125,56 +187,15 @@ public class WebsocketClient implements IWebsocketClientChannel {
 		try {
 
 			if (ssl) {
-				/* initial server keystore instance */
-				KeyStore ks = KeyStore.getInstance(keystoreDefaultType);
-
-				/* load keystore from file */
-				ks.load(new FileInputStream(keystoreFile),
-						keystorePassword.toCharArray());
-
-				/*
-				 * assign a new keystore containing all certificated to be
-				 * trusted
-				 */
-				KeyStore tks = KeyStore.getInstance(trustoreDefaultType);
-
-				/* load this keystore from file */
-				tks.load(new FileInputStream(trustoreFile),
-						trustorePassword.toCharArray());
-
-				/* initialize key manager factory with chosen algorithm */
-				KeyManagerFactory kmf = KeyManagerFactory
-						.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-
-				/* initialize trust manager factory with chosen algorithm */
-				TrustManagerFactory tmf;
-
-				tmf = TrustManagerFactory.getInstance(TrustManagerFactory
-						.getDefaultAlgorithm());
-
-				/* initialize key manager factory with initial keystore */
-				kmf.init(ks, keystorePassword.toCharArray());
-
-				/*
-				 * initialize trust manager factory with keystore containing
-				 * certificates to be trusted
-				 */
-				tmf.init(tks);
-
-				/* get SSL context chosen algorithm */
-				SSLContext ctx = SSLContext.getInstance(sslProtocol);
-
-				/*
-				 * initialize SSL context with key manager and trust managers
-				 */
-				ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-				SSLSocketFactory sslserversocketfactory = ctx
-						.getSocketFactory();
+				/* keystores are loaded once for all clients using them */
+				SSLContext ctx = sslContext != null ? sslContext
+						: SSLContextCache.getContext(keystoreDefaultType,
+								trustoreDefaultType, keystoreFile,
+								trustoreFile, sslProtocol, keystorePassword,
+								trustorePassword);
 
 				/* create a SSL socket connection */
-				socket = new Socket();
-				socket = sslserversocketfactory.createSocket();
+				socket = ctx.getSocketFactory().createSocket();
 
 			} else {
 
@@ -187,19 +208,58 @@ public class WebsocketClient implements IWebsocketClientChannel {
 
 			socket.setKeepAlive(true);
 
+			socketBuffer.configureSocket(socket);
+
 			if (socketTimeout != -1) {
 				socket.setSoTimeout(socketTimeout);
 			}
 
 			socket.connect(new InetSocketAddress(hostname, port));
 
+			if (socket instanceof SSLSocket) {
+				long tlsStart = System.nanoTime();
+
+				sessionResumed = SSLContextCache
+						.startHandshake((SSLSocket) socket);
+
+				if (metrics != null) {
+					metrics.onTlsHandshake(sessionResumed, System.nanoTime()
+							- tlsStart);
+				}
+			}
+
 			if (readingThread != null) {
 				websocket = false;
 				readingThread.join();
 			}
 
 			websocket = false;
-			readingThread = new Thread(new Runnable() {
+			closeSent = false;
+			closeCode = WebSocketCloseCode.ABNORMAL_CLOSURE;
+			closeReason = "";
+
+			/* reading thread keeps its own socket reference */
+			final Socket connection = socket;
+
+			/* decoder may contain data buffered from previous connection */
+			websocketChannel = new WebSocketChannel(socketBuffer);
+			websocketChannel.setMaxMessageSize(maxMessageSize);
+			websocketChannel.setPerMessageDeflate(perMessageDeflate);
+			websocketChannel.setBufferPool(bufferPool);
+			websocketChannel.setMetrics(metrics);
+
+			/* reading thread keeps metrics of this connection */
+			final IWebsocketMetrics connectionMetrics = metrics;
+
+			final long handshakeStart = System.nanoTime();
+
+			readingThread = threadFactory.newThread(new Runnable() {
+
+				/** define if opening handshake has succeeded */
+				private boolean connected = false;
+
+				/** define if close frame has been received from server */
+				private boolean closeReceived = false;
 
 				@Override
 				public void run() {
@@ -208,17 +268,28 @@ public class WebsocketClient implements IWebsocketClientChannel {
 							try {
 								HttpFrame frame = new HttpFrame();
 
-								HttpStates httpStates = frame.parseHttp(socket
-										.getInputStream());
+								HttpStates httpStates = frame
+										.parseHttp(WebSocketHandshake
+												.readHttpHeaders(connection
+														.getInputStream(),
+														websocketChannel));
 
 								// check handshake response from websocket
 								// server
 								if (WebSocketHandshake
 										.isValidHandshakeResponse(frame,
 												httpStates,
-												websocketResponseExpected)) {
+												websocketResponseExpected)
+										&& acceptExtensions(frame)) {
 
 									websocket = true;
+									connected = true;
+
+									if (connectionMetrics != null) {
+										connectionMetrics.onHandshake(true,
+												System.nanoTime()
+														- handshakeStart);
+									}
 
 									for (int i = 0; i < clientListenerList
 											.size(); i++) {
@@ -226,8 +297,13 @@ public class WebsocketClient implements IWebsocketClientChannel {
 												.onSocketConnected();
 									}
 								} else {
+									if (connectionMetrics != null) {
+										connectionMetrics.onHandshake(false,
+												System.nanoTime()
+														- handshakeStart);
+									}
 									websocket = false;
-									closeSocket();
+									closeSocket(connection);
 								}
 							} catch (SocketException e) {
 								e.printStackTrace();
@@ -240,31 +316,57 @@ public class WebsocketClient implements IWebsocketClientChannel {
 
 							try {
 								/* read something on websocket stream */
-								byte[] data = websocketChannel
-										.decapsulateMessage(socket
+								WebSocketMessage message = websocketChannel
+										.readMessage(connection
 												.getInputStream());
 
-								if (data == null) {
-									closeSocket();
+								if (message == null) {
+									closeSocket(connection);
+									websocket = false;
+								} else if (message.getOpcodeType() == WebSocketOpcode.CONNECTION_CLOSE_FRAME) {
+									closeReceived = true;
+									receiveClose(message.payloadData,
+											connection);
+									closeSocket(connection);
 									websocket = false;
+								} else if (message.getOpcodeType() == WebSocketOpcode.PING_FRAME) {
+									// answer server keepalive ping
+									websocketChannel
+											.writeFrame(
+													WebSocketOpcode.PONG_FRAME.frameTypeValue,
+													message.payloadData, 0,
+													message.payloadData.length,
+													connection
+															.getOutputStream());
 								} else {
-									// incoming data message received
-									for (int i = 0; i < clientListenerList
-											.size(); i++) {
-										clientListenerList.get(i)
-												.onIncomingMessageReceived(
-														data,
-														WebsocketClient.this);
-									}
+									deliverMessage(message);
 								}
+							} catch (ProtocolException e) {
+								/* server broke websocket protocol */
+								sendClose(
+										e instanceof MessageTooBigException ? ((MessageTooBigException) e)
+												.getCloseCode()
+												: WebSocketCloseCode.PROTOCOL_ERROR,
+										e.getMessage(), connection);
+								closeSocket(connection);
+								websocket = false;
 							} catch (Exception e) {
-								closeSocket();
+								closeSocket(connection);
 								websocket = false;
 							}
 						}
 					} while (websocket == true);
 
 					// socket is closed
+					if (connected && connectionMetrics != null) {
+						connectionMetrics.onConnectionClosed(
+								closeReceived ? closeCode
+										: WebSocketCloseCode.ABNORMAL_CLOSURE,
+								closeReceived && closeSent);
+					}
+					if (websocketChannel.getDeflateCodec() != null) {
+						websocketChannel.getDeflateCodec().close();
+					}
 					for (int i = 0; i < clientListenerList.size(); i++) {
 						clientListenerList.get(i).onSocketClosed();
 					}
@@ -280,28 +382,236 @@ public class WebsocketClient implements IWebsocketClientChannel {
 					.retrieveWebsocketAccept(websocketKey);
 
 			write(WebSocketHandshake.buildWebsocketHandshakeRequest(
-					websocketKey).getBytes("UTF-8"));
+					hostname + ":" + port, websocketKey,
+					perMessageDeflate != null ? perMessageDeflate.getOffer()
+							: null).getBytes("UTF-8"));
 
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (UnrecoverableKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (KeyStoreException e) {
-			// TODO Auto-generated catch block
+		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
-		} catch (CertificateException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (KeyManagementException e) {
-			// TODO Auto-generated catch block
+		}
+	}
+
+	/**
+	 * Check extensions accepted by server : compression is enabled if
+	 * permessage-deflate has been accepted
+	 * 
+	 * @param frame
+	 *            handshake response
+	 * @return false if server response does not match extensions offered
+	 */
+	private boolean acceptExtensions(HttpFrame frame) {
+		String extensions = frame.getHeaders().get(
+				WebSocketHeader.SEC_WEBSOCKET_EXTENSIONS.toLowerCase());
+		if (perMessageDeflate == null) {
+			return extensions == null || extensions.trim().isEmpty();
+		}
+		try {
+			websocketChannel.setDeflateCodec(perMessageDeflate
+					.accept(extensions));
+		} catch (ProtocolException e) {
 			e.printStackTrace();
+			return false;
 		}
+		return true;
+	}
+
+	/**
+	 * Deliver a data message received from server to listeners, then release
+	 * message : a pooled payload goes back to buffer pool unless a listener
+	 * has retained it. Text payload is copied if it is pooled.
+	 * 
+	 * @param message
+	 *            decoded websocket message
+	 */
+	private void deliverMessage(WebSocketMessage message) {
+		deliveredMessage = message;
+		try {
+			PooledBuffer buffer = message.getBuffer();
+
+			if (message.getOpcodeType() == WebSocketOpcode.BINARY_FRAME) {
+				// incoming binary message received
+				for (int i = 0; i < clientListenerList.size(); i++) {
+					clientListenerList.get(i).onIncomingBinaryMessageReceived(
+							buffer != null ? buffer.buffer() : ByteBuffer
+									.wrap(message.payloadData), this);
+				}
+			} else if (message.getOpcodeType() == WebSocketOpcode.TEXT_FRAME) {
+				// incoming data message received
+				byte[] data = buffer != null ? Arrays.copyOf(
+						message.payloadData, message.getPayload_length())
+						: message.payloadData;
+
+				for (int i = 0; i < clientListenerList.size(); i++) {
+					clientListenerList.get(i).onIncomingMessageReceived(data,
+							this);
+				}
+			}
+		} finally {
+			deliveredMessage = null;
+			message.release();
+		}
+	}
+
+	@Override
+	public PooledBuffer retainMessage() {
+		WebSocketMessage message = deliveredMessage;
+		if (message == null || message.getBuffer() == null) {
+			return null;
+		}
+		return message.getBuffer().retain();
+	}
+
+	/**
+	 * Handle a close frame received from server : close frame is answered
+	 * with the same status code if client has not started close handshake
+	 * 
+	 * @param payload
+	 *            close frame payload
+	 * @param connection
+	 *            socket close frame has been received on
+	 */
+	private void receiveClose(byte[] payload, Socket connection) {
+		int code = WebSocketChannel.getCloseCode(payload);
+
+		if (sendClose(code < 0 ? WebSocketCloseCode.PROTOCOL_ERROR : code, "",
+				connection)) {
+			closeCode = code < 0 ? WebSocketCloseCode.PROTOCOL_ERROR : code;
+			closeReason = WebSocketChannel.getCloseReason(payload);
+		}
+	}
+
+	/**
+	 * Write close frame : no message may be sent afterwards
+	 * 
+	 * @param code
+	 *            close status code (NO_STATUS_RECEIVED for an empty close
+	 *            frame)
+	 * @param reason
+	 *            close reason
+	 * @param connection
+	 *            socket close frame is written to
+	 * @return true if close frame has been written, false if it has already
+	 *         been sent or connection is lost
+	 */
+	private boolean sendClose(int code, String reason, Socket connection) {
+		WebSocketChannel channel = websocketChannel;
+
+		/* no message may be written after close frame */
+		channel.getWriteLock().lock();
+		try {
+			if (closeSent) {
+				return false;
+			}
+			closeSent = true;
+			closeCode = code;
+			closeReason = reason != null ? reason : "";
+
+			byte[] payload = code == WebSocketCloseCode.NO_STATUS_RECEIVED ? new byte[0]
+					: WebSocketChannel.buildClosePayload(code, reason);
+
+			channel.writeFrame(
+					WebSocketOpcode.CONNECTION_CLOSE_FRAME.frameTypeValue,
+					payload, 0, payload.length, connection.getOutputStream());
+		} catch (IOException e) {
+			return false;
+		} finally {
+			channel.getWriteLock().unlock();
+		}
+		return true;
+	}
+
+	@Override
+	public int close(int code, String reason) {
+		Socket connection = socket;
+
+		if (!websocket || connection == null
+				|| !WebSocketCloseCode.isValid(code)) {
+			return -1;
+		}
+		if (!sendClose(code, reason, connection)) {
+			return -1;
+		}
+		try {
+			/* reading thread waits for server to answer and close connection */
+			connection.setSoTimeout(closeTimeout);
+		} catch (SocketException e) {
+			closeSocket(connection);
+		}
+		return 0;
+	}
+
+	@Override
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	@Override
+	public String getCloseReason() {
+		return closeReason;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Set factory creating socket reading thread (applies to next connection)
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Read socket with a virtual thread (JDK 21+) : applies to next
+	 * connection
+	 * 
+	 * @return false if JVM does not support virtual threads (a platform
+	 *         thread is kept)
+	 */
+	public boolean useVirtualThreads() {
+		ThreadFactory factory = WebsocketThreadFactory
+				.newVirtualThreadFactory("websocket-reader");
+		if (factory == null) {
+			return false;
+		}
+		this.threadFactory = factory;
+		return true;
+	}
+
+	public int getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	/**
+	 * Set time in milliseconds given to server to answer close frame sent by
+	 * close(int, String) before socket is closed (default is 5 seconds)
+	 * 
+	 * @param closeTimeout
+	 */
+	public void setCloseTimeout(int closeTimeout) {
+		this.closeTimeout = closeTimeout;
+	}
+
+	/**
+	 * Retrieve outputstream used to write a message
+	 * 
+	 * @return socket outputstream
+	 * @throws IOException
+	 *             if connection is closed or close frame has been sent
+	 */
+	private OutputStream getOutputStream() throws IOException {
+		Socket connection = socket;
+
+		if (connection == null || closeSent) {
+			throw new IOException("connection closed");
+		}
+		return connection.getOutputStream();
 	}
 
 	/**
@@ -316,10 +626,7 @@ public class WebsocketClient implements IWebsocketClientChannel {
 
 	private int write(final byte[] data) {
 		try {
-			synchronized (socket.getOutputStream()) {
-				socket.getOutputStream().write(data);
-				socket.getOutputStream().flush();
-			}
+			socketBuffer.separateBlock(data, getOutputStream());
 		} catch (IOException e) {
 			e.printStackTrace();
 			return -1;
@@ -331,7 +638,7 @@ public class WebsocketClient implements IWebsocketClientChannel {
 	public int writeMessage(String message) {
 		try {
 			this.websocketChannel.encapsulateMessage(message,
-					socket.getOutputStream());
+					getOutputStream());
 		} catch (IOException | InterruptedException e) {
 			e.printStackTrace();
 			return -1;
@@ -339,17 +646,73 @@ public class WebsocketClient implements IWebsocketClientChannel {
 		return 0;
 	}
 
+	@Override
+	public int writeMessage(byte[] data, int offset, int length) {
+		try {
+			this.websocketChannel.encapsulateMessage(data, offset, length,
+					getOutputStream());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		return 0;
+	}
+
+	@Override
+	public int writeMessage(ByteBuffer data) {
+		try {
+			this.websocketChannel.encapsulateMessage(data,
+					getOutputStream());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		return 0;
+	}
+
+	@Override
+	public int writeStream(InputStream in, boolean binary) {
+		try {
+			this.websocketChannel.encapsulateStream(in, binary,
+					STREAM_FRAGMENT_SIZE, getOutputStream());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		return 0;
+	}
+
+	@Override
+	public int writeStream(ReadableByteChannel in, boolean binary) {
+		return writeStream(Channels.newInputStream(in), binary);
+	}
+
 	@Override
 	public void closeSocket() {
-		if (socket != null) {
-			try {
-				socket.getOutputStream().close();
-				socket.getInputStream().close();
-				socket.close();
-			} catch (IOException e) {
+		closeSocket(socket);
+	}
+
+	/**
+	 * Close a socket : socket reference is cleared only if it has not been
+	 * replaced by a new connection meanwhile (socket may be closed by reading
+	 * thread and by library user at the same time)
+	 * 
+	 * @param connection
+	 *            socket to be closed
+	 */
+	private void closeSocket(Socket connection) {
+		if (connection == null) {
+			return;
+		}
+		synchronized (this) {
+			if (socket == connection) {
+				socket = null;
 			}
 		}
-		socket = null;
+		try {
+			connection.close();
+		} catch (IOException e) {
+		}
 	}
 
 	@Override
@@ -367,7 +730,8 @@ public class WebsocketClient implements IWebsocketClientChannel {
 
 	@Override
 	public boolean isConnected() {
-		if (socket != null && socket.isConnected())
+		Socket connection = socket;
+		if (connection != null && connection.isConnected())
 			return true;
 		return false;
 	}
@@ -383,10 +747,110 @@ public class WebsocketClient implements IWebsocketClientChannel {
 		clientListenerList.clear();
 	}
 
+	/**
+	 * Get socket buffer used to write to socket : used to configure block size
+	 * and socket send buffer size and to retrieve number of bytes and write
+	 * calls issued
+	 * 
+	 * @return socket buffer
+	 */
+	public SocketBuffer getSocketBuffer() {
+		return socketBuffer;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Set maximum size of a message received from server (default is 16 MB,
+	 * Long.MAX_VALUE for no limit) : connection is closed if server sends a
+	 * bigger message. Applies from next connection.
+	 * 
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set pool providing arrays for payloads received from server and text
+	 * messages sent to server (default is none : a new array is allocated for
+	 * each frame). Binary payload delivered to a listener is then only valid
+	 * until listener returns unless retained with retainMessage(). Applies
+	 * from next connection.
+	 * 
+	 * @param bufferPool
+	 *            buffer pool (null to disable pooling)
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
+	public IWebsocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set metrics notified of handshake, frames received and written (send
+	 * latency is time spent writing a frame) and connection closing (null to
+	 * disable, default). Applies from next connection.
+	 * 
+	 * @param metrics
+	 *            metrics (see WebsocketMetrics for default implementation)
+	 */
+	public void setMetrics(IWebsocketMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Offer permessage-deflate compression to server (null to disable).
+	 * Applies from next connection.
+	 * 
+	 * @param perMessageDeflate
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
 	public void setSsl(boolean ssl) {
 		this.ssl = ssl;
 	}
 
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Set SSL context used for ssl connections instead of the one built from
+	 * ssl parameters (null to use ssl parameters, default). Clients sharing
+	 * a context share its session cache and resume TLS sessions of each
+	 * other. Applies from next connection.
+	 * 
+	 * @param sslContext
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Define if TLS handshake of last ssl connection has resumed a previous
+	 * session instead of doing a full handshake
+	 * 
+	 * @return true if session has been resumed
+	 */
+	public boolean isSessionResumed() {
+		return sessionResumed;
+	}
+
 	/**
 	 * Set ssl parameters
 	 * 
@@ -0,0 +1,58 @@
+package fr.bmartel.protocol.websocket.constants;
+
+/**
+ * Websocket close status code list (RFC 6455 section 7.4)
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class WebSocketCloseCode {
+
+	/** normal closure : purpose of connection has been fulfilled */
+	public final static int NORMAL_CLOSURE = 1000;
+
+	/** endpoint is going away (server shutdown, browser leaving page) */
+	public final static int GOING_AWAY = 1001;
+
+	/** endpoint received a frame not respecting protocol */
+	public final static int PROTOCOL_ERROR = 1002;
+
+	/** endpoint received a type of data it cannot accept */
+	public final static int UNSUPPORTED_DATA = 1003;
+
+	/** no status code was present in close frame (never sent) */
+	public final static int NO_STATUS_RECEIVED = 1005;
+
+	/** connection closed without close frame (never sent) */
+	public final static int ABNORMAL_CLOSURE = 1006;
+
+	/** message data not consistent with message type */
+	public final static int INVALID_PAYLOAD = 1007;
+
+	/** message violates endpoint policy */
+	public final static int POLICY_VIOLATION = 1008;
+
+	/** message too big to be processed */
+	public final static int MESSAGE_TOO_BIG = 1009;
+
+	/** client expected server to negotiate an extension */
+	public final static int MANDATORY_EXTENSION = 1010;
+
+	/** server encountered an unexpected condition */
+	public final static int INTERNAL_ERROR = 1011;
+
+	/**
+	 * Check if a status code may be sent in a close frame : reserved codes
+	 * and codes not assigned by RFC are rejected, codes 3000-4999 are left to
+	 * libraries and applications
+	 *
+	 * @param code
+	 *            close status code
+	 * @return true if code is valid in a close frame
+	 */
+	public static boolean isValid(int code) {
+		return (code >= NORMAL_CLOSURE && code <= UNSUPPORTED_DATA)
+				|| (code >= INVALID_PAYLOAD && code <= INTERNAL_ERROR)
+				|| (code >= 3000 && code <= 4999);
+	}
+}
@@ -17,4 +17,14 @@ public class WebSocketHeader {
 	 * Websocket key for websocket protocol handshake
 	 */
 	public static final String SC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+
+	/**
+	 * Extensions offered by client / accepted by server (permessage-deflate)
+	 */
+	public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+
+	/**
+	 * Websocket protocol version sent by client
+	 */
+	public static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
 }
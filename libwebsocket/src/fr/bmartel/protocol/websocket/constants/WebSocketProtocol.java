@@ -14,6 +14,12 @@ public class WebSocketProtocol {
 	/** RSV_FRAME mask */
 	public final static byte RSV = (byte) 0b01110000;
 
+	/**
+	 * RSV1 bit value of RSV_FRAME (set on first frame of messages compressed
+	 * with permessage-deflate)
+	 */
+	public final static int RSV1 = 0b100;
+
 	/** OPCODE_FRAME mask */
 	public final static byte OPCODE = (byte) 0b00001111;
 
@@ -44,4 +50,10 @@ public class WebSocketProtocol {
 	 * paylad length value
 	 */
 	public final static int PAYLOAD_SIZE_LIMIT2 = 127;
+
+	/**
+	 * maximum size of a frame header : 2 bytes + 8 bytes of payload length + 4
+	 * bytes of mask key
+	 */
+	public final static int MAX_HEADER_SIZE = 14;
 }
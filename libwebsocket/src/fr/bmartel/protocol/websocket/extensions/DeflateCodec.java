@@ -0,0 +1,388 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.extensions;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fr.bmartel.protocol.websocket.MessageTooBigException;
+
+/**
+ * <b>permessage-deflate compression state of a connection</b>
+ *
+ * Compression and decompression may be called from different threads but
+ * each of them must be serialized by caller in the order messages are sent /
+ * received. With context takeover, a message which has been compressed must
+ * be sent : its data is referenced by next messages.
+ *
+ * @author Bertrand Martel
+ */
+public class DeflateCodec {
+
+	/** empty deflate block removed from end of compressed messages */
+	private final static byte[] TAIL = new byte[] { 0x00, 0x00, (byte) 0xFF,
+			(byte) 0xFF };
+
+	/** settings this codec has been negotiated with */
+	private final PerMessageDeflate settings;
+
+	/** reset compression state after each sent message */
+	private final boolean compressNoContextTakeover;
+
+	/** peer resets its compression state after each message */
+	private final boolean decompressNoContextTakeover;
+
+	/** negotiated Sec-WebSocket-Extensions value */
+	private final String extension;
+
+	/** compressor of this connection (context takeover only) */
+	private Deflater deflater = null;
+
+	/** decompressor of this connection */
+	private Inflater inflater = null;
+
+	/** locks protecting compressor and decompressor against close() */
+	private final Object compressLock = new Object();
+	private final Object decompressLock = new Object();
+
+	/** define if codec has been closed */
+	private boolean closed = false;
+
+	/** define if a message is being decompressed part by part */
+	private boolean decompressing = false;
+
+	/** decompressed size of message being decompressed part by part */
+	private long decompressedSize = 0;
+
+	/**
+	 * Build compression state of a connection
+	 *
+	 * @param settings
+	 *            settings this codec has been negotiated with
+	 * @param compressNoContextTakeover
+	 *            reset compression state after each sent message
+	 * @param decompressNoContextTakeover
+	 *            peer resets its compression state after each message
+	 * @param extension
+	 *            negotiated Sec-WebSocket-Extensions value
+	 */
+	DeflateCodec(PerMessageDeflate settings, boolean compressNoContextTakeover,
+			boolean decompressNoContextTakeover, String extension) {
+		this.settings = settings;
+		this.compressNoContextTakeover = compressNoContextTakeover;
+		this.decompressNoContextTakeover = decompressNoContextTakeover;
+		this.extension = extension;
+	}
+
+	/**
+	 * Determine if a message is worth compressing (statistics are updated
+	 * for messages sent uncompressed)
+	 *
+	 * @param length
+	 *            payload length
+	 * @return true if message must be compressed
+	 */
+	public boolean shouldCompress(int length) {
+		if (length < settings.getThreshold()) {
+			settings.recordUncompressed();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compress a message payload
+	 *
+	 * @param data
+	 *            array containing payload
+	 * @param offset
+	 *            offset of payload in array
+	 * @param length
+	 *            payload length
+	 * @return compressed payload (without trailing empty block)
+	 * @throws IOException
+	 *             if codec has been closed
+	 */
+	public byte[] compress(byte[] data, int offset, int length)
+			throws IOException {
+		long start = System.nanoTime();
+
+		byte[] output = settings.scratchBuffer();
+		int count = 0;
+
+		synchronized (compressLock) {
+			if (closed) {
+				throw new IOException("connection closed");
+			}
+			Deflater compressor = compressNoContextTakeover ? settings
+					.pooledDeflater() : connectionDeflater();
+			try {
+				compressor.setInput(data, offset, length);
+				while (true) {
+					count += compressor.deflate(output, count, output.length
+							- count, Deflater.SYNC_FLUSH);
+					if (count < output.length) {
+						break;
+					}
+					/* output may be pending : give more room */
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+			} finally {
+				if (compressNoContextTakeover) {
+					compressor.reset();
+				}
+			}
+		}
+		if (endsWithTail(output, count)) {
+			count -= TAIL.length;
+		}
+		byte[] compressed = Arrays.copyOf(output, count);
+
+		settings.recordCompressed(length, count, System.nanoTime() - start);
+		return compressed;
+	}
+
+	/**
+	 * Decompress a message payload, or a part of it when message is
+	 * delivered part by part
+	 *
+	 * @param data
+	 *            array containing compressed data
+	 * @param offset
+	 *            offset of compressed data in array
+	 * @param length
+	 *            compressed data length
+	 * @param last
+	 *            true if this is the end of message
+	 * @param maxSize
+	 *            maximum decompressed size of message
+	 * @return decompressed data
+	 * @throws ProtocolException
+	 *             if data is not valid or message is too big
+	 */
+	public byte[] decompress(byte[] data, int offset, int length,
+			boolean last, long maxSize) throws ProtocolException {
+		long start = System.nanoTime();
+
+		synchronized (decompressLock) {
+			if (closed) {
+				throw new ProtocolException("connection closed");
+			}
+			/*
+			 * pooled inflater may only be used for a whole message : other
+			 * connections use it meanwhile
+			 */
+			boolean pooled = decompressNoContextTakeover && !decompressing
+					&& last;
+			Inflater decompressor = pooled ? settings.pooledInflater()
+					: connectionInflater();
+
+			long limit = maxSize - decompressedSize;
+			Output output = new Output((int) Math.min(
+					Math.max(length * 4L, 1024), Math.max(limit, 0)));
+			try {
+				inflate(decompressor, data, offset, length, output, limit);
+				if (last) {
+					inflate(decompressor, TAIL, 0, TAIL.length, output, limit);
+				}
+			} catch (DataFormatException e) {
+				decompressor.reset();
+				throw new ProtocolException("invalid compressed data");
+			} catch (ProtocolException e) {
+				decompressor.reset();
+				throw e;
+			} finally {
+				if (last && decompressNoContextTakeover) {
+					decompressor.reset();
+				}
+			}
+			decompressing = !last;
+			decompressedSize = last ? 0 : decompressedSize + output.length;
+
+			settings.recordDecompressed(length, output.length,
+					System.nanoTime() - start, last);
+			return output.length == output.data.length ? output.data : Arrays
+					.copyOf(output.data, output.length);
+		}
+	}
+
+	/**
+	 * Growing array receiving decompressed data
+	 */
+	private static class Output {
+
+		private byte[] data;
+
+		private int length = 0;
+
+		private Output(int capacity) {
+			data = new byte[capacity];
+		}
+	}
+
+	/**
+	 * Decompress data into output until all input has been consumed
+	 *
+	 * @param decompressor
+	 *            inflater
+	 * @param data
+	 *            compressed data
+	 * @param offset
+	 *            offset of compressed data in array
+	 * @param length
+	 *            compressed data length
+	 * @param output
+	 *            decompressed data
+	 * @param limit
+	 *            maximum decompressed size
+	 * @throws DataFormatException
+	 * @throws ProtocolException
+	 *             if decompressed data exceeds limit
+	 */
+	private static void inflate(Inflater decompressor, byte[] data,
+			int offset, int length, Output output, long limit)
+			throws DataFormatException, ProtocolException {
+		decompressor.setInput(data, offset, length);
+
+		while (true) {
+			if (output.length == output.data.length) {
+				if (output.length >= limit) {
+					/* no room left : any more output is too much */
+					if (decompressor.inflate(new byte[1]) == 0
+							&& decompressor.needsInput()) {
+						return;
+					}
+					throw new MessageTooBigException("message too big");
+				}
+				output.data = Arrays.copyOf(output.data, (int) Math.min(
+						Math.max(output.data.length * 2L, 1024), Math.min(
+								limit, Integer.MAX_VALUE - 8)));
+			}
+			int space = output.data.length - output.length;
+			int count = decompressor.inflate(output.data, output.length,
+					space);
+			output.length += count;
+
+			if (decompressor.finished()) {
+				/* final block : following data belongs to no stream */
+				decompressor.reset();
+				return;
+			}
+			if (count < space
+					&& (decompressor.needsInput() || decompressor
+							.needsDictionary())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Determine if compressed data ends with an empty deflate block
+	 *
+	 * @param data
+	 *            compressed data
+	 * @param length
+	 *            compressed data length
+	 * @return true if last 4 bytes are 00 00 FF FF
+	 */
+	private static boolean endsWithTail(byte[] data, int length) {
+		if (length < TAIL.length) {
+			return false;
+		}
+		for (int i = 0; i < TAIL.length; i++) {
+			if (data[length - TAIL.length + i] != TAIL[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieve compressor of this connection (lock must be held)
+	 *
+	 * @return deflater keeping its state between messages
+	 */
+	private Deflater connectionDeflater() {
+		if (deflater == null) {
+			deflater = settings.newDeflater();
+		}
+		return deflater;
+	}
+
+	/**
+	 * Retrieve decompressor of this connection (lock must be held)
+	 *
+	 * @return inflater of this connection
+	 */
+	private Inflater connectionInflater() {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		return inflater;
+	}
+
+	/**
+	 * Release native memory of this connection compressor and decompressor
+	 */
+	public void close() {
+		synchronized (compressLock) {
+			synchronized (decompressLock) {
+				closed = true;
+				if (deflater != null) {
+					deflater.end();
+					deflater = null;
+				}
+				if (inflater != null) {
+					inflater.end();
+					inflater = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retrieve negotiated extension to be sent in server handshake response
+	 *
+	 * @return Sec-WebSocket-Extensions header value
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	public boolean isCompressNoContextTakeover() {
+		return compressNoContextTakeover;
+	}
+
+	public boolean isDecompressNoContextTakeover() {
+		return decompressNoContextTakeover;
+	}
+
+	public PerMessageDeflate getSettings() {
+		return settings;
+	}
+}
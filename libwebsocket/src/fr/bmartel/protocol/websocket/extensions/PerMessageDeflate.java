@@ -0,0 +1,539 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.extensions;
+
+import java.net.ProtocolException;
+import java.util.HashSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <b>permessage-deflate extension settings (RFC 7692)</b>
+ *
+ * Negotiate compression of data messages in websocket handshake and gather
+ * compression statistics of all connections using these settings. Messages
+ * smaller than compression threshold are sent uncompressed.
+ *
+ * Deflater / inflater instances hold about 300 KB of native memory : when
+ * context takeover is disabled, compression state is not kept between
+ * messages and instances are pooled per thread instead of being allocated
+ * for each connection.
+ *
+ * java.util.zip does not allow reducing LZ77 window size : offers requiring
+ * server_max_window_bits (or client_max_window_bits in server response) under
+ * 15 are declined.
+ *
+ * @author Bertrand Martel
+ */
+public class PerMessageDeflate {
+
+	/** extension name used in Sec-WebSocket-Extensions header */
+	public final static String EXTENSION_NAME = "permessage-deflate";
+
+	/** extension parameters */
+	private final static String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private final static String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private final static String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private final static String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+	/** LZ77 window size used by java.util.zip */
+	private final static int MAX_WINDOW_BITS = 15;
+
+	/** smallest window size allowed by RFC 7692 */
+	private final static int MIN_WINDOW_BITS = 8;
+
+	/** default payload size under which messages are sent uncompressed */
+	public final static int DEFAULT_THRESHOLD = 256;
+
+	/** size of per thread buffer receiving compressed data */
+	private final static int SCRATCH_SIZE = 64 * 1024;
+
+	/** deflate compression level (0-9 or Deflater.DEFAULT_COMPRESSION) */
+	private final int compressionLevel;
+
+	/** payload size under which messages are sent uncompressed */
+	private volatile int threshold = DEFAULT_THRESHOLD;
+
+	/** server resets its compression state after each message */
+	private volatile boolean serverNoContextTakeover = false;
+
+	/** client resets its compression state after each message */
+	private volatile boolean clientNoContextTakeover = false;
+
+	/** deflater pooled per thread (used without context takeover) */
+	private final ThreadLocal<Deflater> deflaterPool = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return newDeflater();
+		}
+	};
+
+	/** inflater pooled per thread (used without context takeover) */
+	private final ThreadLocal<Inflater> inflaterPool = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/** buffer receiving compressed data pooled per thread */
+	private final ThreadLocal<byte[]> scratchPool = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SCRATCH_SIZE];
+		}
+	};
+
+	/** statistics */
+	private final LongAdder compressedCount = new LongAdder();
+	private final LongAdder uncompressedCount = new LongAdder();
+	private final LongAdder compressInputBytes = new LongAdder();
+	private final LongAdder compressOutputBytes = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder decompressedCount = new LongAdder();
+	private final LongAdder decompressInputBytes = new LongAdder();
+	private final LongAdder decompressOutputBytes = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+
+	/**
+	 * Build permessage-deflate settings with default compression level
+	 */
+	public PerMessageDeflate() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Build permessage-deflate settings
+	 *
+	 * @param compressionLevel
+	 *            deflate compression level (0-9 or
+	 *            Deflater.DEFAULT_COMPRESSION)
+	 */
+	public PerMessageDeflate(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Select first acceptable offer of a client handshake request (server
+	 * side)
+	 *
+	 * @param offers
+	 *            Sec-WebSocket-Extensions header value (may be null)
+	 * @return compression codec for this connection (response to be sent with
+	 *         getExtension()) or null if no offer has been accepted
+	 */
+	public DeflateCodec negotiate(String offers) {
+		if (offers == null) {
+			return null;
+		}
+		for (String offer : offers.split(",")) {
+			String[] params = offer.split(";");
+			if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+				continue;
+			}
+			boolean serverNoContext = serverNoContextTakeover;
+			boolean clientNoContext = clientNoContextTakeover;
+			boolean serverWindowBits = false;
+			boolean valid = true;
+			HashSet<String> names = new HashSet<String>();
+
+			for (int i = 1; i < params.length && valid; i++) {
+				String name = paramName(params[i]);
+				String value = paramValue(params[i]);
+				valid = names.add(name);
+
+				if (name.equals(SERVER_NO_CONTEXT_TAKEOVER) && value == null) {
+					serverNoContext = true;
+				} else if (name.equals(CLIENT_NO_CONTEXT_TAKEOVER)
+						&& value == null) {
+					clientNoContext = true;
+				} else if (name.equals(SERVER_MAX_WINDOW_BITS)) {
+					/* deflater window cannot be reduced */
+					serverWindowBits = true;
+					valid &= windowBits(value) == MAX_WINDOW_BITS;
+				} else if (name.equals(CLIENT_MAX_WINDOW_BITS)) {
+					/* client may use any window : inflater accepts them all */
+					valid &= value == null || windowBits(value) != -1;
+				} else {
+					valid = false;
+				}
+			}
+			if (valid) {
+				String response = EXTENSION_NAME;
+				if (serverNoContext) {
+					response += "; " + SERVER_NO_CONTEXT_TAKEOVER;
+				}
+				if (clientNoContext) {
+					response += "; " + CLIENT_NO_CONTEXT_TAKEOVER;
+				}
+				if (serverWindowBits) {
+					response += "; " + SERVER_MAX_WINDOW_BITS + "="
+							+ MAX_WINDOW_BITS;
+				}
+				return new DeflateCodec(this, serverNoContext,
+						clientNoContext, response);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Build extension offer to be sent in client handshake request (client
+	 * side)
+	 *
+	 * @return Sec-WebSocket-Extensions header value
+	 */
+	public String getOffer() {
+		String offer = EXTENSION_NAME;
+		if (serverNoContextTakeover) {
+			offer += "; " + SERVER_NO_CONTEXT_TAKEOVER;
+		}
+		if (clientNoContextTakeover) {
+			offer += "; " + CLIENT_NO_CONTEXT_TAKEOVER;
+		}
+		return offer;
+	}
+
+	/**
+	 * Check extension accepted in server handshake response (client side)
+	 *
+	 * @param response
+	 *            Sec-WebSocket-Extensions header value (may be null)
+	 * @return compression codec for this connection or null if server has not
+	 *         accepted compression
+	 * @throws ProtocolException
+	 *             if response does not match offer
+	 */
+	public DeflateCodec accept(String response) throws ProtocolException {
+		if (response == null || response.trim().isEmpty()) {
+			return null;
+		}
+		String[] params = response.split(";");
+		if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+			throw new ProtocolException("unexpected extension " + response);
+		}
+		boolean serverNoContext = false;
+		boolean clientNoContext = clientNoContextTakeover;
+		HashSet<String> names = new HashSet<String>();
+
+		for (int i = 1; i < params.length; i++) {
+			String name = paramName(params[i]);
+			String value = paramValue(params[i]);
+
+			if (!names.add(name)) {
+				throw new ProtocolException("duplicate extension parameter "
+						+ name);
+			}
+			if (name.equals(SERVER_NO_CONTEXT_TAKEOVER) && value == null) {
+				serverNoContext = true;
+			} else if (name.equals(CLIENT_NO_CONTEXT_TAKEOVER) && value == null) {
+				clientNoContext = true;
+			} else if (name.equals(SERVER_MAX_WINDOW_BITS)
+					&& windowBits(value) != -1) {
+				/* inflater accepts any window size */
+			} else {
+				/* client_max_window_bits is never offered */
+				throw new ProtocolException("invalid extension parameter "
+						+ params[i].trim());
+			}
+		}
+		return new DeflateCodec(this, clientNoContext, serverNoContext,
+				response.trim());
+	}
+
+	/**
+	 * Retrieve name of an extension parameter
+	 *
+	 * @param param
+	 *            parameter (name or name=value)
+	 * @return lower case parameter name
+	 */
+	private static String paramName(String param) {
+		int index = param.indexOf('=');
+		return (index == -1 ? param : param.substring(0, index)).trim()
+				.toLowerCase();
+	}
+
+	/**
+	 * Retrieve value of an extension parameter
+	 *
+	 * @param param
+	 *            parameter (name or name=value)
+	 * @return parameter value without quotes or null if parameter has no value
+	 */
+	private static String paramValue(String param) {
+		int index = param.indexOf('=');
+		if (index == -1) {
+			return null;
+		}
+		String value = param.substring(index + 1).trim();
+		if (value.length() >= 2 && value.startsWith("\"")
+				&& value.endsWith("\"")) {
+			value = value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a window size parameter value
+	 *
+	 * @param value
+	 *            parameter value
+	 * @return window bits (8 to 15) or -1 if value is invalid
+	 */
+	private static int windowBits(String value) {
+		if (value == null || value.isEmpty() || value.length() > 2) {
+			return -1;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return -1;
+			}
+		}
+		int bits = Integer.parseInt(value);
+		return bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS ? bits : -1;
+	}
+
+	/**
+	 * Build a raw deflate compressor (no zlib header)
+	 *
+	 * @return new deflater
+	 */
+	Deflater newDeflater() {
+		return new Deflater(compressionLevel, true);
+	}
+
+	/**
+	 * Retrieve deflater pooled for calling thread
+	 *
+	 * @return deflater to be reset after each message
+	 */
+	Deflater pooledDeflater() {
+		return deflaterPool.get();
+	}
+
+	/**
+	 * Retrieve inflater pooled for calling thread
+	 *
+	 * @return inflater to be reset after each message
+	 */
+	Inflater pooledInflater() {
+		return inflaterPool.get();
+	}
+
+	/**
+	 * Retrieve buffer pooled for calling thread to receive compressed data
+	 *
+	 * @return scratch buffer
+	 */
+	byte[] scratchBuffer() {
+		return scratchPool.get();
+	}
+
+	/**
+	 * Record a message sent uncompressed because it is under threshold
+	 */
+	void recordUncompressed() {
+		uncompressedCount.increment();
+	}
+
+	/**
+	 * Record a compressed message
+	 *
+	 * @param inputBytes
+	 *            payload size before compression
+	 * @param outputBytes
+	 *            payload size after compression
+	 * @param nanos
+	 *            time spent compressing
+	 */
+	void recordCompressed(long inputBytes, long outputBytes, long nanos) {
+		compressedCount.increment();
+		compressInputBytes.add(inputBytes);
+		compressOutputBytes.add(outputBytes);
+		compressNanos.add(nanos);
+	}
+
+	/**
+	 * Record decompressed data
+	 *
+	 * @param inputBytes
+	 *            compressed payload size
+	 * @param outputBytes
+	 *            payload size after decompression
+	 * @param nanos
+	 *            time spent decompressing
+	 * @param message
+	 *            true if a message has been entirely decompressed
+	 */
+	void recordDecompressed(long inputBytes, long outputBytes, long nanos,
+			boolean message) {
+		if (message) {
+			decompressedCount.increment();
+		}
+		decompressInputBytes.add(inputBytes);
+		decompressOutputBytes.add(outputBytes);
+		decompressNanos.add(nanos);
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Set payload size under which messages are sent uncompressed (small
+	 * messages do not compress well and are not worth CPU time)
+	 *
+	 * @param threshold
+	 *            size in bytes
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	/**
+	 * Server resets its compression state after each message : lower
+	 * compression ratio, no per connection compressor on server side
+	 *
+	 * @param serverNoContextTakeover
+	 */
+	public void setServerNoContextTakeover(boolean serverNoContextTakeover) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+
+	/**
+	 * Client resets its compression state after each message : lower
+	 * compression ratio, no per connection decompressor on server side
+	 *
+	 * @param clientNoContextTakeover
+	 */
+	public void setClientNoContextTakeover(boolean clientNoContextTakeover) {
+		this.clientNoContextTakeover = clientNoContextTakeover;
+	}
+
+	/**
+	 * Retrieve number of messages sent compressed
+	 *
+	 * @return number of compressed messages
+	 */
+	public long getCompressedCount() {
+		return compressedCount.sum();
+	}
+
+	/**
+	 * Retrieve number of messages sent uncompressed because they were under
+	 * threshold
+	 *
+	 * @return number of uncompressed messages
+	 */
+	public long getUncompressedCount() {
+		return uncompressedCount.sum();
+	}
+
+	/**
+	 * Retrieve payload bytes of compressed messages before compression
+	 *
+	 * @return number of bytes
+	 */
+	public long getCompressInputBytes() {
+		return compressInputBytes.sum();
+	}
+
+	/**
+	 * Retrieve payload bytes of compressed messages after compression
+	 *
+	 * @return number of bytes
+	 */
+	public long getCompressOutputBytes() {
+		return compressOutputBytes.sum();
+	}
+
+	/**
+	 * Retrieve ratio of compressed size to original size of sent messages
+	 *
+	 * @return compression ratio (1 if nothing has been compressed)
+	 */
+	public double getCompressionRatio() {
+		long input = compressInputBytes.sum();
+		return input == 0 ? 1 : (double) compressOutputBytes.sum() / input;
+	}
+
+	/**
+	 * Retrieve time spent compressing messages
+	 *
+	 * @return time in nanoseconds
+	 */
+	public long getCompressNanos() {
+		return compressNanos.sum();
+	}
+
+	/**
+	 * Retrieve number of compressed messages received
+	 *
+	 * @return number of decompressed messages
+	 */
+	public long getDecompressedCount() {
+		return decompressedCount.sum();
+	}
+
+	/**
+	 * Retrieve compressed payload bytes received
+	 *
+	 * @return number of bytes
+	 */
+	public long getDecompressInputBytes() {
+		return decompressInputBytes.sum();
+	}
+
+	/**
+	 * Retrieve payload bytes of received messages after decompression
+	 *
+	 * @return number of bytes
+	 */
+	public long getDecompressOutputBytes() {
+		return decompressOutputBytes.sum();
+	}
+
+	/**
+	 * Retrieve time spent decompressing messages
+	 *
+	 * @return time in nanoseconds
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.sum();
+	}
+}
@@ -1,5 +1,7 @@
 package fr.bmartel.protocol.websocket.listeners;
 
+import java.nio.ByteBuffer;
+
 import fr.bmartel.protocol.websocket.server.IWebsocketClient;
 
 /**
@@ -33,5 +35,15 @@ public interface IClientEventListener {
 	 * 		message delivered
 	 */
 	public void onMessageReceivedFromClient(IWebsocketClient client,String message);
+
+	/**
+	 * called when a binary message has been received from client
+	 * 
+	 * @param client
+	 * 		client object
+	 * @param message
+	 * 		message data (buffer wraps received payload without copy)
+	 */
+	public void onBinaryMessageReceivedFromClient(IWebsocketClient client,ByteBuffer message);
 	
 }
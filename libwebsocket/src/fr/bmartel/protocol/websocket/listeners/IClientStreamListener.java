@@ -0,0 +1,29 @@
+package fr.bmartel.protocol.websocket.listeners;
+
+import java.nio.ByteBuffer;
+
+import fr.bmartel.protocol.websocket.server.IWebsocketClient;
+
+/**
+ * Listener notified of data messages received from clients part by part, as
+ * they arrive, instead of being reassembled
+ * 
+ * @author Bertrand Martel
+ */
+public interface IClientStreamListener {
+
+	/**
+	 * called when a part of a message has been received from client
+	 * 
+	 * @param client
+	 * 		client object
+	 * @param part
+	 * 		part of message data (buffer wraps received payload without copy)
+	 * @param binary
+	 * 		true for a binary message, false for a text message (UTF-8 data)
+	 * @param last
+	 * 		true if this is the last part of message
+	 */
+	public void onMessagePartReceivedFromClient(IWebsocketClient client,
+			ByteBuffer part, boolean binary, boolean last);
+}
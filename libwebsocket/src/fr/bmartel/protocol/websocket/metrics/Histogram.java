@@ -0,0 +1,191 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * <b>Lock free histogram with power of 2 buckets</b>
+ *
+ * Upper bound of bucket i is min * 2^i, values over upper bound of last
+ * bucket are counted in an overflow bucket. Each bucket is a LongAdder so
+ * that threads recording values concurrently do not contend on the same
+ * counter. Percentiles are approximated by bucket upper bounds.
+ *
+ * @author Bertrand Martel
+ */
+public class Histogram {
+
+	/** upper bound of first bucket */
+	private final long min;
+
+	/** bucket counters (last one is overflow bucket) */
+	private final LongAdder[] buckets;
+
+	/** sum of recorded values */
+	private final LongAdder sum = new LongAdder();
+
+	/** highest recorded value */
+	private final LongAccumulator max = new LongAccumulator(
+			new LongBinaryOperator() {
+
+				@Override
+				public long applyAsLong(long left, long right) {
+					return Math.max(left, right);
+				}
+			}, 0);
+
+	/**
+	 * Build histogram
+	 *
+	 * @param min
+	 *            upper bound of first bucket (at least 1)
+	 * @param bucketCount
+	 *            number of buckets before overflow bucket (at most 62)
+	 */
+	public Histogram(long min, int bucketCount) {
+		this.min = Math.max(min, 1);
+		this.buckets = new LongAdder[Math.min(Math.max(bucketCount, 1), 62) + 1];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a value
+	 *
+	 * @param value
+	 *            value to be recorded (negative values are recorded as 0)
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		int index = value <= min ? 0 : 64 - Long
+				.numberOfLeadingZeros((value - 1) / min);
+		if (index >= buckets.length) {
+			index = buckets.length - 1;
+		}
+		buckets[index].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Retrieve number of buckets, overflow bucket excluded
+	 *
+	 * @return bucket count
+	 */
+	public int getBucketCount() {
+		return buckets.length - 1;
+	}
+
+	/**
+	 * Retrieve upper bound of a bucket
+	 *
+	 * @param index
+	 *            bucket index
+	 * @return highest value counted in bucket (Long.MAX_VALUE for overflow
+	 *         bucket)
+	 */
+	public long getUpperBound(int index) {
+		if (index >= buckets.length - 1) {
+			return Long.MAX_VALUE;
+		}
+		return min << index;
+	}
+
+	/**
+	 * Retrieve number of values recorded in a bucket
+	 *
+	 * @param index
+	 *            bucket index (getBucketCount() for overflow bucket)
+	 * @return bucket count
+	 */
+	public long getCount(int index) {
+		return buckets[index].sum();
+	}
+
+	/**
+	 * Retrieve number of recorded values
+	 *
+	 * @return count of all buckets
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i].sum();
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Retrieve mean of recorded values
+	 *
+	 * @return mean value (0 if no value has been recorded)
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Retrieve an approximation of a percentile : upper bound of the bucket
+	 * containing it (highest recorded value if it is lower)
+	 *
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return percentile value (0 if no value has been recorded)
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(percentile, 100) / 100);
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+			if (count >= Math.max(rank, 1)) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
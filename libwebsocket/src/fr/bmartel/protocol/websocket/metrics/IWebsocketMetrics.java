@@ -0,0 +1,132 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * <b>Metrics SPI notified by websocket server and client</b>
+ *
+ * Methods are called from socket reading and writing threads (event loops
+ * with non-blocking engine) and from dispatch executor : implementations must be thread safe and must
+ * never block. No metrics are recorded unless an implementation is set on
+ * server or client.
+ *
+ * @author Bertrand Martel
+ */
+public interface IWebsocketMetrics {
+
+	/**
+	 * Called when server accepts a tcp connection
+	 *
+	 * @param acceptor
+	 *            index of listening socket having accepted connection (0
+	 *            unless server listens with several sockets)
+	 */
+	public void onConnectionAccepted(int acceptor);
+
+	/**
+	 * Called when websocket opening handshake has been answered (server) or
+	 * validated (client)
+	 *
+	 * @param accepted
+	 *            true if connection has been upgraded to websocket
+	 * @param nanos
+	 *            handshake duration in nanoseconds
+	 */
+	public void onHandshake(boolean accepted, long nanos);
+
+	/**
+	 * Called when TLS handshake of a ssl connection has completed
+	 *
+	 * @param resumed
+	 *            true if a previous TLS session has been resumed, false if a
+	 *            full handshake has been done
+	 * @param nanos
+	 *            TLS handshake duration in nanoseconds
+	 */
+	public void onTlsHandshake(boolean resumed, long nanos);
+
+	/**
+	 * Called when a websocket connection is closed
+	 *
+	 * @param closeCode
+	 *            status code of connection closing
+	 * @param clean
+	 *            true if close handshake has completed
+	 */
+	public void onConnectionClosed(int closeCode, boolean clean);
+
+	/**
+	 * Called when a frame has been entirely decoded
+	 *
+	 * @param opcode
+	 *            frame opcode
+	 * @param payloadLength
+	 *            frame payload length
+	 */
+	public void onFrameReceived(int opcode, long payloadLength);
+
+	/**
+	 * Called when a frame has been written to socket
+	 *
+	 * @param opcode
+	 *            frame opcode
+	 * @param length
+	 *            frame length on the wire (header included)
+	 * @param latencyNanos
+	 *            time in nanoseconds between frame being queued and frame
+	 *            being written
+	 */
+	public void onFrameSent(int opcode, int length, long latencyNanos);
+
+	/**
+	 * Called when a frame is dropped according to outbound queue overflow
+	 * policy
+	 */
+	public void onFrameDropped();
+
+	/**
+	 * Called when a listener callback queued on server dispatch executor
+	 * starts running
+	 *
+	 * @param latencyNanos
+	 *            time in nanoseconds between callback being queued by socket
+	 *            reading thread and callback being run
+	 */
+	public void onMessageDispatched(long latencyNanos);
+
+	/**
+	 * Register a value sampled each time metrics are read (a gauge registered
+	 * with the same name is replaced)
+	 *
+	 * @param name
+	 *            gauge name
+	 * @param help
+	 *            gauge description
+	 * @param gauge
+	 *            function returning gauge current value
+	 */
+	public void registerGauge(String name, String help, LongSupplier gauge);
+}
@@ -0,0 +1,569 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <b>Default metrics implementation</b>
+ *
+ * Counters are striped (LongAdder) so that recording from many socket
+ * threads does not contend on a single cache line, sizes and latencies are
+ * recorded in histograms with power of 2 buckets. Metrics may be exported
+ * to JMX with registerMBean() and dumped in Prometheus text exposition
+ * format with writePrometheus().
+ *
+ * A single instance may be shared by a server and several clients.
+ *
+ * @author Bertrand Martel
+ */
+public class WebsocketMetrics implements IWebsocketMetrics,
+		WebsocketMetricsMXBean {
+
+	/** object name used by registerMBean() */
+	public final static String DEFAULT_OBJECT_NAME = "fr.bmartel.protocol.websocket:type=WebsocketMetrics";
+
+	/** prefix of Prometheus metric names */
+	private final static String PREFIX = "websocket_";
+
+	/** number of histogram buckets before overflow bucket */
+	private final static int BUCKET_COUNT = 24;
+
+	/** smallest frame size bucket in bytes (up to 128 MB) */
+	private final static long MIN_SIZE = 16;
+
+	/** smallest latency bucket in nanoseconds (up to 8 seconds) */
+	private final static long MIN_LATENCY = 1000;
+
+	/** nanoseconds in a second (Prometheus durations are in seconds) */
+	private final static double NANOS_PER_SECOND = 1e9;
+
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+	private final LongAdder tlsHandshakes = new LongAdder();
+	private final LongAdder resumedTlsHandshakes = new LongAdder();
+	private final LongAdder closedConnections = new LongAdder();
+	private final LongAdder abnormalClosedConnections = new LongAdder();
+	private final LongAdder framesReceived = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder framesSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder framesDropped = new LongAdder();
+
+	/** payload length of received frames */
+	private final Histogram receivedFrameSize = new Histogram(MIN_SIZE,
+			BUCKET_COUNT);
+
+	/** length of sent frames (header included) */
+	private final Histogram sentFrameSize = new Histogram(MIN_SIZE,
+			BUCKET_COUNT);
+
+	/** time in nanoseconds between frame being queued and being written */
+	private final Histogram sendLatency = new Histogram(MIN_LATENCY,
+			BUCKET_COUNT);
+
+	/** opening handshake duration in nanoseconds */
+	private final Histogram handshakeDuration = new Histogram(MIN_LATENCY,
+			BUCKET_COUNT);
+
+	/** TLS handshake duration in nanoseconds (full and resumed) */
+	private final Histogram tlsHandshakeDuration = new Histogram(MIN_LATENCY,
+			BUCKET_COUNT);
+
+	/** time in nanoseconds between callback being queued and being run */
+	private final Histogram dispatchLatency = new Histogram(MIN_LATENCY,
+			BUCKET_COUNT);
+
+	/** accepted connections by index of listening socket */
+	private final ConcurrentSkipListMap<Integer, LongAdder> acceptedByAcceptor = new ConcurrentSkipListMap<Integer, LongAdder>();
+
+	/** registered gauges sorted by name */
+	private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	/** name this object has been registered with in platform MBean server */
+	private ObjectName objectName = null;
+
+	/**
+	 * Value sampled when metrics are read
+	 */
+	private static class Gauge {
+
+		private final String help;
+
+		private final LongSupplier supplier;
+
+		private Gauge(String help, LongSupplier supplier) {
+			this.help = help;
+			this.supplier = supplier;
+		}
+	}
+
+	@Override
+	public void onConnectionAccepted(int acceptor) {
+		acceptedConnections.increment();
+
+		LongAdder counter = acceptedByAcceptor.get(acceptor);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = acceptedByAcceptor.putIfAbsent(acceptor, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.increment();
+	}
+
+	@Override
+	public void onHandshake(boolean accepted, long nanos) {
+		if (accepted) {
+			handshakes.increment();
+		} else {
+			failedHandshakes.increment();
+		}
+		handshakeDuration.record(nanos);
+	}
+
+	@Override
+	public void onTlsHandshake(boolean resumed, long nanos) {
+		if (resumed) {
+			resumedTlsHandshakes.increment();
+		} else {
+			tlsHandshakes.increment();
+		}
+		tlsHandshakeDuration.record(nanos);
+	}
+
+	@Override
+	public void onConnectionClosed(int closeCode, boolean clean) {
+		if (clean) {
+			closedConnections.increment();
+		} else {
+			abnormalClosedConnections.increment();
+		}
+	}
+
+	@Override
+	public void onFrameReceived(int opcode, long payloadLength) {
+		framesReceived.increment();
+		bytesReceived.add(payloadLength);
+		receivedFrameSize.record(payloadLength);
+	}
+
+	@Override
+	public void onFrameSent(int opcode, int length, long latencyNanos) {
+		framesSent.increment();
+		bytesSent.add(length);
+		sentFrameSize.record(length);
+		sendLatency.record(latencyNanos);
+	}
+
+	@Override
+	public void onFrameDropped() {
+		framesDropped.increment();
+	}
+
+	@Override
+	public void onMessageDispatched(long latencyNanos) {
+		dispatchLatency.record(latencyNanos);
+	}
+
+	@Override
+	public void registerGauge(String name, String help, LongSupplier gauge) {
+		gauges.put(name, new Gauge(help, gauge));
+	}
+
+	/**
+	 * Remove a gauge
+	 *
+	 * @param name
+	 *            gauge name
+	 */
+	public void unregisterGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/**
+	 * Register metrics in platform MBean server with default object name
+	 *
+	 * @throws JMException
+	 *             if metrics cannot be registered
+	 */
+	public void registerMBean() throws JMException {
+		registerMBean(DEFAULT_OBJECT_NAME);
+	}
+
+	/**
+	 * Register metrics in platform MBean server (a server and its clients
+	 * sharing a JVM need distinct names)
+	 *
+	 * @param name
+	 *            JMX object name
+	 * @throws JMException
+	 *             if name is invalid or already registered
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				objectName);
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Remove metrics from platform MBean server
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Dump metrics in Prometheus text exposition format (version 0.0.4) :
+	 * counters, gauges and histograms (durations in seconds)
+	 *
+	 * @param writer
+	 *            writer receiving metrics
+	 * @throws IOException
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		writeHeader(writer, "connections_accepted_total",
+				"TCP connections accepted by server, by listening socket",
+				"counter");
+		for (Map.Entry<Integer, LongAdder> entry : acceptedByAcceptor
+				.entrySet()) {
+			writeSample(writer, "connections_accepted_total", "acceptor=\""
+					+ entry.getKey() + "\"", entry.getValue().sum());
+		}
+
+		writeHeader(writer, "handshakes_total",
+				"Opening handshakes by result", "counter");
+		writeSample(writer, "handshakes_total", "result=\"accepted\"",
+				handshakes.sum());
+		writeSample(writer, "handshakes_total", "result=\"rejected\"",
+				failedHandshakes.sum());
+
+		writeHeader(writer, "tls_handshakes_total",
+				"TLS handshakes by type (full or session resumed)", "counter");
+		writeSample(writer, "tls_handshakes_total", "type=\"full\"",
+				tlsHandshakes.sum());
+		writeSample(writer, "tls_handshakes_total", "type=\"resumed\"",
+				resumedTlsHandshakes.sum());
+
+		writeHeader(writer, "connections_closed_total",
+				"Websocket connections closed, with or without close handshake",
+				"counter");
+		writeSample(writer, "connections_closed_total", "type=\"clean\"",
+				closedConnections.sum());
+		writeSample(writer, "connections_closed_total", "type=\"abnormal\"",
+				abnormalClosedConnections.sum());
+
+		writeCounter(writer, "frames_received_total", "Frames decoded", null,
+				framesReceived.sum());
+		writeCounter(writer, "received_bytes_total",
+				"Payload bytes of decoded frames", null, bytesReceived.sum());
+		writeCounter(writer, "frames_sent_total", "Frames written", null,
+				framesSent.sum());
+		writeCounter(writer, "sent_bytes_total",
+				"Bytes of written frames (headers included)", null,
+				bytesSent.sum());
+		writeCounter(writer, "frames_dropped_total",
+				"Frames dropped by outbound queue overflow policy", null,
+				framesDropped.sum());
+
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			writeHeader(writer, entry.getKey(), entry.getValue().help,
+					"gauge");
+			writeSample(writer, entry.getKey(), null, entry.getValue().supplier
+					.getAsLong());
+		}
+
+		writeHistogram(writer, "received_frame_bytes",
+				"Payload length of decoded frames", receivedFrameSize, 1);
+		writeHistogram(writer, "sent_frame_bytes",
+				"Length of written frames", sentFrameSize, 1);
+		writeHistogram(writer, "send_latency_seconds",
+				"Time between frame being queued and being written",
+				sendLatency, NANOS_PER_SECOND);
+		writeHistogram(writer, "handshake_duration_seconds",
+				"Opening handshake duration", handshakeDuration,
+				NANOS_PER_SECOND);
+		writeHistogram(writer, "tls_handshake_duration_seconds",
+				"TLS handshake duration", tlsHandshakeDuration,
+				NANOS_PER_SECOND);
+		writeHistogram(writer, "dispatch_latency_seconds",
+				"Time between listener callback being queued and being run",
+				dispatchLatency, NANOS_PER_SECOND);
+		writer.flush();
+	}
+
+	/**
+	 * Dump metrics in Prometheus text exposition format (see
+	 * writePrometheus(Writer))
+	 *
+	 * @return metrics text
+	 */
+	public String toPrometheus() {
+		StringWriter writer = new StringWriter();
+		try {
+			writePrometheus(writer);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return writer.toString();
+	}
+
+	private void writeCounter(Writer writer, String name, String help,
+			String labels, long value) throws IOException {
+		writeHeader(writer, name, help, "counter");
+		writeSample(writer, name, labels, value);
+	}
+
+	private void writeHeader(Writer writer, String name, String help,
+			String type) throws IOException {
+		String metric = name.startsWith(PREFIX) ? name : PREFIX + name;
+		writer.write("# HELP " + metric + " " + help + "\n");
+		writer.write("# TYPE " + metric + " " + type + "\n");
+	}
+
+	private void writeSample(Writer writer, String name, String labels,
+			double value) throws IOException {
+		writer.write(name.startsWith(PREFIX) ? name : PREFIX + name);
+		if (labels != null) {
+			writer.write("{" + labels + "}");
+		}
+		writer.write(" " + format(value) + "\n");
+	}
+
+	/**
+	 * Write histogram cumulative buckets, sum and count
+	 *
+	 * @param scale
+	 *            divisor converting recorded values to exported unit
+	 */
+	private void writeHistogram(Writer writer, String name, String help,
+			Histogram histogram, double scale) throws IOException {
+		writeHeader(writer, name, help, "histogram");
+
+		long count = 0;
+		for (int i = 0; i < histogram.getBucketCount(); i++) {
+			count += histogram.getCount(i);
+			writeSample(writer, name + "_bucket", "le=\""
+					+ format(histogram.getUpperBound(i) / scale) + "\"", count);
+		}
+		count += histogram.getCount(histogram.getBucketCount());
+		writeSample(writer, name + "_bucket", "le=\"+Inf\"", count);
+		writeSample(writer, name + "_sum", null, histogram.getSum() / scale);
+		writeSample(writer, name + "_count", null, count);
+	}
+
+	/**
+	 * Format a sample value : integers are written without decimal part
+	 */
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	@Override
+	public Map<String, Long> getAcceptedConnectionsByAcceptor() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : acceptedByAcceptor
+				.entrySet()) {
+			values.put(String.valueOf(entry.getKey()), entry.getValue()
+					.sum());
+		}
+		return values;
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public long getFailedHandshakes() {
+		return failedHandshakes.sum();
+	}
+
+	@Override
+	public long getClosedConnections() {
+		return closedConnections.sum();
+	}
+
+	@Override
+	public long getAbnormalClosedConnections() {
+		return abnormalClosedConnections.sum();
+	}
+
+	@Override
+	public long getFramesReceived() {
+		return framesReceived.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getFramesSent() {
+		return framesSent.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.sum();
+	}
+
+	@Override
+	public double getReceivedFrameSizeMean() {
+		return receivedFrameSize.getMean();
+	}
+
+	@Override
+	public double getSentFrameSizeMean() {
+		return sentFrameSize.getMean();
+	}
+
+	@Override
+	public double getSendLatencyMeanMicros() {
+		return sendLatency.getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	@Override
+	public long getSendLatencyP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(sendLatency.getPercentile(99));
+	}
+
+	@Override
+	public long getSendLatencyMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(sendLatency.getMax());
+	}
+
+	@Override
+	public double getHandshakeMeanMicros() {
+		return handshakeDuration.getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	@Override
+	public long getHandshakeP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(handshakeDuration
+				.getPercentile(99));
+	}
+
+	@Override
+	public long getTlsHandshakes() {
+		return tlsHandshakes.sum();
+	}
+
+	@Override
+	public long getResumedTlsHandshakes() {
+		return resumedTlsHandshakes.sum();
+	}
+
+	@Override
+	public double getTlsHandshakeMeanMicros() {
+		return tlsHandshakeDuration.getMean()
+				/ TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	@Override
+	public long getTlsHandshakeP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(tlsHandshakeDuration
+				.getPercentile(99));
+	}
+
+	@Override
+	public double getDispatchLatencyMeanMicros() {
+		return dispatchLatency.getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	@Override
+	public long getDispatchLatencyP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(dispatchLatency
+				.getPercentile(99));
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().supplier.getAsLong());
+		}
+		return values;
+	}
+
+	public Histogram getReceivedFrameSize() {
+		return receivedFrameSize;
+	}
+
+	public Histogram getSentFrameSize() {
+		return sentFrameSize;
+	}
+
+	public Histogram getSendLatency() {
+		return sendLatency;
+	}
+
+	public Histogram getHandshakeDuration() {
+		return handshakeDuration;
+	}
+
+	public Histogram getTlsHandshakeDuration() {
+		return tlsHandshakeDuration;
+	}
+
+	public Histogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+}
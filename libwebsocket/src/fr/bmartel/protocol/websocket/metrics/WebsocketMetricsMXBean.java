@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.metrics;
+
+import java.util.Map;
+
+/**
+ * <b>JMX view of websocket metrics</b>
+ *
+ * Latencies are given in microseconds, sizes in bytes.
+ *
+ * @author Bertrand Martel
+ */
+public interface WebsocketMetricsMXBean {
+
+	public long getAcceptedConnections();
+
+	/**
+	 * Retrieve number of accepted connections of each listening socket
+	 *
+	 * @return accepted connections by acceptor index
+	 */
+	public Map<String, Long> getAcceptedConnectionsByAcceptor();
+
+	public long getHandshakes();
+
+	public long getFailedHandshakes();
+
+	public long getClosedConnections();
+
+	public long getAbnormalClosedConnections();
+
+	public long getFramesReceived();
+
+	public long getBytesReceived();
+
+	public long getFramesSent();
+
+	public long getBytesSent();
+
+	public long getFramesDropped();
+
+	public double getReceivedFrameSizeMean();
+
+	public double getSentFrameSizeMean();
+
+	public double getSendLatencyMeanMicros();
+
+	public long getSendLatencyP99Micros();
+
+	public long getSendLatencyMaxMicros();
+
+	public double getHandshakeMeanMicros();
+
+	public long getHandshakeP99Micros();
+
+	public long getTlsHandshakes();
+
+	public long getResumedTlsHandshakes();
+
+	public double getTlsHandshakeMeanMicros();
+
+	public long getTlsHandshakeP99Micros();
+
+	public double getDispatchLatencyMeanMicros();
+
+	public long getDispatchLatencyP99Micros();
+
+	/**
+	 * Retrieve current value of registered gauges
+	 *
+	 * @return gauge values by name
+	 */
+	public Map<String, Long> getGauges();
+}
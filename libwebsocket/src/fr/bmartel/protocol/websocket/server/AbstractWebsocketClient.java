@@ -0,0 +1,1043 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import fr.bmartel.protocol.websocket.MessageTooBigException;
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
+import fr.bmartel.protocol.websocket.extensions.DeflateCodec;
+import fr.bmartel.protocol.websocket.extensions.PerMessageDeflate;
+import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.listeners.IClientStreamListener;
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
+
+/**
+ * Common part of server side websocket client connections : connection id,
+ * attributes and outbound queue. Frames sent to client are queued and written
+ * by the thread in charge of socket writing.
+ *
+ * @author Bertrand Martel
+ */
+public abstract class AbstractWebsocketClient implements IWebsocketClient {
+
+	/** generator for connection ids */
+	private final static AtomicLong ID_GENERATOR = new AtomicLong();
+
+	/** unique connection id */
+	private final long id = ID_GENERATOR.incrementAndGet();
+
+	/** attributes stored by library user for this connection */
+	private ConcurrentHashMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+	/** frames waiting to be written to client */
+	protected final OutboundQueue outboundQueue;
+
+	/** listener notified of client events */
+	protected final IClientEventListener clientListener;
+
+	/** websocket decoder / encoder object */
+	protected final WebSocketChannel websocketChannel;
+
+	/** define if received messages are delivered part by part */
+	private final boolean streaming;
+
+	/** maximum payload size of frames sent with sendStream() */
+	private final static int STREAM_FRAGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * number of queued frames over which sendStream() waits before queuing
+	 * next fragment
+	 */
+	private final static int STREAM_WINDOW = 16;
+
+	/**
+	 * lock held while queuing a data message so that fragments of a message
+	 * sent with sendStream() are never interleaved with other messages
+	 */
+	private final ReentrantLock messageLock = new ReentrantLock();
+
+	/**
+	 * frames sent with sendFrame() while message lock was held (stream being
+	 * sent), queued when lock is released
+	 */
+	private final ArrayDeque<OutboundFrame> deferredFrames = new ArrayDeque<OutboundFrame>();
+
+	/** time of last data message received or sent (System.nanoTime()) */
+	private volatile long lastActivity = System.nanoTime();
+
+	/** send time of last ping (System.nanoTime()), also used as ping payload */
+	private volatile long pingTime = 0;
+
+	/** define if last ping has not been answered yet */
+	private volatile boolean awaitingPong = false;
+
+	/** number of pings in a row not answered in time */
+	private volatile int missedPongs = 0;
+
+	/** last measured round trip time in nanoseconds (-1 if unknown) */
+	private volatile long roundTripNanos = -1;
+
+	/** define if close frame has been queued (no more frame may be sent) */
+	private final AtomicBoolean closeSent = new AtomicBoolean(false);
+
+	/** completed once close frame has been written */
+	private volatile CompletableFuture<Void> closeFuture;
+
+	/** define if close frame has been received from client */
+	private volatile boolean closeReceived = false;
+
+	/** define if data received from client must be ignored */
+	private volatile boolean inputShutdown = false;
+
+	/** status code of connection closing */
+	private volatile int closeCode = WebSocketCloseCode.ABNORMAL_CLOSURE;
+
+	/** reason of connection closing */
+	private volatile String closeReason = "";
+
+	/** timer used to close connection if close handshake does not complete */
+	private volatile TimerWheel closeTimer;
+
+	/** time in milliseconds given to close handshake */
+	private volatile long closeTimeout = 0;
+
+	/** closes connection if opening handshake does not complete in time */
+	private volatile TimerWheel.Timeout handshakeTimer;
+
+	/** set once opening handshake has been accepted, rejected or timed out */
+	private final AtomicBoolean handshakeEnded = new AtomicBoolean();
+
+	/**
+	 * message being delivered to listener (accessed by thread delivering
+	 * messages, one at a time)
+	 */
+	private WebSocketMessage deliveredMessage = null;
+
+	/** runs listener callbacks off reading thread (null if disabled) */
+	private volatile SerialExecutor dispatcher = null;
+
+	/**
+	 * Build client connection
+	 *
+	 * @param clientListener
+	 *            listener notified of client events
+	 * @param outboundQueue
+	 *            queue of frames waiting to be written to client
+	 * @param websocketChannel
+	 *            websocket decoder configured for this connection
+	 */
+	protected AbstractWebsocketClient(IClientEventListener clientListener,
+			OutboundQueue outboundQueue, WebSocketChannel websocketChannel) {
+		this.clientListener = clientListener;
+		this.outboundQueue = outboundQueue;
+		this.websocketChannel = websocketChannel;
+		this.streaming = websocketChannel.isStreaming();
+	}
+
+	/**
+	 * Determine if websocket connection is established and not closed
+	 *
+	 * @return true if frames can be sent
+	 */
+	protected abstract boolean isOpen();
+
+	/**
+	 * Request queued frames to be written to socket
+	 */
+	protected abstract void scheduleWrite();
+
+	/**
+	 * Determine if calling thread may wait for room in outbound queue
+	 * (a thread in charge of socket writing must never wait)
+	 *
+	 * @return true if calling thread may block
+	 */
+	protected boolean mayBlock() {
+		return true;
+	}
+
+	@Override
+	public int sendMessage(String message) {
+		return send(message, null);
+	}
+
+	@Override
+	public CompletableFuture<Void> sendMessageAsync(String message) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		send(message, future);
+		return future;
+	}
+
+	@Override
+	public int sendBinary(byte[] data, int offset, int length) {
+		return sendData(WebSocketOpcode.BINARY_FRAME.frameTypeValue, data,
+				offset, length, null);
+	}
+
+	@Override
+	public int sendBinary(ByteBuffer data) {
+		return sendBinary(data, null);
+	}
+
+	@Override
+	public CompletableFuture<Void> sendBinaryAsync(ByteBuffer data) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		sendBinary(data, future);
+		return future;
+	}
+
+	/**
+	 * Queue a binary message : buffer is not copied unless message is
+	 * compressed
+	 *
+	 * @param data
+	 *            buffer containing message data
+	 * @param future
+	 *            future completed when message has been written (may be null)
+	 * @return 0 if message has been queued -1 otherwise
+	 */
+	private int sendBinary(ByteBuffer data, CompletableFuture<Void> future) {
+		if (websocketChannel.getDeflateCodec() == null) {
+			return enqueue(new OutboundFrame(future,
+					WebSocketChannel.encapsulateFrame(data)));
+		}
+		if (data.hasArray()) {
+			return sendData(WebSocketOpcode.BINARY_FRAME.frameTypeValue,
+					data.array(), data.arrayOffset() + data.position(),
+					data.remaining(), future);
+		}
+		byte[] payload = new byte[data.remaining()];
+		data.duplicate().get(payload);
+		return sendData(WebSocketOpcode.BINARY_FRAME.frameTypeValue, payload,
+				0, payload.length, future);
+	}
+
+	@Override
+	public int sendStream(InputStream in, boolean binary) {
+		if (!mayBlock() || !isOpen()) {
+			return -1;
+		}
+		boolean started = false;
+
+		messageLock.lock();
+		try {
+			int opcode = binary ? WebSocketOpcode.BINARY_FRAME.frameTypeValue
+					: WebSocketOpcode.TEXT_FRAME.frameTypeValue;
+			boolean fin = false;
+
+			while (!fin) {
+				/* queued fragments are not copied : use a new array each time */
+				byte[] fragment = new byte[STREAM_FRAGMENT_SIZE];
+				int length = WebSocketChannel.readFragment(in, fragment);
+				fin = length < fragment.length;
+
+				/* a missing fragment would leave message unterminated */
+				if (!outboundQueue.putWhenBelow(new OutboundFrame(null, false,
+						WebSocketChannel.encapsulateFrame(fin, opcode,
+								fragment, 0, length)), Math.min(STREAM_WINDOW,
+						outboundQueue.getCapacity()))) {
+					if (started) {
+						/* client does not read : message cannot be completed */
+						close();
+					}
+					return -1;
+				}
+				started = true;
+				scheduleWrite();
+				opcode = WebSocketOpcode.CONTINUATION_FRAME.frameTypeValue;
+			}
+			return 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (started) {
+				/* message cannot be completed : connection is unusable */
+				close();
+			}
+		} finally {
+			unlockMessage();
+		}
+		return -1;
+	}
+
+	@Override
+	public int sendStream(ReadableByteChannel in, boolean binary) {
+		return sendStream(Channels.newInputStream(in), binary);
+	}
+
+	@Override
+	public int sendFrame(ByteBuffer frame) {
+		OutboundFrame outboundFrame = new OutboundFrame(null, frame.duplicate());
+
+		if (!isOpen()) {
+			outboundFrame.fail(new IOException("connection not open"));
+			return -1;
+		}
+		/* broadcast never waits for a stream being sent to this client */
+		if (!messageLock.tryLock()) {
+			return defer(outboundFrame);
+		}
+		int result;
+		try {
+			result = outboundQueue.offer(outboundFrame, false);
+		} finally {
+			unlockMessage();
+		}
+		return queueResult(result);
+	}
+
+	/**
+	 * Keep a frame until message lock is released : it is queued behind the
+	 * stream being sent, or dropped if as many frames as outbound queue
+	 * capacity are already waiting
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @return 0 if frame will be queued -1 if it has been dropped
+	 */
+	private int defer(OutboundFrame frame) {
+		synchronized (deferredFrames) {
+			if (deferredFrames.size() >= outboundQueue.getCapacity()) {
+				outboundQueue.drop(frame);
+				return -1;
+			}
+			deferredFrames.add(frame);
+		}
+		/* stream may have ended before frame has been kept */
+		if (messageLock.tryLock()) {
+			unlockMessage();
+		}
+		return 0;
+	}
+
+	/**
+	 * Release message lock, queuing frames deferred while it was held
+	 */
+	private void unlockMessage() {
+		do {
+			try {
+				OutboundFrame frame;
+				while ((frame = pollDeferred()) != null) {
+					queueResult(outboundQueue.offer(frame, false));
+				}
+			} finally {
+				messageLock.unlock();
+			}
+			/* frames deferred after queue has been emptied */
+		} while (hasDeferred() && messageLock.tryLock());
+	}
+
+	/**
+	 * Remove first deferred frame
+	 *
+	 * @return frame or null if no frame is deferred
+	 */
+	private OutboundFrame pollDeferred() {
+		synchronized (deferredFrames) {
+			return deferredFrames.poll();
+		}
+	}
+
+	/**
+	 * Determine if frames are waiting for message lock
+	 *
+	 * @return true if frames are deferred
+	 */
+	private boolean hasDeferred() {
+		synchronized (deferredFrames) {
+			return !deferredFrames.isEmpty();
+		}
+	}
+
+	/**
+	 * Encode a text message and queue it
+	 *
+	 * @param message
+	 *            message to be sent
+	 * @param future
+	 *            future completed when message has been written (may be null)
+	 * @return 0 if message has been queued -1 otherwise
+	 */
+	private int send(String message, CompletableFuture<Void> future) {
+		BufferPool bufferPool = websocketChannel.getBufferPool();
+
+		if (bufferPool != null && websocketChannel.getDeflateCodec() == null
+				&& message.length() <= bufferPool.getMaxBufferSize()) {
+			/* frame is encoded in a pooled array released once written */
+			PooledBuffer frame = WebSocketChannel.encapsulateFrame(message,
+					bufferPool);
+			return enqueue(new OutboundFrame(future, frame, frame.buffer()));
+		}
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+		return sendData(WebSocketOpcode.TEXT_FRAME.frameTypeValue, payload, 0,
+				payload.length, future);
+	}
+
+	/**
+	 * Queue a data message in a single frame, compressed if permessage-deflate
+	 * has been negotiated and message is over compression threshold
+	 *
+	 * @param opcode
+	 *            opcode frame value (text or binary)
+	 * @param payload
+	 *            array containing message data (not copied if message is not
+	 *            compressed)
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @param future
+	 *            future completed when message has been written (may be null)
+	 * @return 0 if message has been queued -1 otherwise
+	 */
+	private int sendData(int opcode, byte[] payload, int offset, int length,
+			CompletableFuture<Void> future) {
+		DeflateCodec codec = websocketChannel.getDeflateCodec();
+
+		if (codec == null || !codec.shouldCompress(length)) {
+			return enqueue(new OutboundFrame(future,
+					WebSocketChannel.encapsulateFrame(opcode, payload, offset,
+							length)));
+		}
+		int result;
+		try {
+			lockMessage();
+		} catch (IOException e) {
+			if (future != null) {
+				future.completeExceptionally(e);
+			}
+			return -1;
+		}
+		try {
+			/* compression context must follow the order frames are queued in */
+			result = outboundQueue.offer(new OutboundFrame(future,
+					codec.isCompressNoContextTakeover(),
+					websocketChannel.encapsulateCompressedFrame(opcode,
+							payload, offset, length)), mayBlock());
+		} catch (IOException e) {
+			if (future != null) {
+				future.completeExceptionally(e);
+			}
+			return -1;
+		} finally {
+			unlockMessage();
+		}
+		return queueResult(result);
+	}
+
+	/**
+	 * Queue a frame according to outbound queue overflow policy
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @return 0 if frame has been queued -1 otherwise
+	 */
+	protected int enqueue(OutboundFrame frame) {
+		try {
+			lockMessage();
+		} catch (IOException e) {
+			frame.fail(e);
+			return -1;
+		}
+		int result;
+		try {
+			result = outboundQueue.offer(frame, mayBlock());
+		} finally {
+			unlockMessage();
+		}
+		return queueResult(result);
+	}
+
+	/**
+	 * Acquire lock needed to queue a data message
+	 *
+	 * @throws IOException
+	 *             if connection is not open or a stream is being sent by
+	 *             another thread and calling thread must not block
+	 */
+	private void lockMessage() throws IOException {
+		if (!isOpen()) {
+			throw new IOException("connection not open");
+		}
+		/* a thread which must not block gives up if a stream is being sent */
+		if (mayBlock()) {
+			messageLock.lock();
+		} else if (!messageLock.tryLock()) {
+			throw new IOException("stream being sent");
+		}
+	}
+
+	/**
+	 * Handle result of outbound queue offer
+	 *
+	 * @param result
+	 *            QUEUED, DROPPED or OVERFLOW
+	 * @return 0 if frame has been queued -1 otherwise
+	 */
+	private int queueResult(int result) {
+		switch (result) {
+		case OutboundQueue.QUEUED:
+			lastActivity = System.nanoTime();
+			scheduleWrite();
+			return 0;
+		case OutboundQueue.OVERFLOW:
+			/* client is not able to keep up : disconnect it */
+			close();
+			return -1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Notify a frame has been written to socket (called by the thread in
+	 * charge of socket writing) : send latency is recorded if frame has been
+	 * stamped by outbound queue
+	 *
+	 * @param frame
+	 *            frame entirely written
+	 */
+	void frameWritten(OutboundFrame frame) {
+		IWebsocketMetrics metrics = outboundQueue.getMetrics();
+		if (metrics != null && frame.queuedTime != 0) {
+			metrics.onFrameSent(frame.opcode, frame.length, System.nanoTime()
+					- frame.queuedTime);
+		}
+		frame.complete();
+	}
+
+	/**
+	 * Close connection if opening handshake does not complete in time
+	 *
+	 * @param timerWheel
+	 *            timer running timeout
+	 * @param handshakeTimeout
+	 *            time in milliseconds given to handshake (0 to disable)
+	 */
+	void setHandshakeTimeout(TimerWheel timerWheel, final long handshakeTimeout) {
+		if (handshakeTimeout <= 0) {
+			return;
+		}
+		handshakeTimer = timerWheel.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!isOpen()) {
+					endHandshake(false, System.nanoTime()
+							- TimeUnit.MILLISECONDS.toNanos(handshakeTimeout));
+					close();
+				}
+			}
+		}, handshakeTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancel handshake timeout and record result of opening handshake
+	 *
+	 * @param accepted
+	 *            true if connection has been upgraded to websocket
+	 * @param startTime
+	 *            time reading of upgrade request has started
+	 *            (System.nanoTime())
+	 */
+	void endHandshake(boolean accepted, long startTime) {
+		if (!handshakeEnded.compareAndSet(false, true)) {
+			return;
+		}
+		TimerWheel.Timeout timer = handshakeTimer;
+		if (timer != null) {
+			timer.cancel();
+			handshakeTimer = null;
+		}
+		IWebsocketMetrics metrics = websocketChannel.getMetrics();
+		if (metrics != null) {
+			metrics.onHandshake(accepted, System.nanoTime() - startTime);
+		}
+	}
+
+	/**
+	 * Notify listener of a message received from client, then release
+	 * message : a pooled payload goes back to buffer pool unless listener has
+	 * retained it. Pings are answered and pongs are used to measure round trip
+	 * time on reading thread, data messages are delivered by dispatch executor
+	 * if any.
+	 *
+	 * @param message
+	 *            decoded websocket message
+	 */
+	protected void notifyMessage(final WebSocketMessage message) {
+		if (closeReceived) {
+			/* client must not send anything after close frame */
+			message.release();
+			return;
+		}
+		if (message.getOpcodeType() == WebSocketOpcode.PING_FRAME) {
+			writeControlFrame(WebSocketOpcode.PONG_FRAME.frameTypeValue,
+					message.payloadData);
+			return;
+		}
+		if (message.getOpcodeType() == WebSocketOpcode.PONG_FRAME) {
+			receivePong(message.payloadData);
+			return;
+		}
+		lastActivity = System.nanoTime();
+
+		dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				deliveredMessage = message;
+				try {
+					deliverMessage(message);
+				} finally {
+					deliveredMessage = null;
+					message.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a listener callback : callbacks are queued on serial executor of
+	 * this connection if server has a dispatch executor, run by calling thread
+	 * otherwise
+	 *
+	 * @param callback
+	 *            listener callback
+	 */
+	void dispatch(Runnable callback) {
+		SerialExecutor executor = dispatcher;
+		if (executor == null) {
+			callback.run();
+		} else {
+			executor.execute(callback);
+		}
+	}
+
+	/**
+	 * Set serial executor running listener callbacks of this connection
+	 * (must be set before first message is read)
+	 *
+	 * @param dispatcher
+	 *            serial executor over server dispatch executor
+	 */
+	void setDispatcher(SerialExecutor dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	SerialExecutor getDispatcher() {
+		return dispatcher;
+	}
+
+	@Override
+	public PooledBuffer retainMessage() {
+		WebSocketMessage message = deliveredMessage;
+		if (message == null || message.getBuffer() == null) {
+			return null;
+		}
+		return message.getBuffer().retain();
+	}
+
+	/**
+	 * Deliver a data message received from client to listener : text payload
+	 * is decoded as UTF-8, binary payload is delivered without copy. In
+	 * streaming mode, message parts are delivered to stream listener.
+	 *
+	 * @param message
+	 *            decoded websocket message
+	 */
+	private void deliverMessage(WebSocketMessage message) {
+		if (clientListener == null) {
+			return;
+		}
+		if (streaming) {
+			if (clientListener instanceof IClientStreamListener) {
+				((IClientStreamListener) clientListener)
+						.onMessagePartReceivedFromClient(this,
+								wrapPayload(message),
+								message.getOpcodeType() == WebSocketOpcode.BINARY_FRAME,
+								message.isLastPart());
+			}
+		} else if (message.getOpcodeType() == WebSocketOpcode.TEXT_FRAME) {
+			clientListener.onMessageReceivedFromClient(this, new String(
+					message.payloadData, 0, message.getPayload_length(),
+					StandardCharsets.UTF_8));
+		} else if (message.getOpcodeType() == WebSocketOpcode.BINARY_FRAME) {
+			clientListener.onBinaryMessageReceivedFromClient(this,
+					wrapPayload(message));
+		}
+	}
+
+	/**
+	 * Wrap payload of a message without copy
+	 *
+	 * @param message
+	 *            decoded websocket message
+	 * @return buffer over payload data (view of pooled buffer if any)
+	 */
+	private static ByteBuffer wrapPayload(WebSocketMessage message) {
+		if (message.getBuffer() != null) {
+			return message.getBuffer().buffer();
+		}
+		return ByteBuffer.wrap(message.payloadData, 0,
+				message.getPayload_length());
+	}
+
+	/**
+	 * Negotiate extensions offered in client handshake request : compression
+	 * is enabled on websocket channel if permessage-deflate is accepted
+	 *
+	 * @param offer
+	 *            Sec-WebSocket-Extensions value of upgrade request (null if
+	 *            none)
+	 * @return Sec-WebSocket-Extensions value to be sent in handshake response
+	 *         (null if no extension has been accepted)
+	 */
+	protected String negotiateExtensions(String offer) {
+		PerMessageDeflate perMessageDeflate = websocketChannel
+				.getPerMessageDeflate();
+		if (perMessageDeflate == null) {
+			return null;
+		}
+		DeflateCodec codec = perMessageDeflate.negotiate(offer);
+		if (codec == null) {
+			return null;
+		}
+		websocketChannel.setDeflateCodec(codec);
+		return codec.getExtension();
+	}
+
+	/**
+	 * Release resources of negotiated extensions once connection is closed
+	 */
+	protected void releaseExtensions() {
+		DeflateCodec codec = websocketChannel.getDeflateCodec();
+		if (codec != null) {
+			codec.close();
+		}
+	}
+
+	@Override
+	public int close(int code, String reason) {
+		if (!isOpen() || !WebSocketCloseCode.isValid(code)) {
+			return -1;
+		}
+		return sendClose(code, reason) ? 0 : -1;
+	}
+
+	/**
+	 * Queue close frame after frames already queued : no more frame will be
+	 * sent afterwards. Connection is closed if close handshake does not
+	 * complete within close timeout.
+	 *
+	 * @param code
+	 *            close status code (NO_STATUS_RECEIVED for an empty close
+	 *            frame)
+	 * @param reason
+	 *            close reason
+	 * @return true if close frame has been queued, false if close handshake
+	 *         has already started
+	 */
+	private boolean sendClose(int code, String reason) {
+		if (!closeSent.compareAndSet(false, true)) {
+			return false;
+		}
+		closeCode = code;
+		closeReason = reason != null ? reason : "";
+
+		byte[] payload = code == WebSocketCloseCode.NO_STATUS_RECEIVED ? new byte[0]
+				: WebSocketChannel.buildClosePayload(code, reason);
+
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		closeFuture = future;
+
+		if (outboundQueue.putLast(new OutboundFrame(future, false,
+				WebSocketChannel.encapsulateFrame(
+						WebSocketOpcode.CONNECTION_CLOSE_FRAME.frameTypeValue,
+						payload, 0, payload.length)))) {
+			scheduleWrite();
+		}
+		TimerWheel timer = closeTimer;
+		if (timer != null) {
+			timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					if (isOpen()) {
+						close();
+					}
+				}
+			}, closeTimeout, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	/**
+	 * Handle a close frame received from client : close frame is answered
+	 * with the same status code and connection is closed once answer has been
+	 * written. If server started close handshake, connection is closed
+	 * immediately.
+	 *
+	 * @param payload
+	 *            close frame payload
+	 */
+	protected void receiveClose(byte[] payload) {
+		closeReceived = true;
+		inputShutdown = true;
+
+		int code = WebSocketChannel.getCloseCode(payload);
+		int replyCode = code < 0 ? WebSocketCloseCode.PROTOCOL_ERROR : code;
+
+		if (sendClose(replyCode, "")) {
+			closeCode = code < 0 ? WebSocketCloseCode.PROTOCOL_ERROR : code;
+			closeReason = WebSocketChannel.getCloseReason(payload);
+			closeWhenWritten();
+		} else {
+			/* close handshake started by server is complete */
+			close();
+		}
+	}
+
+	/**
+	 * Fail connection after client broke websocket protocol : data received
+	 * afterwards is ignored and connection is closed once close frame has
+	 * been written
+	 *
+	 * @param cause
+	 *            protocol error
+	 */
+	protected void failConnection(ProtocolException cause) {
+		inputShutdown = true;
+
+		int code = cause instanceof MessageTooBigException ? ((MessageTooBigException) cause)
+				.getCloseCode() : WebSocketCloseCode.PROTOCOL_ERROR;
+
+		if (sendClose(code, cause.getMessage())) {
+			closeWhenWritten();
+		} else {
+			close();
+		}
+	}
+
+	/**
+	 * Close connection once close frame has been written (or has failed)
+	 */
+	private void closeWhenWritten() {
+		closeFuture.whenComplete(new BiConsumer<Void, Throwable>() {
+
+			@Override
+			public void accept(Void result, Throwable error) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Wait for close frame to be written, up to close timeout (used by
+	 * engines before closing socket when reading thread stops)
+	 */
+	protected void awaitCloseWritten() {
+		CompletableFuture<Void> future = closeFuture;
+
+		if (future != null && !future.isDone()) {
+			try {
+				future.get(closeTimeout > 0 ? closeTimeout : Long.MAX_VALUE,
+						TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/**
+	 * Determine if data received from client must be ignored (close frame
+	 * received or protocol error)
+	 *
+	 * @return true if engine must stop decoding client data
+	 */
+	protected boolean isInputShutdown() {
+		return inputShutdown;
+	}
+
+	/**
+	 * Set timer used to close connection when close handshake does not
+	 * complete in time
+	 *
+	 * @param closeTimer
+	 *            timer wheel
+	 * @param closeTimeout
+	 *            time in milliseconds given to close handshake
+	 */
+	void setCloseTimeout(TimerWheel closeTimer, long closeTimeout) {
+		this.closeTimer = closeTimer;
+		this.closeTimeout = closeTimeout;
+	}
+
+	@Override
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	@Override
+	public String getCloseReason() {
+		return closeReason;
+	}
+
+	@Override
+	public boolean isCleanClose() {
+		return closeReceived && closeSent.get();
+	}
+
+	@Override
+	public int ping() {
+		long time = System.nanoTime();
+
+		pingTime = time;
+		awaitingPong = true;
+
+		return writeControlFrame(WebSocketOpcode.PING_FRAME.frameTypeValue,
+				ByteBuffer.allocate(8).putLong(time).array());
+	}
+
+	/**
+	 * Queue a control frame : control frames are never dropped and may be
+	 * sent between fragments of a message. A pong still waiting in queue is
+	 * replaced by a new one so that pings never grow queue
+	 *
+	 * @param opcode
+	 *            control frame opcode
+	 * @param payload
+	 *            payload (125 bytes max)
+	 * @return 0 if frame has been queued -1 otherwise
+	 */
+	private int writeControlFrame(int opcode, byte[] payload) {
+		if (!isOpen()) {
+			return -1;
+		}
+		OutboundFrame frame = new OutboundFrame(null, false,
+				WebSocketChannel.encapsulateFrame(opcode, payload, 0,
+						payload.length));
+
+		boolean queued = opcode == WebSocketOpcode.PONG_FRAME.frameTypeValue ? outboundQueue
+				.putPong(frame) : outboundQueue.put(frame);
+
+		if (queued) {
+			scheduleWrite();
+			return 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Handle a pong received from client : client is alive and round trip
+	 * time is measured if pong answers last ping
+	 *
+	 * @param payload
+	 *            pong payload
+	 */
+	private void receivePong(byte[] payload) {
+		long now = System.nanoTime();
+
+		if (awaitingPong && payload.length == 8
+				&& ByteBuffer.wrap(payload).getLong() == pingTime) {
+			roundTripNanos = now - pingTime;
+		}
+		awaitingPong = false;
+		missedPongs = 0;
+	}
+
+	/**
+	 * Check if last ping has been answered before sending a new one
+	 *
+	 * @return number of pings in a row not answered
+	 */
+	int checkPong() {
+		if (awaitingPong) {
+			missedPongs++;
+		}
+		return missedPongs;
+	}
+
+	/**
+	 * Retrieve time of last data message received or sent
+	 *
+	 * @return System.nanoTime() value
+	 */
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	@Override
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	@Override
+	public long getId() {
+		return id;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
+	}
+
+	@Override
+	public Object removeAttribute(String name) {
+		return attributes.remove(name);
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <b>Registry of connected websocket clients</b>
+ *
+ * Clients are indexed by connection id and may be gathered in named groups.
+ * Lookup and iteration never lock : iterating over clients or groups does not
+ * block clients connecting or closing (iteration reflects some state of the
+ * registry at or since the creation of the iterator).
+ *
+ * @author Bertrand Martel
+ */
+public class ConnectionRegistry {
+
+	/** connected clients indexed by connection id */
+	private ConcurrentHashMap<Long, IWebsocketClient> clientMap = new ConcurrentHashMap<Long, IWebsocketClient>();
+
+	/** groups indexed by group name */
+	private ConcurrentHashMap<String, ClientGroup> groupMap = new ConcurrentHashMap<String, ClientGroup>();
+
+	/** group names of each client indexed by connection id */
+	private ConcurrentHashMap<Long, Set<String>> membershipMap = new ConcurrentHashMap<Long, Set<String>>();
+
+	/**
+	 * Group of clients : a group removed from group map once empty is never
+	 * used again
+	 */
+	private static class ClientGroup {
+
+		/** clients belonging to this group */
+		private Set<IWebsocketClient> members = newConcurrentSet();
+
+		/** define if group has been removed from group map */
+		private boolean removed = false;
+	}
+
+	/**
+	 * Add a newly connected client to registry
+	 *
+	 * @param client
+	 *            websocket client
+	 */
+	public void add(IWebsocketClient client) {
+		membershipMap.put(client.getId(), ConnectionRegistry
+				.<String> newConcurrentSet());
+		clientMap.put(client.getId(), client);
+	}
+
+	/**
+	 * Remove a closed client from registry and from all groups it belongs to
+	 *
+	 * @param client
+	 *            websocket client
+	 */
+	public void remove(IWebsocketClient client) {
+		clientMap.remove(client.getId());
+
+		Set<String> groups = membershipMap.remove(client.getId());
+		if (groups != null) {
+			for (String group : groups) {
+				leave(client, group);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve a connected client from its connection id
+	 *
+	 * @param id
+	 *            connection id
+	 * @return websocket client or null if not connected
+	 */
+	public IWebsocketClient get(long id) {
+		return clientMap.get(id);
+	}
+
+	/**
+	 * Retrieve all connected clients
+	 *
+	 * @return unmodifiable view of connected clients
+	 */
+	public Collection<IWebsocketClient> getClients() {
+		return Collections.unmodifiableCollection(clientMap.values());
+	}
+
+	/**
+	 * Retrieve number of connected clients
+	 *
+	 * @return number of clients
+	 */
+	public int size() {
+		return clientMap.size();
+	}
+
+	/**
+	 * Add a connected client to a group (group is created if needed)
+	 *
+	 * @param client
+	 *            websocket client
+	 * @param group
+	 *            group name
+	 * @return true if client has been added, false if client is not connected
+	 */
+	public boolean joinGroup(IWebsocketClient client, String group) {
+		Set<String> groups = membershipMap.get(client.getId());
+		if (groups == null) {
+			return false;
+		}
+		while (true) {
+			ClientGroup clientGroup = groupMap.get(group);
+			if (clientGroup == null) {
+				ClientGroup newGroup = new ClientGroup();
+				clientGroup = groupMap.putIfAbsent(group, newGroup);
+				if (clientGroup == null) {
+					clientGroup = newGroup;
+				}
+			}
+			synchronized (clientGroup) {
+				if (clientGroup.removed) {
+					/* group has just been removed : create a new one */
+					continue;
+				}
+				clientGroup.members.add(client);
+			}
+			break;
+		}
+		groups.add(group);
+
+		if (!membershipMap.containsKey(client.getId())) {
+			/* client has been closed meanwhile */
+			leave(client, group);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a client from a group (group is removed once empty)
+	 *
+	 * @param client
+	 *            websocket client
+	 * @param group
+	 *            group name
+	 */
+	public void leaveGroup(IWebsocketClient client, String group) {
+		Set<String> groups = membershipMap.get(client.getId());
+		if (groups != null) {
+			groups.remove(group);
+		}
+		leave(client, group);
+	}
+
+	/**
+	 * Remove a client from group members
+	 *
+	 * @param client
+	 *            websocket client
+	 * @param group
+	 *            group name
+	 */
+	private void leave(IWebsocketClient client, String group) {
+		ClientGroup clientGroup = groupMap.get(group);
+		if (clientGroup != null) {
+			synchronized (clientGroup) {
+				clientGroup.members.remove(client);
+
+				if (clientGroup.members.isEmpty() && !clientGroup.removed) {
+					clientGroup.removed = true;
+					groupMap.remove(group, clientGroup);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retrieve clients belonging to a group
+	 *
+	 * @param group
+	 *            group name
+	 * @return unmodifiable view of group members (empty if group does not
+	 *         exist)
+	 */
+	public Collection<IWebsocketClient> getGroup(String group) {
+		ClientGroup clientGroup = groupMap.get(group);
+		if (clientGroup == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(clientGroup.members);
+	}
+
+	/**
+	 * Retrieve names of all groups having at least one member
+	 *
+	 * @return unmodifiable view of group names
+	 */
+	public Set<String> getGroupNames() {
+		return Collections.unmodifiableSet(groupMap.keySet());
+	}
+
+	/**
+	 * Retrieve names of groups a client belongs to
+	 *
+	 * @param client
+	 *            websocket client
+	 * @return unmodifiable view of group names (empty if client is not
+	 *         connected)
+	 */
+	public Set<String> getGroups(IWebsocketClient client) {
+		Set<String> groups = membershipMap.get(client.getId());
+		if (groups == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(groups);
+	}
+
+	/**
+	 * Build a set supporting concurrent access without locking
+	 *
+	 * @return new concurrent set
+	 */
+	private static <T> Set<T> newConcurrentSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	}
+}
@@ -1,9 +1,16 @@
 package fr.bmartel.protocol.websocket.server;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
+
 public interface IWebsocketClient {
 	
 	/**
-	 *  close websoclet client object
+	 *  close websoclet client object immediately (without close handshake)
 	 *  
 	 * @return
 	 * 		0 if success -1 if error
@@ -11,12 +18,214 @@ public interface IWebsocketClient {
 	public int close();
 
 	/**
-	 * Send a message to websocket client
+	 * Start close handshake : close frame is sent after messages already
+	 * queued and connection is closed once client has answered (or close
+	 * timeout has expired). No message can be sent afterwards.
+	 * 
+	 * @param code
+	 *            close status code (see WebSocketCloseCode)
+	 * @param reason
+	 *            close reason (truncated to 123 bytes)
+	 * @return 0 if close frame has been queued -1 otherwise
+	 */
+	public int close(int code, String reason);
+
+	/**
+	 * Retrieve status code of connection closing (sent by server or received
+	 * from client)
+	 * 
+	 * @return close status code, ABNORMAL_CLOSURE if no close frame has been
+	 *         exchanged
+	 */
+	public int getCloseCode();
+
+	/**
+	 * Retrieve reason of connection closing
+	 * 
+	 * @return close reason (empty if none)
+	 */
+	public String getCloseReason();
+
+	/**
+	 * Determine if connection has been closed with a complete close handshake
+	 * 
+	 * @return true if close frames have been exchanged
+	 */
+	public boolean isCleanClose();
+
+	/**
+	 * Send a message to websocket client. Message is queued and written
+	 * asynchronously : when outbound queue is full, it is handled according to
+	 * server overflow policy.
 	 * 
 	 * @param string
 	 * 		Message to be sent to client
 	 * @return
-	 *		0 if success -1 if error 
+	 *		0 if message has been queued -1 if error or dropped
 	 */
 	public int sendMessage(String message);
+
+	/**
+	 * Send a message to websocket client and get notified when it has been
+	 * written to socket. Future is completed from the thread writing to
+	 * socket and fails if message is dropped or connection is closed.
+	 * 
+	 * @param message
+	 *            Message to be sent to client
+	 * @return future completed when message has been written
+	 */
+	public CompletableFuture<Void> sendMessageAsync(String message);
+
+	/**
+	 * Send a binary message to websocket client. Data is not copied : array
+	 * content must not be modified until message has been written.
+	 * 
+	 * @param data
+	 *            array containing message data
+	 * @param offset
+	 *            offset of message data in array
+	 * @param length
+	 *            message data length
+	 * @return 0 if message has been queued -1 if error or dropped
+	 */
+	public int sendBinary(byte[] data, int offset, int length);
+
+	/**
+	 * Send remaining bytes of a buffer as a binary message to websocket
+	 * client. Data is not copied : buffer content must not be modified until
+	 * message has been written. Buffer position is not modified.
+	 * 
+	 * @param data
+	 *            buffer containing message data
+	 * @return 0 if message has been queued -1 if error or dropped
+	 */
+	public int sendBinary(ByteBuffer data);
+
+	/**
+	 * Send remaining bytes of a buffer as a binary message to websocket client
+	 * and get notified when it has been written to socket (buffer may be
+	 * reused afterwards)
+	 * 
+	 * @param data
+	 *            buffer containing message data
+	 * @return future completed when message has been written
+	 */
+	public CompletableFuture<Void> sendBinaryAsync(ByteBuffer data);
+
+	/**
+	 * Send a message read from an inputstream as a sequence of fragments
+	 * without reading the whole message in memory. Calling thread waits for
+	 * fragments to be written as needed (never dropped) and other messages
+	 * sent meanwhile wait for the end of the stream. Stream fails if no
+	 * fragment could be queued within block timeout, connection is closed if
+	 * message has been partially sent. Must not be called from an event loop
+	 * thread.
+	 * 
+	 * @param in
+	 *            inputstream containing message data (read until end of
+	 *            stream)
+	 * @param binary
+	 *            true for a binary message, false for a text message (UTF-8
+	 *            data)
+	 * @return 0 if message has been queued -1 if error
+	 */
+	public int sendStream(InputStream in, boolean binary);
+
+	/**
+	 * Send a message read from a channel as a sequence of fragments (see
+	 * sendStream(InputStream, boolean))
+	 * 
+	 * @param in
+	 *            channel containing message data (read until end of stream)
+	 * @param binary
+	 *            true for a binary message, false for a text message (UTF-8
+	 *            data)
+	 * @return 0 if message has been queued -1 if error
+	 */
+	public int sendStream(ReadableByteChannel in, boolean binary);
+
+	/**
+	 * Send an already encoded websocket frame to websocket client. Frame
+	 * content may be shared between several clients and must not be
+	 * modified. Frame is queued like messages sent with sendMessage() but
+	 * calling thread never waits : with BLOCK policy, frame is dropped if
+	 * queue is full, and frame is queued once stream being sent to client
+	 * (sendStream()) has ended.
+	 * 
+	 * @param frame
+	 *            complete websocket frame (header and payload)
+	 * @return 0 if frame has been queued -1 if error or dropped
+	 */
+	public int sendFrame(ByteBuffer frame);
+
+	/**
+	 * Send a ping to websocket client (pings are also sent periodically when
+	 * server ping interval is set)
+	 * 
+	 * @return 0 if ping has been queued -1 if connection is not open
+	 */
+	public int ping();
+
+	/**
+	 * Retrieve round trip time measured with last ping answered by client
+	 * 
+	 * @return round trip time in nanoseconds or -1 if no ping has been
+	 *         answered yet
+	 */
+	public long getRoundTripNanos();
+
+	/**
+	 * Keep payload of message being delivered to listener after listener
+	 * returns : when server uses a buffer pool, payload goes back to pool
+	 * once listener returns unless it has been retained. Must be called from
+	 * listener.
+	 * 
+	 * @return pooled buffer holding payload, to be released once message has
+	 *         been processed, or null if payload is not pooled (buffer
+	 *         received by listener may then be kept as is)
+	 */
+	public PooledBuffer retainMessage();
+
+	/**
+	 * Retrieve queue of frames waiting to be written to client (used to
+	 * monitor queue depth and dropped frames)
+	 * 
+	 * @return outbound queue
+	 */
+	public OutboundQueue getOutboundQueue();
+
+	/**
+	 * Retrieve unique id of this connection
+	 * 
+	 * @return connection id
+	 */
+	public long getId();
+
+	/**
+	 * Retrieve an attribute attached to this connection
+	 * 
+	 * @param name
+	 *            attribute name
+	 * @return attribute value or null if not set
+	 */
+	public Object getAttribute(String name);
+
+	/**
+	 * Attach an attribute to this connection (a null value removes it)
+	 * 
+	 * @param name
+	 *            attribute name
+	 * @param value
+	 *            attribute value
+	 */
+	public void setAttribute(String name, Object value);
+
+	/**
+	 * Remove an attribute attached to this connection
+	 * 
+	 * @param name
+	 *            attribute name
+	 * @return previous attribute value or null if not set
+	 */
+	public Object removeAttribute(String name);
 }
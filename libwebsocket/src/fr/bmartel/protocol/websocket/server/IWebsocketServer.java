@@ -15,6 +15,16 @@ public interface IWebsocketServer {
 	 * close websocket server
 	 */
 	public void closeServer();
+
+	/**
+	 * Shutdown websocket server gracefully : clients receive a close frame
+	 * and are closed forcibly if they have not answered before timeout
+	 * 
+	 * @param timeout
+	 *            time in milliseconds given to clients
+	 * @return true if all clients have been closed cleanly before timeout
+	 */
+	public boolean shutdown(long timeout);
 	
 	/**
 	 * Add Client event listener to server list for library user to be notified of all server events 
@@ -0,0 +1,152 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+
+/**
+ * <b>Keepalive of client connections</b>
+ *
+ * Each client is checked on a shared timer wheel : a ping is sent at each
+ * ping interval and client is disconnected once it has missed a number of
+ * pongs in a row (half-open connection) or when no data message has been
+ * received or sent during idle timeout.
+ *
+ * @author Bertrand Martel
+ */
+class KeepAlive {
+
+	/** timer wheel running checks */
+	private final TimerWheel timerWheel;
+
+	/** interval between pings in nanoseconds (0 if disabled) */
+	private final long pingInterval;
+
+	/** number of unanswered pings in a row after which client is closed */
+	private final int maxMissedPongs;
+
+	/** idle time in nanoseconds after which client is closed (0 if disabled) */
+	private final long idleTimeout;
+
+	/** number of clients closed because they missed too many pongs */
+	private final AtomicLong pingTimeoutCount;
+
+	/** number of clients closed because they have been idle too long */
+	private final AtomicLong idleTimeoutCount;
+
+	/**
+	 * Build keepalive settings
+	 *
+	 * @param timerWheel
+	 *            timer wheel running checks
+	 * @param pingInterval
+	 *            interval between pings in milliseconds (0 to disable)
+	 * @param maxMissedPongs
+	 *            number of unanswered pings in a row after which client is
+	 *            closed
+	 * @param idleTimeout
+	 *            idle time in milliseconds after which client is closed (0 to
+	 *            disable)
+	 * @param pingTimeoutCount
+	 *            counter of clients closed because of missed pongs
+	 * @param idleTimeoutCount
+	 *            counter of clients closed because of idle timeout
+	 */
+	KeepAlive(TimerWheel timerWheel, long pingInterval, int maxMissedPongs,
+			long idleTimeout, AtomicLong pingTimeoutCount,
+			AtomicLong idleTimeoutCount) {
+		this.timerWheel = timerWheel;
+		this.pingInterval = TimeUnit.MILLISECONDS.toNanos(pingInterval);
+		this.maxMissedPongs = Math.max(maxMissedPongs, 1);
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.pingTimeoutCount = pingTimeoutCount;
+		this.idleTimeoutCount = idleTimeoutCount;
+	}
+
+	/**
+	 * Start checking a newly connected client
+	 *
+	 * @param client
+	 *            websocket client
+	 */
+	void register(AbstractWebsocketClient client) {
+		Check check = new Check(client);
+		timerWheel.schedule(check, pingInterval > 0 ? pingInterval
+				: idleTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Periodic check of a client (run from timer thread)
+	 */
+	private class Check implements Runnable {
+
+		/** websocket client */
+		private final AbstractWebsocketClient client;
+
+		/** time next ping is due (System.nanoTime()) */
+		private long nextPing;
+
+		private Check(AbstractWebsocketClient client) {
+			this.client = client;
+			this.nextPing = System.nanoTime() + pingInterval;
+		}
+
+		/**
+		 * Close client if it is idle or has missed too many pongs, send a
+		 * ping if it is due and schedule next check
+		 */
+		@Override
+		public void run() {
+			if (!client.isOpen()) {
+				return;
+			}
+			long now = System.nanoTime();
+			long idle = now - client.getLastActivity();
+
+			if (idleTimeout > 0 && idle >= idleTimeout) {
+				idleTimeoutCount.incrementAndGet();
+				client.close(WebSocketCloseCode.GOING_AWAY, "idle timeout");
+				return;
+			}
+			long delay = idleTimeout > 0 ? idleTimeout - idle : Long.MAX_VALUE;
+
+			if (pingInterval > 0) {
+				if (now - nextPing >= 0) {
+					if (client.checkPong() >= maxMissedPongs) {
+						pingTimeoutCount.incrementAndGet();
+						client.close();
+						return;
+					}
+					client.ping();
+					nextPing = now + pingInterval;
+				}
+				delay = Math.min(delay, nextPing - now);
+			}
+			timerWheel.schedule(this, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+}
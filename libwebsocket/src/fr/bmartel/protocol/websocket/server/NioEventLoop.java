@@ -0,0 +1,348 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+
+/**
+ * <b>Selector based event loop</b>
+ *
+ * One event loop thread drives handshake, reading and writing of all socket
+ * channels registered on it
+ *
+ * @author Bertrand Martel
+ */
+public class NioEventLoop implements Runnable {
+
+	/** size of buffer used to read from socket channels */
+	private final static int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** selector used to wait for socket channel events */
+	private Selector selector;
+
+	/** tasks to be run on event loop thread */
+	private ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * socket channels to be flushed at end of current loop iteration
+	 * (accessed by event loop thread only)
+	 */
+	private ArrayList<NioSocketChannel> pendingFlushes = new ArrayList<NioSocketChannel>();
+
+	/**
+	 * read buffer shared by all socket channels of this event loop : buffer is
+	 * off-heap so that socket data is not copied through a temporary direct
+	 * buffer on each read
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	/** event loop running control */
+	private volatile boolean running = true;
+
+	/** event loop thread */
+	private Thread thread = null;
+
+	/** listener notified of client events */
+	private IClientEventListener clientListener = null;
+
+	/** socket buffer used to write to socket channels */
+	private SocketBuffer socketBuffer = null;
+
+	/** timer closing connections whose handshake does not complete in time */
+	private TimerWheel timerWheel = null;
+
+	/** time in milliseconds given to opening handshake (0 if disabled) */
+	private long handshakeTimeout = 0;
+
+	/** context of TLS engines (null if connections are not encrypted) */
+	private SSLContext sslContext = null;
+
+	/** executor running TLS handshake tasks */
+	private Executor sslTaskExecutor = null;
+
+	/** pool of TLS packet buffers */
+	private BufferPool packetPool = null;
+
+	/**
+	 * Build event loop
+	 *
+	 * @param clientListener
+	 *            listener notified of client events
+	 * @param socketBuffer
+	 *            socket buffer used to write to socket channels
+	 * @throws IOException
+	 */
+	public NioEventLoop(IClientEventListener clientListener,
+			SocketBuffer socketBuffer) throws IOException {
+		this.clientListener = clientListener;
+		this.socketBuffer = socketBuffer;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Close connections registered afterwards if opening handshake does not
+	 * complete in time
+	 *
+	 * @param timerWheel
+	 *            timer running timeouts
+	 * @param handshakeTimeout
+	 *            time in milliseconds given to handshake (0 to disable)
+	 */
+	public void setHandshakeTimeout(TimerWheel timerWheel,
+			long handshakeTimeout) {
+		this.timerWheel = timerWheel;
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Encrypt connections registered afterwards with TLS
+	 *
+	 * @param sslContext
+	 *            context creating a TLS engine per connection
+	 * @param sslTaskExecutor
+	 *            executor running handshake tasks delegated by engines, so
+	 *            that they never block event loop
+	 * @param packetPool
+	 *            pool of TLS packet buffers
+	 */
+	public void setSSLContext(SSLContext sslContext,
+			Executor sslTaskExecutor, BufferPool packetPool) {
+		this.sslContext = sslContext;
+		this.sslTaskExecutor = sslTaskExecutor;
+		this.packetPool = packetPool;
+	}
+
+	/**
+	 * Register a new accepted socket channel on this event loop
+	 *
+	 * @param socketChannel
+	 *            accepted socket channel
+	 * @param outboundQueue
+	 *            queue of frames waiting to be written to client
+	 * @param websocketChannel
+	 *            websocket decoder configured for this connection
+	 */
+	public void register(final SocketChannel socketChannel,
+			final OutboundQueue outboundQueue,
+			final WebSocketChannel websocketChannel) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					socketChannel.configureBlocking(false);
+					socketBuffer.configureSocket(socketChannel.socket());
+
+					NioSocketChannel channel = new NioSocketChannel(
+							socketChannel, NioEventLoop.this, clientListener,
+							socketBuffer, outboundQueue, websocketChannel);
+
+					if (sslContext != null) {
+						SSLEngine engine = sslContext.createSSLEngine();
+						engine.setUseClientMode(false);
+						channel.startTls(engine, sslTaskExecutor, packetPool);
+					}
+
+					channel.setSelectionKey(socketChannel.register(selector,
+							SelectionKey.OP_READ, channel));
+
+					if (timerWheel != null) {
+						channel.setHandshakeTimeout(timerWheel,
+								handshakeTimeout);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					try {
+						socketChannel.close();
+					} catch (IOException e1) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a task on event loop thread
+	 *
+	 * @param task
+	 *            task to be run
+	 */
+	public void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+		} else {
+			taskQueue.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Determine if current thread is event loop thread
+	 *
+	 * @return true if called from event loop thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Main event loop : wait for socket channel events and process them
+	 */
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+
+		while (running) {
+			try {
+				selector.select();
+
+				runTasks();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					NioSocketChannel channel = (NioSocketChannel) key
+							.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							channel.read(readBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							channel.flush();
+						}
+					} catch (CancelledKeyException e) {
+						channel.close();
+					} catch (RuntimeException e) {
+						/* a failing listener must not stop other connections */
+						e.printStackTrace();
+						channel.close();
+					}
+				}
+				flushPending();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		runTasks();
+		flushPending();
+		closeAll();
+	}
+
+	/**
+	 * Read a socket channel whose TLS handshake tasks have completed : data
+	 * may have been left in its buffers while read interest was disabled
+	 * (called from event loop thread)
+	 *
+	 * @param channel
+	 *            socket channel going on with handshake
+	 */
+	void resumeRead(NioSocketChannel channel) {
+		channel.read(readBuffer);
+	}
+
+	/**
+	 * Flush a socket channel at end of current loop iteration, so that frames
+	 * queued while reading all ready channels are written with a single
+	 * gathering write per channel (called from event loop thread)
+	 *
+	 * @param channel
+	 *            socket channel having frames to write
+	 */
+	void flushLater(NioSocketChannel channel) {
+		pendingFlushes.add(channel);
+	}
+
+	/**
+	 * Flush socket channels having frames queued during this loop iteration
+	 */
+	private void flushPending() {
+		/* channels may be added while flushing (closed client listener) */
+		for (int i = 0; i < pendingFlushes.size(); i++) {
+			try {
+				pendingFlushes.get(i).flushIfOpen();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		pendingFlushes.clear();
+	}
+
+	/**
+	 * Run all pending tasks
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = taskQueue.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Close all socket channels registered on this event loop and selector
+	 */
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof NioSocketChannel) {
+				((NioSocketChannel) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop event loop : all socket channels will be closed
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
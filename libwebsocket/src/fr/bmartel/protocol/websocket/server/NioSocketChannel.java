@@ -0,0 +1,597 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import fr.bmartel.protocol.http.constants.HttpConstants;
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+import fr.bmartel.protocol.websocket.WebSocketHandshake;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.UpgradeRequest;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
+import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+
+/**
+ * <b>Non-blocking server socket connection management</b>
+ *
+ * All reading and writing is done by the event loop this socket channel is
+ * registered on
+ *
+ * @author Bertrand Martel
+ */
+public class NioSocketChannel extends AbstractWebsocketClient {
+
+	/** maximum number of buffers written by a single gathering write */
+	private final static int MAX_GATHERED_BUFFERS = 64;
+
+	/** maximum number of frames removed from outbound queue at once */
+	private final static int MAX_GATHERED_FRAMES = MAX_GATHERED_BUFFERS / 2;
+
+	/** socket buffer used to write to socket channel */
+	private SocketBuffer socketBuffer = null;
+
+	/** socket channel to be used by server */
+	private SocketChannel socketChannel;
+
+	/** event loop this socket channel is registered on */
+	private NioEventLoop eventLoop;
+
+	/** selection key of socket channel in event loop selector */
+	private SelectionKey selectionKey = null;
+
+	/**
+	 * http upgrade request being read (null once connection is upgraded,
+	 * only accessed from event loop)
+	 */
+	private UpgradeRequest upgradeRequest = new UpgradeRequest();
+
+	/** time reading of upgrade request has started (System.nanoTime()) */
+	private long handshakeStart = 0;
+
+	/** TLS layer (null if connection is not encrypted) */
+	private SSLEngineChannel tls = null;
+
+	/** define if frames are waiting for TLS handshake to be written */
+	private boolean writeBlocked = false;
+
+	/** define if reading waits for listener callbacks to be run */
+	private boolean readSuspended = false;
+
+	/** data read but not decoded yet when reading has been suspended */
+	private ByteBuffer suspendedInput = null;
+
+	/** frames removed from outbound queue being written */
+	private ArrayDeque<OutboundFrame> writeFrames = new ArrayDeque<OutboundFrame>();
+
+	/** buffers gathered from outbound queue for next write */
+	private ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+	/** define if a flush has already been requested on event loop */
+	private AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+	/** define if socket channel has been closed */
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	/** close socket channel when outbound queue has been written */
+	private volatile boolean closeAfterFlush = false;
+
+	/**
+	 * Define if websocket connection has been enables by client and server
+	 * (only changed from event loop)
+	 */
+	private volatile boolean websocket = false;
+
+	/**
+	 * Build non-blocking socket channel
+	 *
+	 * @param socketChannel
+	 *            socket channel accepted by server
+	 * @param eventLoop
+	 *            event loop this socket channel is registered on
+	 * @param clientListener
+	 *            listener notified of client events
+	 * @param socketBuffer
+	 *            socket buffer used to write to socket channel
+	 * @param outboundQueue
+	 *            queue of frames waiting to be written to client
+	 * @param websocketChannel
+	 *            websocket decoder configured for this connection
+	 */
+	public NioSocketChannel(SocketChannel socketChannel,
+			NioEventLoop eventLoop, IClientEventListener clientListener,
+			SocketBuffer socketBuffer, OutboundQueue outboundQueue,
+			WebSocketChannel websocketChannel) {
+		super(clientListener, outboundQueue, websocketChannel);
+		this.socketChannel = socketChannel;
+		this.eventLoop = eventLoop;
+		this.socketBuffer = socketBuffer;
+	}
+
+	/**
+	 * Set selection key of socket channel
+	 *
+	 * @param selectionKey
+	 */
+	public void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	/**
+	 * Encrypt connection with TLS : handshake is driven by event loop, tasks
+	 * delegated by engine are run by task executor
+	 *
+	 * @param engine
+	 *            engine in server mode
+	 * @param taskExecutor
+	 *            executor running handshake tasks
+	 * @param packetPool
+	 *            pool of TLS packet buffers
+	 * @throws SSLException
+	 */
+	public void startTls(SSLEngine engine, Executor taskExecutor,
+			BufferPool packetPool) throws SSLException {
+		tls = new SSLEngineChannel(engine, socketChannel, socketBuffer,
+				packetPool, taskExecutor, new Runnable() {
+
+					@Override
+					public void run() {
+						/* go on with handshake on event loop */
+						eventLoop.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								if (!closed.get()) {
+									eventLoop.resumeRead(NioSocketChannel.this);
+								}
+							}
+						});
+					}
+				}, websocketChannel.getMetrics());
+	}
+
+	/**
+	 * Read available data from socket channel (called from event loop)
+	 *
+	 * @param readBuffer
+	 *            event loop read buffer
+	 */
+	public void read(ByteBuffer readBuffer) {
+		if (readSuspended) {
+			/* data left before suspension must be decoded first */
+			return;
+		}
+		try {
+			do {
+				readBuffer.clear();
+
+				int count = tls != null ? tls.read(readBuffer) : socketChannel
+						.read(readBuffer);
+
+				if (count == -1) {
+					close();
+					return;
+				}
+				readBuffer.flip();
+
+				/* upgrade request is only accessed from event loop */
+				if (upgradeRequest != null && readBuffer.hasRemaining()) {
+					readHandshake(readBuffer);
+				}
+				if (upgradeRequest == null) {
+					readFrames(readBuffer);
+				}
+			} while (tls != null && tls.hasPendingInput() && !closed.get()
+					&& !readSuspended);
+
+			if (tls != null && !closed.get()) {
+				updateTlsInterest();
+			}
+		} catch (ProtocolException e) {
+			failConnection(e);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Stop reading socket channel while handshake tasks are running, wait for
+	 * socket channel to be writable if TLS packets are pending and write
+	 * frames which have been waiting for handshake
+	 */
+	private void updateTlsInterest() {
+		if (!selectionKey.isValid()) {
+			return;
+		}
+		int ops = selectionKey.interestOps();
+
+		ops = tls.isRunningTasks() || readSuspended ? ops
+				& ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ;
+
+		if (tls.isOutputPending()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		selectionKey.interestOps(ops);
+
+		if (writeBlocked && tls.isHandshakeDone()) {
+			writeBlocked = false;
+			scheduleWrite();
+		}
+	}
+
+	/**
+	 * Stop reading socket channel while too many listener callbacks are
+	 * waiting for dispatch executor : reading is resumed on event loop once
+	 * half of them have been run
+	 *
+	 * @return true if reading has been suspended
+	 */
+	private boolean suspendReadIfLate() {
+		SerialExecutor dispatcher = getDispatcher();
+
+		if (dispatcher == null) {
+			return false;
+		}
+		readSuspended = dispatcher.suspend(new Runnable() {
+
+			@Override
+			public void run() {
+				eventLoop.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						resumeRead();
+					}
+				});
+			}
+		});
+
+		if (readSuspended && tls == null && selectionKey.isValid()) {
+			selectionKey.interestOps(selectionKey.interestOps()
+					& ~SelectionKey.OP_READ);
+		}
+		return readSuspended;
+	}
+
+	/**
+	 * Read socket channel again once listener callbacks have caught up
+	 * (called from event loop)
+	 */
+	private void resumeRead() {
+		readSuspended = false;
+
+		if (closed.get() || !selectionKey.isValid()) {
+			return;
+		}
+		if (suspendedInput != null) {
+			try {
+				readFrames(suspendedInput);
+			} catch (ProtocolException e) {
+				failConnection(e);
+				return;
+			}
+			if (readSuspended || closed.get()) {
+				return;
+			}
+			suspendedInput = null;
+		}
+		if (tls != null) {
+			/* read interest is restored with TLS interests */
+			eventLoop.resumeRead(this);
+		} else {
+			selectionKey.interestOps(selectionKey.interestOps()
+					| SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Accumulate http upgrade request until all headers have been read and
+	 * switch to websocket protocol. Data following request is left in read
+	 * buffer.
+	 *
+	 * @param readBuffer
+	 *            data read from socket channel
+	 * @throws IOException
+	 */
+	private void readHandshake(ByteBuffer readBuffer) throws IOException {
+
+		if (handshakeStart == 0) {
+			handshakeStart = System.nanoTime();
+		}
+		int status = upgradeRequest.append(readBuffer);
+
+		if (status == UpgradeRequest.INCOMPLETE) {
+			return;
+		}
+		if (status != UpgradeRequest.COMPLETE) {
+			endHandshake(false, handshakeStart);
+			writeAndClose(HttpConstants.BAD_REQUEST_ERROR.getBytes("UTF-8"));
+			return;
+		}
+		UpgradeRequest request = upgradeRequest;
+		upgradeRequest = null;
+
+		/* write websocket handshake to client */
+		write(ByteBuffer.wrap(WebSocketHandshake.buildHandshakeResponse(
+				request.getKey(), negotiateExtensions(request.getExtensions()))));
+
+		endHandshake(true, handshakeStart);
+
+		websocket = true;
+
+		if (clientListener != null) {
+			clientListener.onClientConnection(this);
+		}
+
+		/* frames may have been sent right after upgrade request */
+		readFrames(request.getRemaining());
+	}
+
+	/**
+	 * Decode all websocket frames available in buffer
+	 *
+	 * @param buffer
+	 *            data read from socket channel
+	 * @throws ProtocolException
+	 *             if client does not respect websocket protocol
+	 */
+	private void readFrames(ByteBuffer buffer) throws ProtocolException {
+
+		if (readSuspended) {
+			keepSuspendedInput(buffer);
+			return;
+		}
+		while (buffer.hasRemaining() && !closed.get() && !isInputShutdown()) {
+
+			WebSocketMessage message = websocketChannel.readMessage(buffer);
+
+			if (message == null) {
+				return;
+			}
+			if (message.getOpcodeType() == WebSocketOpcode.CONNECTION_CLOSE_FRAME) {
+				receiveClose(message.payloadData);
+				return;
+			}
+			notifyMessage(message);
+
+			if (suspendReadIfLate()) {
+				keepSuspendedInput(buffer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Keep data which has not been decoded when reading has been suspended :
+	 * event loop read buffer is reused by other channels
+	 *
+	 * @param buffer
+	 *            data left in buffer being decoded
+	 */
+	private void keepSuspendedInput(ByteBuffer buffer) {
+		if (buffer == suspendedInput || !buffer.hasRemaining()) {
+			return;
+		}
+		ByteBuffer input = ByteBuffer.allocate((suspendedInput != null ? suspendedInput
+				.remaining() : 0) + buffer.remaining());
+		if (suspendedInput != null) {
+			input.put(suspendedInput);
+		}
+		input.put(buffer);
+		input.flip();
+		suspendedInput = input;
+	}
+
+	/**
+	 * Write pending frames to socket channel (called from event loop). Frames
+	 * are gathered so that headers and payloads of several frames are written
+	 * with a single system call.
+	 */
+	public void flush() {
+		flushRequested.set(false);
+
+		try {
+			/* pending TLS packets and handshake data are written first */
+			if (tls != null && !tls.write(writeBuffers, 0, 0)) {
+				waitWritable();
+				return;
+			}
+			while (!writeFrames.isEmpty()
+					|| outboundQueue.drainTo(writeFrames, MAX_GATHERED_FRAMES) > 0) {
+
+				int count = 0;
+				for (OutboundFrame frame : writeFrames) {
+					if (count + frame.buffers.length > writeBuffers.length) {
+						break;
+					}
+					for (int i = 0; i < frame.buffers.length; i++) {
+						writeBuffers[count++] = frame.buffers[i];
+					}
+				}
+				boolean complete;
+
+				if (tls != null) {
+					complete = tls.write(writeBuffers, 0, count);
+				} else {
+					socketBuffer.write(socketChannel, writeBuffers, 0, count);
+					complete = !writeBuffers[count - 1].hasRemaining();
+				}
+				Arrays.fill(writeBuffers, 0, count, null);
+
+				OutboundFrame frame;
+				while ((frame = writeFrames.peek()) != null
+						&& frame.isWritten()) {
+					frameWritten(writeFrames.poll());
+				}
+				if (!complete) {
+					waitWritable();
+					return;
+				}
+			}
+			if (selectionKey.isValid()) {
+				selectionKey.interestOps(selectionKey.interestOps()
+						& ~SelectionKey.OP_WRITE);
+			}
+			if (closeAfterFlush) {
+				close();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Wait for OP_WRITE if socket send buffer is full. Frames waiting for TLS
+	 * handshake are written once handshake has completed.
+	 */
+	private void waitWritable() {
+		if (tls != null && !tls.isOutputPending()) {
+			writeBlocked = true;
+			selectionKey.interestOps(selectionKey.interestOps()
+					& ~SelectionKey.OP_WRITE);
+			return;
+		}
+		selectionKey.interestOps(selectionKey.interestOps()
+				| SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Queue http response (data which must never be dropped) to be written
+	 * to socket channel by event loop
+	 *
+	 * @param buffers
+	 *            buffers to be written
+	 */
+	private void write(ByteBuffer... buffers) {
+		OutboundFrame frame = new OutboundFrame(null, false, buffers);
+		frame.raw = true;
+		if (outboundQueue.put(frame)) {
+			scheduleWrite();
+		}
+	}
+
+	@Override
+	protected boolean isOpen() {
+		return websocket && !closed.get();
+	}
+
+	@Override
+	protected boolean mayBlock() {
+		/* event loop must never wait for itself to drain outbound queue */
+		return !eventLoop.inEventLoop();
+	}
+
+	@Override
+	protected void scheduleWrite() {
+		if (flushRequested.compareAndSet(false, true)) {
+			if (eventLoop.inEventLoop()) {
+				eventLoop.flushLater(this);
+				return;
+			}
+			eventLoop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					eventLoop.flushLater(NioSocketChannel.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write pending frames unless socket channel has been closed meanwhile
+	 * (called from event loop)
+	 */
+	void flushIfOpen() {
+		if (!closed.get()) {
+			flush();
+		} else {
+			flushRequested.set(false);
+		}
+	}
+
+	/**
+	 * Write data and close socket channel once it has been written
+	 *
+	 * @param data
+	 *            data to be written
+	 */
+	private void writeAndClose(byte[] data) {
+		closeAfterFlush = true;
+		write(ByteBuffer.wrap(data));
+	}
+
+	@Override
+	public int close() {
+		if (!closed.compareAndSet(false, true)) {
+			return 0;
+		}
+		outboundQueue.close();
+
+		/* connection state is only changed from event loop */
+		eventLoop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				websocket = false;
+
+				if (selectionKey != null) {
+					selectionKey.cancel();
+				}
+				IOException cause = new IOException("connection closed");
+				OutboundFrame frame;
+				while ((frame = writeFrames.poll()) != null) {
+					frame.fail(cause);
+				}
+				if (tls != null) {
+					tls.close();
+				}
+				try {
+					socketChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				releaseExtensions();
+
+				if (clientListener != null && upgradeRequest == null) {
+					clientListener.onClientClose(NioSocketChannel.this);
+				}
+			}
+		});
+		return 0;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
+
+/**
+ * <b>Frame waiting in a client outbound queue</b>
+ *
+ * @author Bertrand Martel
+ */
+class OutboundFrame {
+
+	/** buffers to be written (header buffer followed by payload buffer) */
+	final ByteBuffer[] buffers;
+
+	/** future completed when frame has been written (may be null) */
+	private final CompletableFuture<Void> future;
+
+	/**
+	 * define if frame may be dropped when queue is full : only self-contained
+	 * data messages may be (not a frame compressed with context takeover
+	 * whose data next frames reference, a fragment, a control frame or http
+	 * response)
+	 */
+	final boolean droppable;
+
+	/**
+	 * pooled buffer holding frame data, released once frame has been written
+	 * or dropped (may be null)
+	 */
+	private PooledBuffer pooledBuffer = null;
+
+	/**
+	 * define if buffers do not hold a websocket frame (http response) : not
+	 * recorded in metrics
+	 */
+	boolean raw = false;
+
+	/** time frame has been queued (System.nanoTime(), 0 if not recorded) */
+	long queuedTime = 0;
+
+	/** frame length on the wire (set when queued time is recorded) */
+	int length = 0;
+
+	/** frame opcode (set when queued time is recorded) */
+	int opcode = 0;
+
+	/**
+	 * Build outbound frame
+	 *
+	 * @param future
+	 *            future completed when frame has been written (may be null)
+	 * @param buffers
+	 *            buffers to be written
+	 */
+	OutboundFrame(CompletableFuture<Void> future, ByteBuffer... buffers) {
+		this(future, true, buffers);
+	}
+
+	/**
+	 * Build outbound frame
+	 *
+	 * @param future
+	 *            future completed when frame has been written (may be null)
+	 * @param droppable
+	 *            define if frame may be dropped when queue is full
+	 * @param buffers
+	 *            buffers to be written
+	 */
+	OutboundFrame(CompletableFuture<Void> future, boolean droppable,
+			ByteBuffer... buffers) {
+		this.future = future;
+		this.droppable = droppable;
+		this.buffers = buffers;
+	}
+
+	/**
+	 * Build outbound frame whose data is held by a pooled buffer
+	 *
+	 * @param future
+	 *            future completed when frame has been written (may be null)
+	 * @param pooledBuffer
+	 *            pooled buffer holding frame data (frame owns a reference on
+	 *            it)
+	 * @param buffers
+	 *            buffers to be written
+	 */
+	OutboundFrame(CompletableFuture<Void> future, PooledBuffer pooledBuffer,
+			ByteBuffer... buffers) {
+		this(future, true, buffers);
+		this.pooledBuffer = pooledBuffer;
+	}
+
+	/**
+	 * Determine if all buffers of frame have been written
+	 *
+	 * @return true if frame has been entirely written
+	 */
+	boolean isWritten() {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i].hasRemaining()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Notify frame has been written
+	 */
+	void complete() {
+		release();
+		if (future != null) {
+			future.complete(null);
+		}
+	}
+
+	/**
+	 * Notify frame will never be written
+	 *
+	 * @param cause
+	 *            reason why frame has not been written
+	 */
+	void fail(Throwable cause) {
+		release();
+		if (future != null) {
+			future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Give pooled buffer back once frame data is not needed anymore
+	 */
+	private void release() {
+		if (pooledBuffer != null) {
+			pooledBuffer.release();
+			pooledBuffer = null;
+		}
+	}
+}
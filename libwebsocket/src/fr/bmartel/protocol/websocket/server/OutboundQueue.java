@@ -0,0 +1,538 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+
+/**
+ * <b>Bounded queue of frames waiting to be written to a client</b>
+ *
+ * Frames are queued by any thread and drained by the thread writing to the
+ * socket, so that a stalled client never blocks senders (except with
+ * {@link OverflowPolicy#BLOCK} policy where senders wait up to a timeout).
+ *
+ * @author Bertrand Martel
+ */
+public class OutboundQueue {
+
+	/** default maximum number of queued frames */
+	public final static int DEFAULT_CAPACITY = 1024;
+
+	/** frame has been queued */
+	public final static int QUEUED = 0;
+
+	/** frame has been dropped */
+	public final static int DROPPED = -1;
+
+	/** queue is full and client must be disconnected */
+	public final static int OVERFLOW = -2;
+
+	/** maximum number of queued frames */
+	private final int capacity;
+
+	/** behaviour when queue is full */
+	private final OverflowPolicy policy;
+
+	/**
+	 * maximum time in milliseconds a sender waits with BLOCK policy or for
+	 * room for a stream fragment
+	 */
+	private final long blockTimeout;
+
+	/** lock protecting frame queue */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** signaled when frames have been drained */
+	private final Condition notFull = lock.newCondition();
+
+	/** queued frames */
+	private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<OutboundFrame>();
+
+	/** define if queue has been closed */
+	private boolean closed = false;
+
+	/** define if last frame (close frame) has been queued */
+	private boolean last = false;
+
+	/** pong waiting in queue (null if none, lock must be held) */
+	private OutboundFrame pendingPong = null;
+
+	/** number of queued frames */
+	private volatile int size = 0;
+
+	/** maximum number of frames queued at the same time */
+	private volatile int maxSize = 0;
+
+	/** number of frames queued since creation */
+	private volatile long queuedCount = 0;
+
+	/** number of frames dropped since creation */
+	private volatile long droppedCount = 0;
+
+	/** metrics notified of queued and dropped frames (may be null) */
+	private IWebsocketMetrics metrics = null;
+
+	/**
+	 * Build outbound queue
+	 *
+	 * @param capacity
+	 *            maximum number of queued frames
+	 * @param policy
+	 *            behaviour when queue is full
+	 * @param blockTimeout
+	 *            maximum time in milliseconds a sender waits with BLOCK
+	 *            policy or for room for a stream fragment
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeout) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * Queue a frame according to overflow policy. A dropped frame is notified
+	 * as failed. Client must be disconnected when a frame which is not
+	 * droppable would be dropped.
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @param mayBlock
+	 *            define if caller may wait for room in queue (BLOCK policy)
+	 * @return QUEUED, DROPPED or OVERFLOW if client must be disconnected
+	 */
+	int offer(OutboundFrame frame, boolean mayBlock) {
+		OutboundFrame dropped = null;
+		int result = QUEUED;
+		String reason = "outbound queue full";
+
+		lock.lock();
+		try {
+			if (closed || last) {
+				dropped = frame;
+				result = DROPPED;
+				reason = closed ? "connection closed" : "connection closing";
+			} else if (frames.size() >= capacity) {
+				switch (policy) {
+				case DROP_OLDEST:
+					dropped = removeOldestDroppable();
+					if (dropped == null) {
+						dropped = frame;
+						result = frame.droppable ? DROPPED : OVERFLOW;
+					}
+					break;
+				case DISCONNECT:
+					dropped = frame;
+					result = OVERFLOW;
+					break;
+				case BLOCK:
+					if (mayBlock && awaitRoom()) {
+						break;
+					}
+					dropped = frame;
+					result = frame.droppable ? DROPPED : OVERFLOW;
+					break;
+				default:
+					dropped = frame;
+					result = frame.droppable ? DROPPED : OVERFLOW;
+					break;
+				}
+			}
+			if (dropped != null) {
+				droppedCount++;
+			}
+			if (result == QUEUED) {
+				add(frame);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (dropped != null) {
+			if (metrics != null) {
+				metrics.onFrameDropped();
+			}
+			dropped.fail(new IOException(reason));
+		}
+		return result;
+	}
+
+	/**
+	 * Drop a frame which could not be queued : it is counted as dropped and
+	 * notified as failed
+	 *
+	 * @param frame
+	 *            frame dropped
+	 */
+	void drop(OutboundFrame frame) {
+		lock.lock();
+		try {
+			droppedCount++;
+		} finally {
+			lock.unlock();
+		}
+		if (metrics != null) {
+			metrics.onFrameDropped();
+		}
+		frame.fail(new IOException("outbound queue full"));
+	}
+
+	/**
+	 * Remove oldest frame which may be dropped : fragments of a message being
+	 * sent, control frames and http response are never evicted (lock must be
+	 * held)
+	 *
+	 * @return frame removed or null if no queued frame may be dropped
+	 */
+	private OutboundFrame removeOldestDroppable() {
+		Iterator<OutboundFrame> it = frames.iterator();
+		while (it.hasNext()) {
+			OutboundFrame frame = it.next();
+			if (frame.droppable) {
+				it.remove();
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for room in queue up to block timeout (lock must be held)
+	 *
+	 * @return true if there is room in queue
+	 */
+	private boolean awaitRoom() {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		try {
+			while (frames.size() >= capacity && !closed && !last) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !closed && !last;
+	}
+
+	/**
+	 * Queue a frame regardless of capacity (used for protocol frames which
+	 * must never be dropped)
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @return true if frame has been queued, false if queue is closed or
+	 *         close frame has been queued
+	 */
+	boolean put(OutboundFrame frame) {
+		lock.lock();
+		try {
+			if (!closed && !last) {
+				add(frame);
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		frame.fail(new IOException("connection closed"));
+		return false;
+	}
+
+	/**
+	 * Queue a pong answering a ping regardless of capacity : a pong still
+	 * waiting in queue is given payload of the latest ping instead of queueing
+	 * another one (RFC 6455 5.5.3 allows answering only the most recent ping),
+	 * so that a peer sending pings without reading never grows queue
+	 *
+	 * @param frame
+	 *            pong frame
+	 * @return true if pong has been queued or pending pong has been updated,
+	 *         false if queue is closed or close frame has been queued
+	 */
+	boolean putPong(OutboundFrame frame) {
+		lock.lock();
+		try {
+			if (!closed && !last) {
+				if (pendingPong != null
+						&& pendingPong.buffers.length == frame.buffers.length) {
+					/* writer only reads frames once they are drained */
+					System.arraycopy(frame.buffers, 0, pendingPong.buffers, 0,
+							frame.buffers.length);
+					if (pendingPong.queuedTime != 0) {
+						/* keep queued time of first pong for latency */
+						long queuedTime = pendingPong.queuedTime;
+						stamp(pendingPong);
+						pendingPong.queuedTime = queuedTime;
+					}
+					return true;
+				}
+				add(frame);
+				pendingPong = frame;
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		frame.fail(new IOException("connection closed"));
+		return false;
+	}
+
+	/**
+	 * Queue a frame regardless of overflow policy once number of queued frames
+	 * is under a limit, waiting up to block timeout (used for message
+	 * fragments which must never be dropped)
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @param limit
+	 *            number of queued frames under which frame is queued
+	 * @return true if frame has been queued, false if queue is closed, close
+	 *         frame has been queued, block timeout has expired or thread has
+	 *         been interrupted
+	 */
+	boolean putWhenBelow(OutboundFrame frame, int limit) {
+		String reason = "connection closed";
+		long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+		lock.lock();
+		try {
+			while (frames.size() >= limit && !closed && !last) {
+				if (nanos <= 0) {
+					reason = "outbound queue full";
+					break;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			if (frames.size() < limit && !closed && !last) {
+				add(frame);
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		frame.fail(new IOException(reason));
+		return false;
+	}
+
+	/**
+	 * Queue last frame of connection regardless of capacity : frames already
+	 * queued are written before it and no more frame will be accepted (used
+	 * for close frame)
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 * @return true if frame has been queued, false if queue is closed or
+	 *         last frame has already been queued
+	 */
+	boolean putLast(OutboundFrame frame) {
+		lock.lock();
+		try {
+			if (!closed && !last) {
+				add(frame);
+				last = true;
+				/* senders waiting for room will give up */
+				notFull.signalAll();
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		frame.fail(new IOException("connection closed"));
+		return false;
+	}
+
+	/**
+	 * Add a frame to queue and update statistics (lock must be held)
+	 *
+	 * @param frame
+	 *            frame to be queued
+	 */
+	private void add(OutboundFrame frame) {
+		if (metrics != null && !frame.raw) {
+			stamp(frame);
+		}
+		frames.add(frame);
+		size = frames.size();
+		queuedCount++;
+		if (size > maxSize) {
+			maxSize = size;
+		}
+	}
+
+	/**
+	 * Record queue time, length and opcode of a frame so that send latency
+	 * can be measured once it has been written
+	 *
+	 * @param frame
+	 *            frame being queued
+	 */
+	private void stamp(OutboundFrame frame) {
+		int length = 0;
+		for (int i = 0; i < frame.buffers.length; i++) {
+			length += frame.buffers[i].remaining();
+		}
+		if (length > 0) {
+			ByteBuffer header = frame.buffers[0];
+			frame.opcode = header.get(header.position()) & 0x0F;
+		}
+		frame.length = length;
+		frame.queuedTime = System.nanoTime();
+	}
+
+	/**
+	 * Remove queued frames to be written
+	 *
+	 * @param target
+	 *            collection receiving frames
+	 * @param max
+	 *            maximum number of frames to be removed
+	 * @return number of frames removed
+	 */
+	int drainTo(Collection<OutboundFrame> target, int max) {
+		lock.lock();
+		try {
+			int count = 0;
+			OutboundFrame frame;
+			while (count < max && (frame = frames.poll()) != null) {
+				if (frame == pendingPong) {
+					pendingPong = null;
+				}
+				target.add(frame);
+				count++;
+			}
+			if (count > 0) {
+				size = frames.size();
+				notFull.signalAll();
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close queue : queued frames are notified as failed and no more frame
+	 * will be accepted
+	 */
+	void close() {
+		List<OutboundFrame> remaining = new ArrayList<OutboundFrame>();
+		lock.lock();
+		try {
+			closed = true;
+			pendingPong = null;
+			remaining.addAll(frames);
+			frames.clear();
+			size = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		IOException cause = new IOException("connection closed");
+		for (int i = 0; i < remaining.size(); i++) {
+			remaining.get(i).fail(cause);
+		}
+	}
+
+	/**
+	 * Determine if there is no queued frame
+	 *
+	 * @return true if queue is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Retrieve number of queued frames
+	 *
+	 * @return queue depth
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Retrieve maximum number of frames queued at the same time since
+	 * creation
+	 *
+	 * @return highest queue depth
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Retrieve number of frames queued since creation
+	 *
+	 * @return number of queued frames
+	 */
+	public long getQueuedCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * Retrieve number of frames dropped since creation
+	 *
+	 * @return number of dropped frames
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public IWebsocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set metrics notified of dropped frames : queued frames are stamped so
+	 * that their send latency is recorded once written. Must be set before
+	 * frames are queued.
+	 *
+	 * @param metrics
+	 *            metrics (null to disable)
+	 */
+	public void setMetrics(IWebsocketMetrics metrics) {
+		this.metrics = metrics;
+	}
+}
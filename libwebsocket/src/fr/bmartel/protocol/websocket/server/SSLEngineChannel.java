@@ -0,0 +1,471 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.PooledBuffer;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+
+/**
+ * <b>TLS layer of a non-blocking socket channel</b>
+ *
+ * Data is encrypted and decrypted by an SSLEngine. Network packets are kept
+ * in buffers taken from a buffer pool only while they hold data, so that an
+ * idle connection holds no packet buffer. Handshake tasks delegated by
+ * SSLEngine (key exchange, certificate validation) are run by a task executor
+ * and never block event loop : socket channel must not be read until tasks
+ * have completed (see isRunningTasks()).
+ *
+ * Methods but constructor callback are called from event loop thread.
+ *
+ * @author Bertrand Martel
+ */
+class SSLEngineChannel {
+
+	/** no application data to encrypt (handshake and close_notify) */
+	private final static ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+	/** engine encrypting and decrypting data */
+	private final SSLEngine engine;
+
+	/** socket channel packets are read from and written to */
+	private final SocketChannel socketChannel;
+
+	/** socket buffer used to write to socket channel */
+	private final SocketBuffer socketBuffer;
+
+	/** pool of packet buffers */
+	private final BufferPool packetPool;
+
+	/** executor running handshake tasks */
+	private final Executor taskExecutor;
+
+	/** called from task executor when delegated tasks have completed */
+	private final Runnable tasksDone;
+
+	/** metrics notified of TLS handshake (may be null) */
+	private final IWebsocketMetrics metrics;
+
+	/** size of largest TLS packet */
+	private final int packetSize;
+
+	/** packets read from socket channel and not decrypted yet */
+	private PooledBuffer netIn = null;
+
+	/** view of netIn (filled up to position) */
+	private ByteBuffer inBuffer = null;
+
+	/** encrypted packets not written to socket channel yet */
+	private PooledBuffer netOut = null;
+
+	/** view of netOut (filled up to position) */
+	private ByteBuffer[] outBuffers = new ByteBuffer[1];
+
+	/** define if socket channel must be read before next packet is decrypted */
+	private boolean underflow = true;
+
+	/** define if decrypted data did not fit in read buffer */
+	private boolean pendingInput = false;
+
+	/** define if delegated tasks are running */
+	private volatile boolean runningTasks = false;
+
+	/** define if first handshake has completed */
+	private boolean handshakeDone = false;
+
+	/** time connection has started (System.nanoTime()) */
+	private final long handshakeStart;
+
+	/** time connection has started (System.currentTimeMillis()) */
+	private final long handshakeStartMillis;
+
+	/** define if TLS layer has been closed */
+	private boolean closed = false;
+
+	/**
+	 * Build TLS layer and begin handshake
+	 *
+	 * @param engine
+	 *            engine configured in client or server mode
+	 * @param socketChannel
+	 *            non-blocking socket channel
+	 * @param socketBuffer
+	 *            socket buffer used to write to socket channel
+	 * @param packetPool
+	 *            pool of packet buffers
+	 * @param taskExecutor
+	 *            executor running handshake tasks
+	 * @param tasksDone
+	 *            called from task executor when handshake may go on
+	 * @param metrics
+	 *            metrics notified of TLS handshake (may be null)
+	 * @throws SSLException
+	 */
+	SSLEngineChannel(SSLEngine engine, SocketChannel socketChannel,
+			SocketBuffer socketBuffer, BufferPool packetPool,
+			Executor taskExecutor, Runnable tasksDone,
+			IWebsocketMetrics metrics) throws SSLException {
+		this.engine = engine;
+		this.socketChannel = socketChannel;
+		this.socketBuffer = socketBuffer;
+		this.packetPool = packetPool;
+		this.taskExecutor = taskExecutor;
+		this.tasksDone = tasksDone;
+		this.metrics = metrics;
+		this.packetSize = engine.getSession().getPacketBufferSize();
+		this.handshakeStart = System.nanoTime();
+		this.handshakeStartMillis = System.currentTimeMillis();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Read packets available on socket channel, go on with handshake and
+	 * decrypt application data. Socket channel is read at most once.
+	 *
+	 * @param dst
+	 *            buffer receiving decrypted data
+	 * @return number of bytes decrypted, -1 if connection has been closed by
+	 *         peer
+	 * @throws IOException
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		boolean socketRead = false;
+		pendingInput = false;
+
+		while (!runningTasks && !closed) {
+			HandshakeStatus status = engine.getHandshakeStatus();
+
+			if (status == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+				continue;
+			}
+			if (status == HandshakeStatus.NEED_WRAP) {
+				write(EMPTY, 0, 0);
+				if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+					/* socket send buffer is full */
+					break;
+				}
+				continue;
+			}
+			if (dst.remaining() < engine.getSession().getApplicationBufferSize()) {
+				pendingInput = !underflow;
+				break;
+			}
+			if (underflow) {
+				if (socketRead) {
+					break;
+				}
+				socketRead = true;
+
+				if (netIn == null) {
+					netIn = packetPool.acquire(packetSize);
+					inBuffer = ByteBuffer.wrap(netIn.array());
+				}
+				int count = socketChannel.read(inBuffer);
+
+				if (count == -1) {
+					closeInbound();
+					return dst.position() > start ? dst.position() - start
+							: -1;
+				}
+				if (count == 0) {
+					break;
+				}
+				underflow = false;
+			}
+			inBuffer.flip();
+
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(inBuffer, dst);
+			} finally {
+				inBuffer.compact();
+			}
+			handshakeProgress(result);
+
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				/* peer has sent close_notify : answer it */
+				write(EMPTY, 0, 0);
+				return dst.position() > start ? dst.position() - start : -1;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				pendingInput = true;
+				break;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+					|| inBuffer.position() == 0) {
+				underflow = true;
+			}
+		}
+		if (netIn != null && inBuffer.position() == 0) {
+			netIn.release();
+			netIn = null;
+			inBuffer = null;
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * Encrypt application data and write it to socket channel. Handshake
+	 * data and packets not written yet are written first.
+	 *
+	 * @param srcs
+	 *            buffers to be encrypted
+	 * @param offset
+	 *            index of first buffer
+	 * @param length
+	 *            number of buffers
+	 * @return true if all data has been encrypted and written, false if socket
+	 *         send buffer is full (see isOutputPending()) or if handshake is
+	 *         waiting for peer or for delegated tasks
+	 * @throws IOException
+	 */
+	boolean write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		if (!flushOutput()) {
+			return false;
+		}
+		while (!runningTasks) {
+			HandshakeStatus status = engine.getHandshakeStatus();
+
+			if (status == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+				continue;
+			}
+			if (status == HandshakeStatus.NEED_UNWRAP) {
+				return false;
+			}
+			if (status != HandshakeStatus.NEED_WRAP
+					&& !hasRemaining(srcs, offset, length)) {
+				return flushOutput();
+			}
+			if (netOut == null) {
+				netOut = packetPool.acquire(packetSize);
+				outBuffers[0] = ByteBuffer.wrap(netOut.array());
+			}
+			SSLEngineResult result = engine.wrap(srcs, offset, length,
+					outBuffers[0]);
+			handshakeProgress(result);
+
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				if (hasRemaining(srcs, offset, length)) {
+					throw new IOException("connection closed");
+				}
+				return flushOutput();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.OK
+					&& result.bytesConsumed() > 0
+					&& outBuffers[0].remaining() >= packetSize) {
+				/* several records are written at once */
+				continue;
+			}
+			if (!flushOutput()) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write encrypted packets not written yet
+	 *
+	 * @return true if all packets have been written
+	 * @throws IOException
+	 */
+	private boolean flushOutput() throws IOException {
+		if (netOut == null) {
+			return true;
+		}
+		ByteBuffer out = outBuffers[0];
+		out.flip();
+		try {
+			while (out.hasRemaining()) {
+				if (socketBuffer.write(socketChannel, outBuffers, 0, 1) == 0) {
+					break;
+				}
+			}
+		} finally {
+			out.compact();
+		}
+		if (out.position() > 0) {
+			return false;
+		}
+		netOut.release();
+		netOut = null;
+		outBuffers[0] = null;
+		return true;
+	}
+
+	/**
+	 * Run delegated tasks on task executor : they are never run by event loop
+	 */
+	private void runDelegatedTasks() {
+		runningTasks = true;
+
+		final Runnable tasks = new Runnable() {
+
+			@Override
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				runningTasks = false;
+			}
+		};
+		taskExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					tasks.run();
+				} finally {
+					tasksDone.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record TLS handshake once it has completed : session has been resumed
+	 * if it has been created before this connection
+	 *
+	 * @param result
+	 *            result of last wrap or unwrap
+	 */
+	private void handshakeProgress(SSLEngineResult result) {
+		if (handshakeDone
+				|| result.getHandshakeStatus() != HandshakeStatus.FINISHED) {
+			return;
+		}
+		handshakeDone = true;
+
+		if (metrics != null) {
+			boolean resumed = engine.getSession().getCreationTime()
+					< handshakeStartMillis;
+
+			metrics.onTlsHandshake(resumed, System.nanoTime() - handshakeStart);
+		}
+	}
+
+	/**
+	 * Peer has closed connection without close_notify
+	 */
+	private void closeInbound() {
+		try {
+			engine.closeInbound();
+		} catch (SSLException e) {
+			/* truncation is reported when connection is closed */
+		}
+	}
+
+	/**
+	 * Send close_notify if possible and give packet buffers back to pool
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		engine.closeOutbound();
+		try {
+			write(EMPTY, 0, 0);
+		} catch (IOException e) {
+		}
+		if (netIn != null) {
+			netIn.release();
+			netIn = null;
+			inBuffer = null;
+		}
+		if (netOut != null) {
+			netOut.release();
+			netOut = null;
+			outBuffers[0] = null;
+		}
+	}
+
+	/**
+	 * Determine if buffers have data left
+	 */
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset,
+			int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Define if decrypted data did not fit in read buffer : read() must be
+	 * called again even if socket channel has no data available
+	 *
+	 * @return true if packets are waiting to be decrypted
+	 */
+	boolean hasPendingInput() {
+		return pendingInput;
+	}
+
+	/**
+	 * Define if encrypted packets are waiting for socket channel to be
+	 * writable
+	 *
+	 * @return true if packets are waiting to be written
+	 */
+	boolean isOutputPending() {
+		return netOut != null;
+	}
+
+	/**
+	 * Define if delegated tasks are running : socket channel must not be read
+	 * until tasksDone callback has been called
+	 *
+	 * @return true if tasks are running
+	 */
+	boolean isRunningTasks() {
+		return runningTasks;
+	}
+
+	/**
+	 * Define if application data may be written
+	 *
+	 * @return true if first handshake has completed
+	 */
+	boolean isHandshakeDone() {
+		return handshakeDone;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <b>Executor running TLS handshake tasks on a bounded pool</b>
+ *
+ * Tasks rejected by the pool (its queue is full) are kept and submitted again
+ * each time a task ends, so that a handshake storm never moves key exchange
+ * onto an event loop. Connections waiting for their tasks do not read their
+ * socket meanwhile.
+ *
+ * @author Bertrand Martel
+ */
+class SSLTaskExecutor implements Executor {
+
+	/** pool running tasks */
+	private final Executor executor;
+
+	/** tasks rejected by pool waiting for a task to end */
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Build executor over a pool
+	 *
+	 * @param executor
+	 *            pool running tasks
+	 */
+	SSLTaskExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Submit a task to pool, or keep it until a running task ends if pool
+	 * rejects it
+	 *
+	 * @param task
+	 *            task to be run
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (!submit(task)) {
+			waiting.add(task);
+			/* running tasks may have ended before task has been kept */
+			submitWaiting();
+		}
+	}
+
+	/**
+	 * Submit a task to pool : next waiting task is submitted when it ends
+	 *
+	 * @param task
+	 *            task to be run
+	 * @return false if pool has rejected task
+	 */
+	private boolean submit(final Runnable task) {
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						submitWaiting();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Submit first waiting task, keeping it if pool is still full
+	 */
+	private void submitWaiting() {
+		Runnable task = waiting.poll();
+		if (task != null && !submit(task)) {
+			waiting.add(task);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+
+/**
+ * <b>Serial executor of a client connection over a shared executor</b>
+ *
+ * Listener callbacks of a connection are run one at a time in submission
+ * order, while callbacks of different connections run in parallel on the
+ * shared executor. A connection gives its worker thread back after a batch of
+ * callbacks so that a busy connection does not starve the others. Once too
+ * many callbacks are pending, reading of the connection is suspended until
+ * half of them have been run.
+ *
+ * @author Bertrand Martel
+ */
+class SerialExecutor implements Executor, Runnable {
+
+	/** maximum number of callbacks run before giving worker thread back */
+	private final static int BATCH_SIZE = 64;
+
+	/** default maximum number of callbacks pending for a connection */
+	public final static int DEFAULT_MAX_PENDING = 1024;
+
+	/** executor shared by all connections */
+	private final Executor executor;
+
+	/** callbacks waiting to be run */
+	private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+
+	/** number of callbacks queued or running (drain is scheduled when > 0) */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** number of callbacks waiting to be run for all connections */
+	private final AtomicLong queueDepth;
+
+	/** metrics notified of dispatch latency (may be null) */
+	private final IWebsocketMetrics metrics;
+
+	/** number of pending callbacks above which reading is suspended */
+	private final int maxPending;
+
+	/** callback resuming reading of connection (set while it is suspended) */
+	private final AtomicReference<Runnable> resume = new AtomicReference<Runnable>();
+
+	/**
+	 * Callback and time it has been queued
+	 */
+	private static class Task {
+
+		private final Runnable runnable;
+
+		private final long queuedTime;
+
+		private Task(Runnable runnable) {
+			this.runnable = runnable;
+			this.queuedTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Build serial executor of a connection
+	 *
+	 * @param executor
+	 *            executor shared by all connections
+	 * @param queueDepth
+	 *            counter of callbacks waiting to be run for all connections
+	 * @param metrics
+	 *            metrics notified of dispatch latency (may be null)
+	 * @param maxPending
+	 *            number of pending callbacks above which reading of
+	 *            connection is suspended
+	 */
+	SerialExecutor(Executor executor, AtomicLong queueDepth,
+			IWebsocketMetrics metrics, int maxPending) {
+		this.executor = executor;
+		this.queueDepth = queueDepth;
+		this.metrics = metrics;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Queue a callback : it runs after every callback previously queued for
+	 * this connection
+	 *
+	 * @param runnable
+	 *            callback
+	 */
+	@Override
+	public void execute(Runnable runnable) {
+		tasks.add(new Task(runnable));
+		queueDepth.incrementAndGet();
+
+		if (pending.getAndIncrement() == 0) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Run queued callbacks until queue is empty or batch is over
+	 */
+	@Override
+	public void run() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			Task task = tasks.poll();
+			queueDepth.decrementAndGet();
+
+			if (metrics != null) {
+				metrics.onMessageDispatched(System.nanoTime()
+						- task.queuedTime);
+			}
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				/* a failing listener must not stop delivery to connection */
+				e.printStackTrace();
+			}
+			int remaining = pending.decrementAndGet();
+
+			if (remaining <= maxPending / 2 && resume.get() != null) {
+				Runnable callback = resume.getAndSet(null);
+				if (callback != null) {
+					callback.run();
+				}
+			}
+			if (remaining == 0) {
+				return;
+			}
+		}
+		/* callbacks are still pending : let other connections run first */
+		schedule();
+	}
+
+	/**
+	 * Suspend reading of connection if too many callbacks are pending (called
+	 * by reading thread)
+	 *
+	 * @param callback
+	 *            run by worker thread to resume reading once half of pending
+	 *            callbacks have been run
+	 * @return true if reading must be suspended until callback is run, false
+	 *         if reading can go on
+	 */
+	boolean suspend(Runnable callback) {
+		if (pending.get() < maxPending) {
+			return false;
+		}
+		resume.set(callback);
+
+		/* callbacks may have been run before resume callback was set */
+		if (pending.get() <= maxPending / 2
+				&& resume.compareAndSet(callback, null)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Block reading thread while too many callbacks are pending
+	 *
+	 * @throws InterruptedException
+	 */
+	void awaitCapacity() throws InterruptedException {
+		/* nothing to allocate while below limit (most calls) */
+		if (pending.get() < maxPending) {
+			return;
+		}
+		final CountDownLatch resumed = new CountDownLatch(1);
+
+		if (suspend(new Runnable() {
+
+			@Override
+			public void run() {
+				resumed.countDown();
+			}
+		})) {
+			resumed.await();
+		}
+	}
+
+	/**
+	 * Submit drain of queued callbacks to shared executor. Callbacks are run
+	 * by calling thread if executor has been shut down, so that close events
+	 * are still delivered.
+	 */
+	private void schedule() {
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			run();
+		}
+	}
+}
@@ -26,27 +26,37 @@ package fr.bmartel.protocol.websocket.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSocket;
 
-import fr.bmartel.protocol.http.HttpFrame;
 import fr.bmartel.protocol.http.constants.HttpConstants;
-import fr.bmartel.protocol.http.constants.HttpHeader;
-import fr.bmartel.protocol.http.states.HttpStates;
 import fr.bmartel.protocol.websocket.WebSocketChannel;
 import fr.bmartel.protocol.websocket.WebSocketHandshake;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.UpgradeRequest;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
 import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.SSLContextCache;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
 
 /**
  * <b>Server socket connection management</b>
  * 
  * @author Bertrand Martel
  */
-public class ServerSocketChannel implements Runnable, IWebsocketClient {
-
-	/** websocket decoder / encoder object */
-	private WebSocketChannel websocketChannel = null;
+public class ServerSocketChannel extends AbstractWebsocketClient implements
+		Runnable {
 
 	/** socket to be used by server */
 	private Socket socket;
@@ -57,10 +67,23 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 	/** outputstream to be used for writing */
 	private OutputStream outputStream;
 
-	/** http request parser */
-	private HttpFrame httpFrameParser;
+	/** socket buffer used to write to socket */
+	private SocketBuffer socketBuffer = null;
+
+	/** executor used to write queued frames */
+	private Executor frameExecutor = null;
+
+	/** maximum number of frames written before flushing socket */
+	private final static int MAX_WRITE_BATCH = 64;
+
+	/** frames removed from outbound queue being written */
+	private ArrayList<OutboundFrame> writeBatch = new ArrayList<OutboundFrame>();
 
-	private IClientEventListener clientListener = null;
+	/** define if a task writing queued frames has been scheduled */
+	private AtomicBoolean frameWriting = new AtomicBoolean(false);
+
+	/** define if client has been notified of connection closing */
+	private AtomicBoolean closed = new AtomicBoolean(false);
 
 	/**
 	 * Initialize socket connection when the connection is available ( socket
@@ -68,30 +91,32 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 	 * 
 	 * @param socket
 	 *            the socket opened
-	 * @param context
-	 *            the current OSGI context
+	 * @param clientListener
+	 *            listener notified of client events
+	 * @param socketBuffer
+	 *            socket buffer used to write to socket
+	 * @param frameExecutor
+	 *            executor used to write queued frames
+	 * @param outboundQueue
+	 *            queue of frames waiting to be written to client
+	 * @param websocketChannel
+	 *            websocket decoder configured for this connection
 	 */
 	public ServerSocketChannel(Socket socket,
-			IClientEventListener clientListener) {
+			IClientEventListener clientListener, SocketBuffer socketBuffer,
+			Executor frameExecutor, OutboundQueue outboundQueue,
+			WebSocketChannel websocketChannel) {
+		super(clientListener, outboundQueue, websocketChannel);
 		try {
-			this.clientListener = clientListener;
+			this.socketBuffer = socketBuffer;
+			this.frameExecutor = frameExecutor;
 
 			/* give the socket opened to the main class */
 			this.socket = socket;
 			/* extract the associated input stream */
 			this.inputStream = socket.getInputStream();
-			/* extract the associated output stream */
-			this.outputStream = socket.getOutputStream();
-
-			/*
-			 * initialize parsing method for request string and different body
-			 * of http request
-			 */
-			this.httpFrameParser = new HttpFrame();
-			/*
-			 * intialize response manager for writing data to outputstream
-			 * method (headers generation ...)
-			 */
+			/* small frames written together are sent in a single write */
+			this.outputStream = socketBuffer.coalesce(socket.getOutputStream());
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -105,16 +130,17 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 	 * @throws IOException
 	 */
 	private void writeToSocket(byte[] bytes) throws IOException {
-		synchronized (this.socket.getOutputStream()) {
-			this.socket.getOutputStream().write(bytes);
-			this.socket.getOutputStream().flush();
-		}
+		socketBuffer.separateBlock(bytes, this.outputStream,
+				websocketChannel.getWriteLock());
 	}
 
 	/**
 	 * Define if websocket connection has been enables by client and server
 	 */
-	private boolean websocket = false;
+	private volatile boolean websocket = false;
+
+	/** define if websocket handshake has been completed */
+	private volatile boolean connected = false;
 
 	/**
 	 * Main socket thread : parse all datas passing through socket inputstream
@@ -122,90 +148,99 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 	@Override
 	public void run() {
 		try {
+			if (socket instanceof SSLSocket) {
+				startTlsHandshake((SSLSocket) socket);
+			}
 			do {
-				/* clear richRequest object (specially headers) */
-				this.httpFrameParser = new HttpFrame();
-
 				/*
 				 * define loop if websocket has been enables by client and
 				 * server
 				 */
 				if (websocket == false) {
 
-					HttpStates httpStatus = this.httpFrameParser
-							.parseHttp(inputStream);
-
-					if (httpStatus == HttpStates.HTTP_FRAME_OK) {
-
-						/* check if Connection: Upgrade is present in header map */
-						if (this.httpFrameParser.getHeaders().containsKey(
-								HttpHeader.CONNECTION.toLowerCase())
-								&& this.httpFrameParser.getHeaders()
-										.containsKey(
-												HttpHeader.UPGRADE
-														.toLowerCase())) {
-							if (this.httpFrameParser.getHeaders()
-									.get(HttpHeader.CONNECTION.toLowerCase())
-									.toLowerCase().indexOf("upgrade") != -1
-									&& this.httpFrameParser
-											.getHeaders()
-											.get(HttpHeader.UPGRADE
-													.toLowerCase())
-											.toLowerCase().indexOf("websocket") != -1) {
-
-								upgradeWebsocketProtocol(this.outputStream,
-										this.httpFrameParser, this);
-
-								websocketChannel = new WebSocketChannel();
-								notifyConnectionSuccess();
-								this.websocket = true;
-							}
-						} else if (httpStatus == HttpStates.MALFORMED_HTTP_FRAME) {
+					long handshakeStart = System.nanoTime();
 
-							writeToSocket(HttpConstants.BAD_REQUEST_ERROR
-									.getBytes("UTF-8"));
+					UpgradeRequest request = new UpgradeRequest();
 
-						} else {
+					int status = request.read(inputStream);
 
-							websocket = false;
-							closeSocket();
-							return;
+					if (status != UpgradeRequest.COMPLETE) {
+						endHandshake(false, handshakeStart);
+						if (status != UpgradeRequest.INCOMPLETE) {
+							writeToSocket(HttpConstants.BAD_REQUEST_ERROR
+									.getBytes("UTF-8"));
 						}
+						return;
 					}
-				} else {
 
-					/* read something on websocket stream */
-					byte[] data = this.websocketChannel
-							.decapsulateMessage(this.inputStream);
+					/* frames may have been sent right after upgrade request */
+					websocketChannel.unread(request.getRemaining());
 
-					String messageRead = "";
+					upgradeWebsocketProtocol(this.outputStream, request);
 
-					if (data != null) {
-						messageRead = new String(data);
-					} else {
-						websocket = false;
-						closeSocket();
-						return;
-					}
+					endHandshake(true, handshakeStart);
 
-					if (clientListener != null && messageRead != null) {
-						clientListener.onMessageReceivedFromClient(this,
-								messageRead);
-					}
+					connected = true;
+					notifyConnectionSuccess();
+					this.websocket = true;
+				} else {
+
+					/* read something on websocket stream */
+					WebSocketMessage message = this.websocketChannel
+							.readMessage(this.inputStream);
 
-					if (messageRead == null) {
+					if (message == null) {
 						websocket = false;
 						closeSocket();
 						return;
 					}
+					if (message.getOpcodeType() == WebSocketOpcode.CONNECTION_CLOSE_FRAME) {
+						receiveClose(message.payloadData);
+					} else {
+						notifyMessage(message);
 
+						/* stop reading while listener is late */
+						SerialExecutor dispatcher = getDispatcher();
+						if (dispatcher != null) {
+							dispatcher.awaitCapacity();
+						}
+					}
 				}
-			} while (websocket == true);
-			closeSocket();
+			} while (websocket == true && !isInputShutdown());
 		} catch (SocketException e) {
+		} catch (ProtocolException e) {
+			failConnection(e);
 		} catch (Exception e) {
 			e.printStackTrace();
 			// TODO : redirect ?
+		} finally {
+			/* close frame answering client must be written before closing */
+			awaitCloseWritten();
+			websocket = false;
+			closeSocket();
+			outboundQueue.close();
+			releaseExtensions();
+			notifyClose();
+		}
+	}
+
+	/**
+	 * Run TLS handshake before reading upgrade request and record if client
+	 * has resumed a previous session
+	 * 
+	 * @param sslSocket
+	 *            client socket
+	 * @throws IOException
+	 *             handshake has failed
+	 */
+	private void startTlsHandshake(SSLSocket sslSocket) throws IOException {
+		long start = System.nanoTime();
+
+		boolean resumed = SSLContextCache.startHandshake(sslSocket);
+
+		IWebsocketMetrics metrics = websocketChannel.getMetrics();
+		if (metrics != null) {
+			metrics.onTlsHandshake(resumed, System.nanoTime() - start);
 		}
 	}
 
@@ -214,23 +249,18 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 	 * 
 	 * @param out
 	 *            socket outputStream
-	 * @param httpFrameParser
-	 *            http parser
-	 * @param serverThread
-	 *            server thread
-	 * @throws UnsupportedEncodingException
+	 * @param request
+	 *            parsed upgrade request
 	 * @throws IOException
 	 */
 	private void upgradeWebsocketProtocol(OutputStream out,
-			HttpFrame httpFrameParser, ServerSocketChannel serverThread)
-			throws UnsupportedEncodingException, IOException {
+			UpgradeRequest request) throws IOException {
 
 		/* write websocket handshake to client */
-		synchronized (out) {
-			out.write(WebSocketHandshake.writeWebSocketHandShake(
-					httpFrameParser).getBytes());
-			out.flush();
-		}
+		socketBuffer.separateBlock(WebSocketHandshake.buildHandshakeResponse(
+				request.getKey(),
+				negotiateExtensions(request.getExtensions())), out,
+				websocketChannel.getWriteLock());
 	}
 
 	/**
@@ -242,6 +272,16 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 		}
 	}
 
+	/**
+	 * Notify websocket client connection closing (only once)
+	 */
+	private void notifyClose() {
+		if (connected && closed.compareAndSet(false, true)
+				&& clientListener != null) {
+			clientListener.onClientClose(this);
+		}
+	}
+
 	/**
 	 * Close socket inputstream
 	 * 
@@ -275,23 +315,73 @@ public class ServerSocketChannel implements Runnable, IWebsocketClient {
 		websocket = false;
 		closeSocket();
 
-		if (clientListener != null) {
-			clientListener.onClientClose(this);
-		}
+		outboundQueue.close();
+		notifyClose();
 
 		return 0;
 	}
 
 	@Override
-	public int sendMessage(String message) {
-		if (outputStream != null) {
+	protected boolean isOpen() {
+		return websocket && !closed.get();
+	}
+
+	@Override
+	protected void scheduleWrite() {
+		if (frameWriting.compareAndSet(false, true)) {
+			frameExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					writeQueuedFrames();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write queued frames until outbound queue is empty (called from frame
+	 * executor). Frames of a batch are coalesced and flushed together, after
+	 * flush delay of socket buffer if any.
+	 */
+	private void writeQueuedFrames() {
+		ReentrantLock writeLock = websocketChannel.getWriteLock();
+		long flushDelay = socketBuffer.getFlushDelay();
+
+		do {
+			if (flushDelay > 0) {
+				/* let more frames be queued so that they are written together */
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(flushDelay));
+			}
 			try {
-				websocketChannel.encapsulateMessage(message, outputStream);
-				return 0;
-			} catch (IOException | InterruptedException e) {
-				// e.printStackTrace();
+				writeLock.lock();
+				try {
+					while (outboundQueue.drainTo(writeBatch, MAX_WRITE_BATCH) > 0) {
+						for (int i = 0; i < writeBatch.size(); i++) {
+							ByteBuffer[] buffers = writeBatch.get(i).buffers;
+							for (int j = 0; j < buffers.length; j++) {
+								socketBuffer.write(buffers[j], outputStream);
+							}
+						}
+						socketBuffer.flush(outputStream);
+
+						for (int i = 0; i < writeBatch.size(); i++) {
+							frameWritten(writeBatch.get(i));
+						}
+						writeBatch.clear();
+					}
+				} finally {
+					writeLock.unlock();
+				}
+			} catch (IOException e) {
+				for (int i = 0; i < writeBatch.size(); i++) {
+					writeBatch.get(i).fail(e);
+				}
+				writeBatch.clear();
+				outboundQueue.close();
 			}
-		}
-		return -1;
+			frameWriting.set(false);
+		} while (!outboundQueue.isEmpty()
+				&& frameWriting.compareAndSet(false, true));
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,232 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Bertrand Martel
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.protocol.websocket.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <b>Hashed timer wheel</b>
+ *
+ * A single thread runs tasks of all connections : scheduling and cancelling
+ * a task costs O(1) whatever the number of tasks. Tasks are run with tick
+ * precision and must be short (they delay all other tasks).
+ *
+ * @author Bertrand Martel
+ */
+public class TimerWheel implements Runnable {
+
+	/** default tick duration in milliseconds */
+	public final static long DEFAULT_TICK = 100;
+
+	/** default number of buckets (one round lasts 51.2s with default tick) */
+	public final static int DEFAULT_WHEEL_SIZE = 512;
+
+	/** tick duration in nanoseconds */
+	private final long tickNanos;
+
+	/** buckets of timeouts (singly linked lists) */
+	private final Timeout[] wheel;
+
+	/** mask giving bucket index of a tick */
+	private final int mask;
+
+	/** timeouts scheduled from any thread waiting to be put in buckets */
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+	/** timer running control */
+	private volatile boolean running = true;
+
+	/** time of tick 0 */
+	private volatile long startTime = System.nanoTime();
+
+	/** current tick (timer thread only) */
+	private long tick = 0;
+
+	/**
+	 * <b>Task scheduled on timer wheel</b>
+	 */
+	public static class Timeout {
+
+		/** task to be run */
+		private final Runnable task;
+
+		/** expiration time (System.nanoTime()) */
+		private final long deadline;
+
+		/** number of wheel rounds before expiration */
+		private long rounds;
+
+		/** next timeout in the same bucket */
+		private Timeout next;
+
+		/** define if timeout has been cancelled */
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel timeout : task will not be run (removed from wheel on next
+		 * visit of its bucket)
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Build timer wheel with default tick and wheel size
+	 */
+	public TimerWheel() {
+		this(DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Build timer wheel
+	 *
+	 * @param tick
+	 *            tick duration (task precision)
+	 * @param unit
+	 *            tick duration unit
+	 * @param wheelSize
+	 *            number of buckets (rounded up to a power of two)
+	 */
+	public TimerWheel(long tick, TimeUnit unit, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(wheelSize, 1) * 2 - 1);
+		this.tickNanos = Math.max(unit.toNanos(tick), 1);
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Schedule a task to be run once on timer thread
+	 *
+	 * @param task
+	 *            task to be run
+	 * @param delay
+	 *            delay before task is run
+	 * @param unit
+	 *            delay unit
+	 * @return timeout used to cancel task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Timer thread main loop : run expired tasks at each tick
+	 */
+	@Override
+	public void run() {
+		startTime = System.nanoTime();
+
+		while (running) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0 && running) {
+				LockSupport.parkNanos(this, sleep);
+			}
+			transferPending();
+			expire(deadline);
+			tick++;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Put timeouts scheduled since last tick in their bucket
+	 */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1)
+					/ tickNanos - 1, tick);
+			timeout.rounds = (ticks - tick) / wheel.length;
+
+			int index = (int) (ticks & mask);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+		}
+	}
+
+	/**
+	 * Run expired tasks of current bucket
+	 *
+	 * @param deadline
+	 *            end time of current tick
+	 */
+	private void expire(long deadline) {
+		int index = (int) (tick & mask);
+		Timeout previous = null;
+		Timeout timeout = wheel[index];
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove = timeout.cancelled;
+
+			if (!remove && timeout.rounds <= 0) {
+				remove = true;
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			} else if (!remove) {
+				timeout.rounds--;
+			}
+			if (remove) {
+				if (previous == null) {
+					wheel[index] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+			} else {
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Stop timer : pending tasks are never run
+	 */
+	public void shutdown() {
+		running = false;
+	}
+}
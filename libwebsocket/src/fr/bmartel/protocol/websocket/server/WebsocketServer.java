@@ -1,31 +1,51 @@
 package fr.bmartel.protocol.websocket.server;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
+import fr.bmartel.protocol.websocket.WebSocketChannel;
+import fr.bmartel.protocol.websocket.WebSocketMessage;
+import fr.bmartel.protocol.websocket.constants.WebSocketCloseCode;
+import fr.bmartel.protocol.websocket.constants.WebSocketOpcode;
+import fr.bmartel.protocol.websocket.extensions.PerMessageDeflate;
 import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
+import fr.bmartel.protocol.websocket.listeners.IClientStreamListener;
+import fr.bmartel.protocol.websocket.metrics.IWebsocketMetrics;
+import fr.bmartel.protocol.websocket.socketutils.BufferPool;
+import fr.bmartel.protocol.websocket.socketutils.SSLContextCache;
+import fr.bmartel.protocol.websocket.socketutils.SocketBuffer;
+import fr.bmartel.protocol.websocket.socketutils.WebsocketThreadFactory;
 
 /**
  * Server socket
  * 
  * @author Bertrand Martel
  */
-public class WebsocketServer implements IWebsocketServer, IClientEventListener {
+public class WebsocketServer implements IWebsocketServer, IClientEventListener,
+		IClientStreamListener {
 
 	/** boolean loop control for server instance running */
 	private volatile boolean running = true;
@@ -71,8 +91,144 @@ public class WebsocketServer implements IWebsocketServer, IClientEventListener {
 	 */
 	private String trustorePassword = "";
 
-	/** define server socket object */
-	private ServerSocket serverSocket;
+	/** listening sockets of blocking engine (one per acceptor) */
+	private volatile ServerSocket[] serverSockets;
+
+	/** number of sockets listening on server port (SO_REUSEPORT if > 1) */
+	private int acceptorCount = 1;
+
+	/** default length of pending connections queue */
+	public final static int DEFAULT_ACCEPT_BACKLOG = 50;
+
+	/** length of pending connections queue of each listening socket */
+	private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+
+	/** use non-blocking selector based engine instead of thread per client */
+	private boolean nio = false;
+
+	/** number of event loop threads used by non-blocking engine */
+	private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+	/** listening socket channels of non-blocking engine (one per acceptor) */
+	private volatile java.nio.channels.ServerSocketChannel[] serverSocketChannels;
+
+	/** event loops used by non-blocking engine */
+	private NioEventLoop[] eventLoops;
+
+	/** socket buffer shared by all client connections */
+	private SocketBuffer socketBuffer = new SocketBuffer();
+
+	/** pool of frame payload arrays shared by all clients (may be null) */
+	private BufferPool bufferPool = null;
+
+	/** factory creating threads serving clients with blocking engine */
+	private ThreadFactory threadFactory = new WebsocketThreadFactory(
+			"websocket-client", false);
+
+	/** define if clients are served by virtual threads */
+	private boolean virtualThreads = false;
+
+	/** executor writing queued frames for blocking engine */
+	private ExecutorService frameExecutor = null;
+
+	/** maximum number of frames queued for each client */
+	private int outboundQueueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+
+	/** behaviour of client outbound queues when they are full */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	/** maximum time in milliseconds a sender waits for room in outbound queue */
+	private long blockTimeout = 1000;
+
+	/** maximum size of a message received from a client */
+	private long maxMessageSize = WebSocketChannel.DEFAULT_MAX_MESSAGE_SIZE;
+
+	/** maximum size of message parts delivered to stream listeners */
+	private int partSize = WebSocketChannel.DEFAULT_PART_SIZE;
+
+	/** permessage-deflate settings (null if compression is disabled) */
+	private PerMessageDeflate perMessageDeflate = null;
+
+	/** interval between pings sent to clients in milliseconds (0 if disabled) */
+	private long pingInterval = 0;
+
+	/** number of unanswered pings in a row after which a client is closed */
+	private int maxMissedPongs = 2;
+
+	/** idle time in milliseconds after which a client is closed (0 if disabled) */
+	private long idleTimeout = 0;
+
+	/** time in milliseconds shutdown waits for clients it has closed */
+	private final static long FORCED_CLOSE_WAIT = 1000;
+
+	/** default time in milliseconds given to close handshake */
+	public final static long DEFAULT_CLOSE_TIMEOUT = 5000;
+
+	/** time in milliseconds given to close handshake */
+	private long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+	/** default time in milliseconds given to opening handshake */
+	public final static long DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+	/**
+	 * time in milliseconds given to a client to send its upgrade request once
+	 * connected (0 if disabled)
+	 */
+	private long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+	/** timer wheel running close timeouts and keepalive checks */
+	private TimerWheel timerWheel;
+
+	/** keepalive of client connections (null if disabled) */
+	private KeepAlive keepAlive;
+
+	/** number of clients closed because they missed too many pongs */
+	private final AtomicLong pingTimeoutCount = new AtomicLong();
+
+	/** number of clients closed because they have been idle too long */
+	private final AtomicLong idleTimeoutCount = new AtomicLong();
+
+	/** number of clients closed with a complete close handshake */
+	private final AtomicLong cleanCloseCount = new AtomicLong();
+
+	/** number of clients closed without close handshake */
+	private final AtomicLong abnormalCloseCount = new AtomicLong();
+
+	/** number of clients closed by shutdown once its timeout has expired */
+	private final AtomicLong forcedCloseCount = new AtomicLong();
+
+	/** metrics notified of connections and frames (null if disabled) */
+	private IWebsocketMetrics metrics = null;
+
+	/** executor running listener callbacks (null to run them on reading thread) */
+	private Executor dispatchExecutor = null;
+
+	/** number of listener callbacks waiting for dispatch executor */
+	private final AtomicLong dispatchQueueDepth = new AtomicLong();
+
+	/** maximum number of callbacks pending for a client before its reading stops */
+	private int dispatchQueueCapacity = SerialExecutor.DEFAULT_MAX_PENDING;
+
+	/** executor running TLS handshake tasks of non-blocking engine */
+	private Executor sslTaskExecutor = null;
+
+	/** thread pool created if no TLS task executor has been set */
+	private ExecutorService sslTaskPool = null;
+
+	/**
+	 * maximum number of TLS tasks waiting for default pool : once full, tasks
+	 * wait for a running task to end
+	 */
+	private final static int SSL_TASK_QUEUE_SIZE = 1024;
+
+	/** notified each time a client is closed (shutdown waits on it) */
+	private final Object closeMonitor = new Object();
+
+	/** listeners notified of message parts (streaming mode) */
+	private ArrayList<IClientStreamListener> serverStreamListenerList = new ArrayList<IClientStreamListener>();
+
+	/** websocket clients currently connected */
+	private ConnectionRegistry connectionRegistry = new ConnectionRegistry();
 
 	private boolean isServerClosed = false;
 
@@ -96,108 +252,314 @@ public class WebsocketServer implements IWebsocketServer, IClientEventListener {
 			/* server will be running while running == true */
 			running = true;
 
+			startTimer();
+
+			if (nio) {
+				startNio();
+				return;
+			}
+
+			ServerSocketFactory serverSocketFactory;
+
 			if (ssl) {
 
-				/* initial server keystore instance */
-				KeyStore ks = KeyStore.getInstance(keystoreDefaultType);
+				/* keystores are loaded once for all servers using them */
+				SSLContext ctx = SSLContextCache.getContext(
+						keystoreDefaultType, trustoreDefaultType, keystoreFile,
+						trustoreFile, sslProtocol, keystorePassword,
+						trustorePassword);
+
+				serverSocketFactory = ctx.getServerSocketFactory();
+
+				System.out.println("Launching SSL Websocket server on port "
+						+ this.port + " ssl OK");
+
+			} else {
+
+				System.out.println("Launching Websocket server on port "
+						+ this.port + " no ssl");
+
+				serverSocketFactory = ServerSocketFactory.getDefault();
+			}
 
-				/* load keystore from file */
-				ks.load(new FileInputStream(keystoreFile),
-						keystorePassword.toCharArray());
+			/* virtual threads are cheap to create and must not be pooled */
+			frameExecutor = virtualThreads ? WebsocketThreadFactory
+					.newThreadPerTaskExecutor(threadFactory) : Executors
+					.newCachedThreadPool(threadFactory);
 
-				/*
-				 * assign a new keystore containing all certificated to be
-				 * trusted
-				 */
-				KeyStore tks = KeyStore.getInstance(trustoreDefaultType);
+			serverSockets = new ServerSocket[acceptorCount];
 
-				/* load this keystore from file */
-				tks.load(new FileInputStream(trustoreFile),
-						trustorePassword.toCharArray());
+			for (int i = 0; i < serverSockets.length; i++) {
+				ServerSocket serverSocket = serverSocketFactory
+						.createServerSocket();
 
-				/* initialize key manager factory with chosen algorithm */
-				KeyManagerFactory kmf = KeyManagerFactory
-						.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				if (serverSockets.length > 1
+						&& !SocketBuffer.setReusePort(serverSocket)) {
+					serverSocket.close();
+					serverSockets = Arrays.copyOf(serverSockets, 1);
+					serverSocket = serverSocketFactory.createServerSocket();
+				}
+				/* receive buffer must be set before bind to be inherited */
+				socketBuffer.configureServerSocket(serverSocket);
+				serverSocket.bind(new InetSocketAddress(port), acceptBacklog);
+				serverSockets[i] = serverSocket;
+			}
+			startAcceptors(serverSockets.length);
 
-				/* initialize trust manager factory with chosen algorithm */
-				TrustManagerFactory tmf;
+		} catch (IOException e) {
+			e.printStackTrace();
+			/* release sockets already bound */
+			stop();
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
 
-				tmf = TrustManagerFactory.getInstance(TrustManagerFactory
-						.getDefaultAlgorithm());
+	/**
+	 * Start non-blocking engine : accepted socket channels are dispatched to
+	 * event loops in a round robin way. With ssl, each connection is
+	 * encrypted by its own TLS engine driven by its event loop.
+	 * 
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 *             ssl context could not be built
+	 */
+	private void startNio() throws IOException, GeneralSecurityException {
 
-				/* initialize key manager factory with initial keystore */
-				kmf.init(ks, keystorePassword.toCharArray());
+		SSLContext sslContext = null;
+		Executor taskExecutor = sslTaskExecutor;
 
-				/*
-				 * initialize trust manager factory with keystore containing
-				 * certificates to be trusted
-				 */
-				tmf.init(tks);
+		if (ssl) {
+			sslContext = SSLContextCache.getContext(keystoreDefaultType,
+					trustoreDefaultType, keystoreFile, trustoreFile,
+					sslProtocol, keystorePassword, trustorePassword);
 
-				/* get SSL context chosen algorithm */
-				SSLContext ctx = SSLContext.getInstance(sslProtocol);
+			if (taskExecutor == null) {
+				int threads = Runtime.getRuntime().availableProcessors();
 
-				/*
-				 * initialize SSL context with key manager and trust managers
-				 */
-				ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+				sslTaskPool = new ThreadPoolExecutor(threads, threads, 0L,
+						TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(SSL_TASK_QUEUE_SIZE),
+						new WebsocketThreadFactory("websocket-ssl-task", true));
+				taskExecutor = sslTaskPool;
+			}
+			/* tasks rejected by a full pool wait instead of running on loop */
+			taskExecutor = new SSLTaskExecutor(taskExecutor);
+			System.out.println("Launching SSL Websocket server on port "
+					+ this.port + " ssl OK (" + eventLoopCount
+					+ " event loops)");
+		} else {
+			System.out.println("Launching Websocket server on port "
+					+ this.port + " no ssl (" + eventLoopCount
+					+ " event loops)");
+		}
 
-				SSLServerSocketFactory sslserversocketfactory = ctx
-						.getServerSocketFactory();
+		/* TLS packet buffers are only held while they contain data */
+		BufferPool packetPool = bufferPool != null ? bufferPool
+				: new BufferPool();
 
-				System.out.println("Launching SSL Websocket server on port "
-						+ this.port + " ssl OK");
+		eventLoops = new NioEventLoop[eventLoopCount];
 
-				serverSocket = sslserversocketfactory.createServerSocket(port);
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new NioEventLoop(this, socketBuffer);
+			eventLoops[i].setHandshakeTimeout(timerWheel, handshakeTimeout);
+			if (sslContext != null) {
+				eventLoops[i].setSSLContext(sslContext, taskExecutor,
+						packetPool);
+			}
+			Thread eventLoopThread = new Thread(eventLoops[i],
+					"websocket-event-loop-" + i);
+			eventLoopThread.start();
+		}
 
-			} else {
+		serverSocketChannels = new java.nio.channels.ServerSocketChannel[acceptorCount];
 
-				System.out.println("Launching Websocket server on port "
-						+ this.port + " no ssl");
+		for (int i = 0; i < serverSocketChannels.length; i++) {
+			java.nio.channels.ServerSocketChannel serverSocketChannel = java.nio.channels.ServerSocketChannel
+					.open();
 
-				serverSocket = new ServerSocket(port);
+			if (serverSocketChannels.length > 1
+					&& !SocketBuffer.setReusePort(serverSocketChannel)) {
+				serverSocketChannel.close();
+				serverSocketChannels = Arrays.copyOf(serverSocketChannels, 1);
+				serverSocketChannel = java.nio.channels.ServerSocketChannel
+						.open();
 			}
+			socketBuffer.configureServerSocket(serverSocketChannel.socket());
+			serverSocketChannel.socket().bind(new InetSocketAddress(port),
+					acceptBacklog);
+			serverSocketChannels[i] = serverSocketChannel;
+		}
+		startAcceptors(serverSocketChannels.length);
+	}
 
-			/*
-			 * server thread main loop : accept a new connect each time
-			 * requested by correct client
-			 */
-			while (running) {
-				Socket newSocketConnection = serverSocket.accept();
+	/**
+	 * Run accept loops : one acceptor thread is started for each listening
+	 * socket but the first one, whose accept loop is run by calling thread
+	 * 
+	 * @param count
+	 *            number of listening sockets
+	 */
+	private void startAcceptors(int count) {
+		if (count < acceptorCount) {
+			System.out
+					.println("SO_REUSEPORT is not supported, using a single acceptor");
+		}
+		for (int i = 1; i < count; i++) {
+			final int acceptor = i;
 
-				newSocketConnection.setKeepAlive(true);
+			Thread acceptorThread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					accept(acceptor);
+				}
+			}, "websocket-acceptor-" + i);
+			acceptorThread.start();
+		}
+		accept(0);
+	}
 
-				ServerSocketChannel server = new ServerSocketChannel(
-						newSocketConnection, this);
-				Thread newSocket = new Thread(server);
-				newSocket.start();
+	/**
+	 * Accept loop of a listening socket, until server is stopped
+	 * 
+	 * @param acceptor
+	 *            index of listening socket
+	 */
+	private void accept(int acceptor) {
+		try {
+			if (nio) {
+				acceptNio(acceptor);
+			} else {
+				acceptBlocking(acceptor);
 			}
-			/* close server socket safely */
-			serverSocket.close();
 		} catch (SocketException e) {
 			// e.printStackTrace();
-			/* stop all thread and server socket */
-			stop();
+			/* stop all thread and server socket (unless shutdown is running) */
+			if (running) {
+				stop();
+			}
+		} catch (ClosedChannelException e) {
+			/* server socket channel has been closed by closeServer() */
+			if (running) {
+				stop();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (KeyStoreException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (UnrecoverableKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (CertificateException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (KeyManagementException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Accept loop of blocking engine : a thread is started for each client
+	 * 
+	 * @param acceptor
+	 *            index of listening socket
+	 * @throws IOException
+	 */
+	private void acceptBlocking(int acceptor) throws IOException {
+		ServerSocket serverSocket = serverSockets[acceptor];
+
+		/*
+		 * server thread main loop : accept a new connect each time requested
+		 * by correct client
+		 */
+		while (running) {
+			Socket newSocketConnection = serverSocket.accept();
+
+			if (metrics != null) {
+				metrics.onConnectionAccepted(acceptor);
+			}
+
+			newSocketConnection.setKeepAlive(true);
+			socketBuffer.configureSocket(newSocketConnection);
+
+			ServerSocketChannel server = new ServerSocketChannel(
+					newSocketConnection, this, socketBuffer, frameExecutor,
+					newOutboundQueue(), newWebSocketChannel());
+			server.setHandshakeTimeout(timerWheel, handshakeTimeout);
+			Thread newSocket = threadFactory.newThread(server);
+			newSocket.start();
+		}
+		/* close server socket safely */
+		serverSocket.close();
+	}
+
+	/**
+	 * Accept loop of non-blocking engine : each acceptor dispatches its
+	 * socket channels to all event loops in a round robin way
+	 * 
+	 * @param acceptor
+	 *            index of listening socket
+	 * @throws IOException
+	 */
+	private void acceptNio(int acceptor) throws IOException {
+		java.nio.channels.ServerSocketChannel serverSocketChannel = serverSocketChannels[acceptor];
+
+		int next = acceptor % eventLoops.length;
+
+		while (running) {
+			SocketChannel newSocketChannel = serverSocketChannel.accept();
+
+			if (metrics != null) {
+				metrics.onConnectionAccepted(acceptor);
+			}
+
+			newSocketChannel.socket().setKeepAlive(true);
+
+			eventLoops[next].register(newSocketChannel, newOutboundQueue(),
+					newWebSocketChannel());
+			next = (next + 1) % eventLoops.length;
+		}
+		serverSocketChannel.close();
+	}
+
+	/**
+	 * Start timer thread running close handshake timeouts and checking
+	 * clients if ping interval or idle timeout is set : all clients share a
+	 * single timer wheel
+	 */
+	private void startTimer() {
+		timerWheel = new TimerWheel();
+
+		if (pingInterval > 0 || idleTimeout > 0) {
+			keepAlive = new KeepAlive(timerWheel, pingInterval,
+					maxMissedPongs, idleTimeout, pingTimeoutCount,
+					idleTimeoutCount);
+		}
+
+		Thread timerThread = new Thread(timerWheel, "websocket-timer");
+		timerThread.setDaemon(true);
+		timerThread.start();
+	}
+
+	/**
+	 * Build outbound queue of a new client according to queue settings
+	 * 
+	 * @return new outbound queue
+	 */
+	private OutboundQueue newOutboundQueue() {
+		OutboundQueue outboundQueue = new OutboundQueue(outboundQueueCapacity,
+				overflowPolicy, blockTimeout);
+		outboundQueue.setMetrics(metrics);
+		return outboundQueue;
+	}
+
+	/**
+	 * Build websocket decoder of a new client according to message settings
+	 * 
+	 * @return new websocket channel
+	 */
+	private WebSocketChannel newWebSocketChannel() {
+		WebSocketChannel websocketChannel = new WebSocketChannel(socketBuffer);
+		websocketChannel.setMaxMessageSize(maxMessageSize);
+		websocketChannel.setStreaming(!serverStreamListenerList.isEmpty());
+		websocketChannel.setPartSize(partSize);
+		websocketChannel.setBufferPool(bufferPool);
+		websocketChannel.setPerMessageDeflate(perMessageDeflate);
+		websocketChannel.setMetrics(metrics);
+		return websocketChannel;
+	}
+
 	/**
 	 * Set ssl parameters
 	 * 
@@ -247,37 +609,249 @@ public class WebsocketServer implements IWebsocketServer, IClientEventListener {
 		}
 	}
 
+	/**
+	 * Shutdown server gracefully : new connections are refused, a close frame
+	 * is sent to every client after messages already queued and clients still
+	 * connected when timeout expires are closed forcibly. Threads of server
+	 * are stopped afterwards.
+	 * 
+	 * @param timeout
+	 *            time in milliseconds given to clients to receive pending
+	 *            messages and answer close frame
+	 * @return true if all clients have been closed cleanly before timeout
+	 */
+	public boolean shutdown(long timeout) {
+		running = false;
+
+		/* stop accepting new clients */
+		closeListeningSocket();
+
+		long cleanCount = cleanCloseCount.get();
+		long abnormalCount = abnormalCloseCount.get();
+
+		for (IWebsocketClient client : connectionRegistry.getClients()) {
+			/* clients are given shutdown timeout to drain their queue */
+			((AbstractWebsocketClient) client).setCloseTimeout(timerWheel,
+					timeout);
+			client.close(WebSocketCloseCode.GOING_AWAY, "server shutdown");
+		}
+		awaitClientsClosed(timeout);
+
+		int forcedCount = 0;
+		for (IWebsocketClient client : connectionRegistry.getClients()) {
+			forcedCount++;
+			client.close();
+		}
+		forcedCloseCount.addAndGet(forcedCount);
+
+		/* close of non-blocking clients is notified from their event loop */
+		awaitClientsClosed(FORCED_CLOSE_WAIT);
+
+		stop();
+
+		abnormalCount = abnormalCloseCount.get() - abnormalCount;
+
+		System.out.println("Server stopped : "
+				+ (cleanCloseCount.get() - cleanCount)
+				+ " client(s) closed cleanly, " + abnormalCount
+				+ " closed abnormally (" + forcedCount
+				+ " closed forcibly by shutdown)");
+
+		return abnormalCount == 0 && forcedCount == 0;
+	}
+
+	/**
+	 * Wait for all clients to be closed
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 */
+	private void awaitClientsClosed(long timeout) {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		synchronized (closeMonitor) {
+			long remaining;
+			while (connectionRegistry.size() > 0
+					&& (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					closeMonitor.wait(TimeUnit.NANOSECONDS
+							.toMillis(remaining) + 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	/** Stop accepting new connections */
+	private void closeListeningSocket() {
+		ServerSocket[] sockets = serverSockets;
+		if (sockets != null) {
+			for (int i = 0; i < sockets.length; i++) {
+				if (sockets[i] != null) {
+					try {
+						sockets[i].close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		java.nio.channels.ServerSocketChannel[] channels = serverSocketChannels;
+		if (channels != null) {
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i] != null) {
+					try {
+						channels[i].close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
 	/** Stop server socket */
 	private void closeServerSocket() {
-		if (serverSocket != null) {
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		closeListeningSocket();
+
+		if (eventLoops != null) {
+			for (int i = 0; i < eventLoops.length; i++) {
+				if (eventLoops[i] != null) {
+					eventLoops[i].shutdown();
+				}
 			}
 		}
+		if (frameExecutor != null) {
+			frameExecutor.shutdown();
+		}
+		if (sslTaskPool != null) {
+			sslTaskPool.shutdown();
+		}
+		if (timerWheel != null) {
+			timerWheel.shutdown();
+		}
 	}
 
+	/**
+	 * Send a message to all connected websocket clients. Message is encoded
+	 * once and the same frame is queued to every client : a client which is
+	 * not able to keep up is handled according to overflow policy and never
+	 * delays other clients (except with BLOCK policy).
+	 * 
+	 * @param message
+	 *            message to be sent
+	 * @return number of clients the message has been queued to
+	 */
+	public int broadcast(String message) {
+		return broadcast(message, connectionRegistry.getClients());
+	}
+
+	/**
+	 * Send a message to all clients of a named group. Message is encoded once
+	 * and the same frame is queued to every client.
+	 * 
+	 * @param group
+	 *            group name
+	 * @param message
+	 *            message to be sent
+	 * @return number of clients the message has been queued to
+	 */
+	public int broadcastToGroup(String group, String message) {
+		return broadcast(message, connectionRegistry.getGroup(group));
+	}
+
+	/**
+	 * Send a message to a group of websocket clients. Message is encoded once
+	 * and the same frame is queued to every client.
+	 * 
+	 * @param message
+	 *            message to be sent
+	 * @param clients
+	 *            clients the message will be sent to
+	 * @return number of clients the message has been queued to
+	 */
+	public int broadcast(String message, Collection<IWebsocketClient> clients) {
+		ByteBuffer frame;
+		try {
+			frame = ByteBuffer.wrap(new WebSocketMessage(1, 0,
+					WebSocketOpcode.TEXT_FRAME.frameTypeValue, 0, null,
+					message.getBytes("UTF-8")).buildMessage());
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			return 0;
+		}
+		int count = 0;
+		for (IWebsocketClient client : clients) {
+			if (client.sendFrame(frame) == 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Shutdown server gracefully giving close timeout to clients (see
+	 * shutdown(long))
+	 */
 	@Override
 	public void closeServer() {
-		stop();
+		shutdown(closeTimeout);
 	}
 
 	/**
-	 * remove client from list
+	 * remove client from registry
 	 */
 	@Override
-	public void onClientClose(IWebsocketClient client) {
-		for (int i = 0; i < serverEventListenerList.size(); i++) {
-			serverEventListenerList.get(i).onClientClose(client);
+	public void onClientClose(final IWebsocketClient client) {
+		connectionRegistry.remove(client);
+		if (client.isCleanClose()) {
+			cleanCloseCount.incrementAndGet();
+		} else {
+			abnormalCloseCount.incrementAndGet();
+		}
+		if (metrics != null) {
+			metrics.onConnectionClosed(client.getCloseCode(),
+					client.isCleanClose());
 		}
+		synchronized (closeMonitor) {
+			closeMonitor.notifyAll();
+		}
+		((AbstractWebsocketClient) client).dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < serverEventListenerList.size(); i++) {
+					serverEventListenerList.get(i).onClientClose(client);
+				}
+			}
+		});
 	}
 
 	@Override
-	public void onClientConnection(IWebsocketClient client) {
-		for (int i = 0; i < serverEventListenerList.size(); i++) {
-			serverEventListenerList.get(i).onClientConnection(client);
+	public void onClientConnection(final IWebsocketClient client) {
+		AbstractWebsocketClient connection = (AbstractWebsocketClient) client;
+
+		connectionRegistry.add(client);
+		connection.setCloseTimeout(timerWheel, closeTimeout);
+		if (keepAlive != null) {
+			keepAlive.register(connection);
 		}
+		if (dispatchExecutor != null) {
+			connection.setDispatcher(new SerialExecutor(dispatchExecutor,
+					dispatchQueueDepth, metrics, dispatchQueueCapacity));
+		}
+		connection.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < serverEventListenerList.size(); i++) {
+					serverEventListenerList.get(i).onClientConnection(client);
+				}
+			}
+		});
 	}
 
 	@Override
@@ -289,6 +863,35 @@ public class WebsocketServer implements IWebsocketServer, IClientEventListener {
 		}
 	}
 
+	@Override
+	public void onBinaryMessageReceivedFromClient(IWebsocketClient client,
+			ByteBuffer message) {
+		for (int i = 0; i < serverEventListenerList.size(); i++) {
+			serverEventListenerList.get(i).onBinaryMessageReceivedFromClient(
+					client, message.duplicate());
+		}
+	}
+
+	@Override
+	public void onMessagePartReceivedFromClient(IWebsocketClient client,
+			ByteBuffer part, boolean binary, boolean last) {
+		for (int i = 0; i < serverStreamListenerList.size(); i++) {
+			serverStreamListenerList.get(i).onMessagePartReceivedFromClient(
+					client, part.duplicate(), binary, last);
+		}
+	}
+
+	/**
+	 * Add a listener notified of data messages part by part as they arrive :
+	 * messages received from clients connecting afterwards are no longer
+	 * reassembled nor delivered to server event listeners
+	 * 
+	 * @param listener
+	 */
+	public void addServerStreamListener(IClientStreamListener listener) {
+		serverStreamListenerList.add(listener);
+	}
+
 	@Override
 	public void addServerEventListener(IClientEventListener listener) {
 		serverEventListenerList.add(listener);
@@ -301,4 +904,499 @@ public class WebsocketServer implements IWebsocketServer, IClientEventListener {
 	public void setSsl(boolean ssl) {
 		this.ssl = ssl;
 	}
+
+	/**
+	 * Get socket buffer shared by all client connections : used to configure
+	 * socket options (TCP_NODELAY, send and receive buffer sizes), write
+	 * coalescing and block size and to retrieve number of bytes and write
+	 * calls issued
+	 * 
+	 * @return socket buffer
+	 */
+	public SocketBuffer getSocketBuffer() {
+		return socketBuffer;
+	}
+
+	/**
+	 * Get registry of connected clients : used to retrieve a client from its
+	 * connection id and to manage groups of clients
+	 * 
+	 * @return connection registry
+	 */
+	public ConnectionRegistry getConnectionRegistry() {
+		return connectionRegistry;
+	}
+
+	/**
+	 * Retrieve total number of frames waiting to be written to connected
+	 * clients
+	 * 
+	 * @return sum of client outbound queue depths
+	 */
+	public long getQueuedFrameCount() {
+		long count = 0;
+		for (IWebsocketClient client : connectionRegistry.getClients()) {
+			count += client.getOutboundQueue().size();
+		}
+		return count;
+	}
+
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Set maximum number of frames queued for each client (default is 1024).
+	 * Applies to clients connecting afterwards.
+	 * 
+	 * @param outboundQueueCapacity
+	 */
+	public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+		if (outboundQueueCapacity > 0) {
+			this.outboundQueueCapacity = outboundQueueCapacity;
+		}
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Set behaviour of client outbound queues when they are full (default is
+	 * DROP_NEWEST). Applies to clients connecting afterwards.
+	 * 
+	 * @param overflowPolicy
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	/**
+	 * Set maximum time in milliseconds a sender waits for room in a full
+	 * outbound queue with BLOCK policy, and sendStream() waits for room for
+	 * next fragment with any policy (default is 1000). Applies to clients
+	 * connecting afterwards.
+	 * 
+	 * @param blockTimeout
+	 */
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Set maximum size of a message received from a client (default is 16 MB,
+	 * Long.MAX_VALUE for no limit) : client sending a bigger message is
+	 * disconnected before message payload is read. Applies to clients
+	 * connecting afterwards.
+	 * 
+	 * @param maxMessageSize
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Set maximum size of message parts delivered to stream listeners
+	 * (default is 64 KB). Applies to clients connecting afterwards.
+	 * 
+	 * @param partSize
+	 */
+	public void setPartSize(int partSize) {
+		this.partSize = partSize;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set pool providing arrays for payloads received from clients and text
+	 * messages sent to clients (default is none : a new array is allocated
+	 * for each frame). Payload delivered to a listener is then only valid
+	 * until listener returns unless retained with client.retainMessage().
+	 * Applies to clients connecting afterwards.
+	 * 
+	 * @param bufferPool
+	 *            buffer pool (null to disable pooling)
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
+	/**
+	 * Enable permessage-deflate compression for clients offering it (null to
+	 * disable). Compression statistics of all clients are gathered in
+	 * settings object. Applies to clients connecting afterwards.
+	 * 
+	 * @param perMessageDeflate
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
+	public long getPingInterval() {
+		return pingInterval;
+	}
+
+	/**
+	 * Set interval in milliseconds between pings sent to each client (0 to
+	 * disable, default). A client not answering maxMissedPongs pings in a row
+	 * is disconnected. Must be set before server is started.
+	 * 
+	 * @param pingInterval
+	 */
+	public void setPingInterval(long pingInterval) {
+		this.pingInterval = pingInterval;
+	}
+
+	public int getMaxMissedPongs() {
+		return maxMissedPongs;
+	}
+
+	/**
+	 * Set number of unanswered pings in a row after which a client is
+	 * disconnected (default is 2)
+	 * 
+	 * @param maxMissedPongs
+	 */
+	public void setMaxMissedPongs(int maxMissedPongs) {
+		this.maxMissedPongs = maxMissedPongs;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Set time in milliseconds after which a client which has not received
+	 * nor sent any data message is disconnected (0 to disable, default). Pings
+	 * and pongs do not count as activity. Must be set before server is
+	 * started.
+	 * 
+	 * @param idleTimeout
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Retrieve number of clients disconnected because they missed too many
+	 * pongs
+	 * 
+	 * @return ping timeout count
+	 */
+	public long getPingTimeoutCount() {
+		return pingTimeoutCount.get();
+	}
+
+	/**
+	 * Retrieve number of clients disconnected because they have been idle
+	 * too long
+	 * 
+	 * @return idle timeout count
+	 */
+	public long getIdleTimeoutCount() {
+		return idleTimeoutCount.get();
+	}
+
+	public long getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Set time in milliseconds given to a client to complete opening
+	 * handshake once connected (default is 10 seconds, 0 to disable) : a
+	 * client sending its upgrade request too slowly is disconnected. Must be
+	 * set before server is started.
+	 * 
+	 * @param handshakeTimeout
+	 */
+	public void setHandshakeTimeout(long handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	/**
+	 * Set time in milliseconds given to clients to answer a close frame
+	 * before connection is closed (default is 5 seconds). Also used as
+	 * shutdown timeout by closeServer().
+	 * 
+	 * @param closeTimeout
+	 */
+	public void setCloseTimeout(long closeTimeout) {
+		this.closeTimeout = closeTimeout;
+	}
+
+	/**
+	 * Retrieve number of clients closed with a complete close handshake
+	 * 
+	 * @return clean close count
+	 */
+	public long getCleanCloseCount() {
+		return cleanCloseCount.get();
+	}
+
+	/**
+	 * Retrieve number of clients closed without close handshake (connection
+	 * lost, protocol error, timeout)
+	 * 
+	 * @return abnormal close count
+	 */
+	public long getAbnormalCloseCount() {
+		return abnormalCloseCount.get();
+	}
+
+	/**
+	 * Retrieve number of clients closed forcibly by shutdown once its timeout
+	 * has expired
+	 * 
+	 * @return forced close count
+	 */
+	public long getForcedCloseCount() {
+		return forcedCloseCount.get();
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Set factory creating threads reading from clients and writing queued
+	 * frames with blocking engine (not used by non-blocking engine). Must be
+	 * set before server is started.
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		this.virtualThreads = false;
+	}
+
+	/**
+	 * Serve each client of blocking engine with virtual threads (JDK 21+) :
+	 * blocking programming model is kept without the cost of a platform
+	 * thread per client. Must be called before server is started.
+	 * 
+	 * @return false if JVM does not support virtual threads (platform threads
+	 *         are kept)
+	 */
+	public boolean useVirtualThreads() {
+		ThreadFactory factory = WebsocketThreadFactory
+				.newVirtualThreadFactory("websocket-client");
+		if (factory == null) {
+			return false;
+		}
+		this.threadFactory = factory;
+		this.virtualThreads = true;
+		return true;
+	}
+
+	/**
+	 * Determine if clients are served by virtual threads
+	 * 
+	 * @return true if virtual threads are used
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public boolean isNio() {
+		return nio;
+	}
+
+	/**
+	 * Use non-blocking selector based engine : clients are served by a fixed
+	 * number of event loop threads instead of one thread per client
+	 * 
+	 * @param nio
+	 */
+	public void setNio(boolean nio) {
+		this.nio = nio;
+	}
+
+	public IWebsocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set metrics notified of accepted connections, handshakes, decoded and
+	 * written frames and closed connections (null to disable, default).
+	 * Gauges of open connections and queued frames are registered. Must be
+	 * set before server is started.
+	 * 
+	 * @param metrics
+	 *            metrics (see WebsocketMetrics for default implementation)
+	 */
+	public void setMetrics(IWebsocketMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics == null) {
+			return;
+		}
+		metrics.registerGauge("websocket_open_connections",
+				"Websocket connections currently open", new LongSupplier() {
+
+					@Override
+					public long getAsLong() {
+						return connectionRegistry.size();
+					}
+				});
+		metrics.registerGauge("websocket_queued_frames",
+				"Frames waiting to be written to clients", new LongSupplier() {
+
+					@Override
+					public long getAsLong() {
+						return getQueuedFrameCount();
+					}
+				});
+		metrics.registerGauge("websocket_dispatch_queued_callbacks",
+				"Listener callbacks waiting for dispatch executor",
+				new LongSupplier() {
+
+					@Override
+					public long getAsLong() {
+						return dispatchQueueDepth.get();
+					}
+				});
+	}
+
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Set executor running listener callbacks instead of socket reading
+	 * threads (null to disable, default) : a slow listener then no longer
+	 * delays reading of its connection, nor of other connections served by
+	 * the same event loop with non-blocking engine. Callbacks of a connection
+	 * are run one at a time in order (connection, messages, then close),
+	 * callbacks of different connections run in parallel. Executor is not
+	 * shut down by server. Must be set before server is started.
+	 * 
+	 * @param dispatchExecutor
+	 *            executor shared by all connections (ex : a fixed thread
+	 *            pool)
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	public int getDispatchQueueCapacity() {
+		return dispatchQueueCapacity;
+	}
+
+	/**
+	 * Set maximum number of listener callbacks waiting for dispatch executor
+	 * for each client (default is 1024) : above it, client socket is no longer
+	 * read until half of its callbacks have been run, so that a client sending
+	 * faster than its listener can process is slowed down by TCP flow control
+	 * instead of filling memory. Applies to clients connecting afterwards.
+	 * 
+	 * @param dispatchQueueCapacity
+	 */
+	public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+		if (dispatchQueueCapacity > 0) {
+			this.dispatchQueueCapacity = dispatchQueueCapacity;
+		}
+	}
+
+	public Executor getSslTaskExecutor() {
+		return sslTaskExecutor;
+	}
+
+	/**
+	 * Set executor running TLS handshake tasks (key exchange, certificate
+	 * validation) of non-blocking engine, so that a handshake never blocks an
+	 * event loop (default is a pool of one thread per processor created by
+	 * server). Tasks rejected by executor are submitted again when a task
+	 * ends, they are never run by an event loop. Executor is not shut down by
+	 * server. Must be set before server is started.
+	 * 
+	 * @param sslTaskExecutor
+	 */
+	public void setSslTaskExecutor(Executor sslTaskExecutor) {
+		this.sslTaskExecutor = sslTaskExecutor;
+	}
+
+	/**
+	 * Get number of listener callbacks waiting for dispatch executor, for all
+	 * clients
+	 * 
+	 * @return callbacks queued and not started yet
+	 */
+	public long getDispatchQueueDepth() {
+		return dispatchQueueDepth.get();
+	}
+
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	/**
+	 * Set number of event loop threads used by non-blocking engine (default
+	 * is number of available processors)
+	 * 
+	 * @param eventLoopCount
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		if (eventLoopCount > 0) {
+			this.eventLoopCount = eventLoopCount;
+		}
+	}
+
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+
+	/**
+	 * Set number of sockets listening on server port, each one accepting
+	 * connections in its own thread (default is 1). Several sockets are bound
+	 * with SO_REUSEPORT so that system balances incoming connections between
+	 * them (JDK 9+ on Linux or BSD, a single socket is used otherwise). Must
+	 * be set before server is started.
+	 * 
+	 * @param acceptorCount
+	 *            number of listening sockets
+	 */
+	public void setAcceptorCount(int acceptorCount) {
+		if (acceptorCount > 0) {
+			this.acceptorCount = acceptorCount;
+		}
+	}
+
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	/**
+	 * Set maximum length of queue of connections waiting to be accepted by
+	 * each listening socket (default is 50, may be capped by system, e.g.
+	 * net.core.somaxconn on Linux). Must be set before server is started.
+	 * 
+	 * @param acceptBacklog
+	 *            pending connections queue length
+	 */
+	public void setAcceptBacklog(int acceptBacklog) {
+		if (acceptBacklog > 0) {
+			this.acceptBacklog = acceptBacklog;
+		}
+	}
 }
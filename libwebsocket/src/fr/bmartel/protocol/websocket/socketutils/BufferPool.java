@@ -0,0 +1,246 @@
+package fr.bmartel.protocol.websocket.socketutils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays used for frame payloads. Arrays are sorted in size
+ * classes (powers of 2 from MIN_BUFFER_SIZE to maximum buffer size). Each
+ * thread keeps a few released buffers of each class in a local cache before
+ * giving them back to a shared pool, so that a connection reading and
+ * releasing on the same thread does not contend with others. Larger buffers
+ * are not pooled.
+ *
+ * A pool may be shared by all connections of a server or client.
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class BufferPool {
+
+	/** size of smallest size class (2^MIN_SIZE_SHIFT) */
+	private final static int MIN_SIZE_SHIFT = 8;
+
+	/** size of smallest size class */
+	public final static int MIN_BUFFER_SIZE = 1 << MIN_SIZE_SHIFT;
+
+	/** default size of largest pooled buffer */
+	public final static int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+	/** default number of buffers kept per size class by each thread */
+	public final static int DEFAULT_THREAD_CACHE_SIZE = 4;
+
+	/** default number of buffers kept per size class in shared pool */
+	public final static int DEFAULT_SHARED_POOL_SIZE = 256;
+
+	/** size of largest pooled buffer (power of 2) */
+	private final int maxBufferSize;
+
+	/** number of buffers kept per size class by each thread */
+	private final int threadCacheSize;
+
+	/** buffers shared by all threads, one queue per size class */
+	private final ArrayBlockingQueue<PooledBuffer>[] sharedPool;
+
+	/** buffers cached by current thread */
+	private final ThreadLocal<ThreadCache> threadCache;
+
+	/** number of pooled buffers allocated */
+	private AtomicLong allocatedCount = new AtomicLong();
+
+	/** number of buffers allocated because they are too large to be pooled */
+	private AtomicLong unpooledCount = new AtomicLong();
+
+	/**
+	 * Build a pool with default sizes
+	 */
+	public BufferPool() {
+		this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_THREAD_CACHE_SIZE,
+				DEFAULT_SHARED_POOL_SIZE);
+	}
+
+	/**
+	 * Build a pool
+	 *
+	 * @param maxBufferSize
+	 *            size of largest pooled buffer (rounded up to a power of 2)
+	 * @param threadCacheSize
+	 *            number of buffers kept per size class by each thread (0 to
+	 *            disable thread caches, advised when connections are served
+	 *            by virtual threads)
+	 * @param sharedPoolSize
+	 *            number of buffers kept per size class in shared pool
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(int maxBufferSize, int threadCacheSize,
+			int sharedPoolSize) {
+		int classCount = sizeClass(Math.max(maxBufferSize, MIN_BUFFER_SIZE)) + 1;
+
+		this.maxBufferSize = MIN_BUFFER_SIZE << (classCount - 1);
+		this.threadCacheSize = threadCacheSize;
+		this.sharedPool = new ArrayBlockingQueue[classCount];
+		for (int i = 0; i < classCount; i++) {
+			sharedPool[i] = new ArrayBlockingQueue<PooledBuffer>(Math.max(
+					sharedPoolSize, 1));
+		}
+		this.threadCache = new ThreadLocal<ThreadCache>() {
+
+			@Override
+			protected ThreadCache initialValue() {
+				return new ThreadCache(sharedPool.length,
+						BufferPool.this.threadCacheSize);
+			}
+		};
+	}
+
+	/**
+	 * Retrieve size class of a buffer size
+	 *
+	 * @param size
+	 *            buffer size
+	 * @return index of smallest size class holding size bytes
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+
+	/**
+	 * Acquire a buffer of at least size bytes. Caller owns a single reference
+	 * on buffer and must release it.
+	 *
+	 * @param size
+	 *            number of bytes needed
+	 * @return buffer whose length is size
+	 */
+	public PooledBuffer acquire(int size) {
+		PooledBuffer buffer;
+
+		if (size > maxBufferSize) {
+			unpooledCount.incrementAndGet();
+			buffer = new PooledBuffer(null, -1, size);
+		} else {
+			int sizeClass = sizeClass(size);
+
+			buffer = null;
+			if (threadCacheSize > 0) {
+				buffer = threadCache.get().poll(sizeClass);
+			}
+			if (buffer == null) {
+				buffer = sharedPool[sizeClass].poll();
+			}
+			if (buffer == null) {
+				allocatedCount.incrementAndGet();
+				buffer = new PooledBuffer(this, sizeClass,
+						MIN_BUFFER_SIZE << sizeClass);
+			}
+		}
+		buffer.reset(size);
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer whose last reference has been released
+	 *
+	 * @param buffer
+	 *            released buffer
+	 */
+	void recycle(PooledBuffer buffer) {
+		if (threadCacheSize > 0
+				&& threadCache.get().offer(buffer.sizeClass, buffer)) {
+			return;
+		}
+		/* buffer is left to garbage collector if shared pool is full */
+		sharedPool[buffer.sizeClass].offer(buffer);
+	}
+
+	/**
+	 * Get size of largest pooled buffer
+	 *
+	 * @return buffer size in bytes
+	 */
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+
+	/**
+	 * Get number of pooled buffers allocated since pool creation : stops
+	 * increasing once pool has been warmed up
+	 *
+	 * @return number of buffers allocated
+	 */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	/**
+	 * Get number of buffers allocated without pooling because they were larger
+	 * than maximum buffer size
+	 *
+	 * @return number of buffers allocated
+	 */
+	public long getUnpooledCount() {
+		return unpooledCount.get();
+	}
+
+	/**
+	 * Buffers cached by a thread : a stack per size class
+	 */
+	private static class ThreadCache {
+
+		/** cached buffers per size class */
+		private final PooledBuffer[][] buffers;
+
+		/** number of cached buffers per size class */
+		private final int[] counts;
+
+		/**
+		 * Build thread cache
+		 *
+		 * @param classCount
+		 *            number of size classes
+		 * @param size
+		 *            number of buffers kept per size class
+		 */
+		ThreadCache(int classCount, int size) {
+			buffers = new PooledBuffer[classCount][size];
+			counts = new int[classCount];
+		}
+
+		/**
+		 * Take a cached buffer
+		 *
+		 * @param sizeClass
+		 *            size class
+		 * @return buffer or null if none is cached
+		 */
+		PooledBuffer poll(int sizeClass) {
+			if (counts[sizeClass] == 0) {
+				return null;
+			}
+			int index = --counts[sizeClass];
+			PooledBuffer buffer = buffers[sizeClass][index];
+			buffers[sizeClass][index] = null;
+			return buffer;
+		}
+
+		/**
+		 * Cache a buffer
+		 *
+		 * @param sizeClass
+		 *            size class
+		 * @param buffer
+		 *            released buffer
+		 * @return false if cache of this size class is full
+		 */
+		boolean offer(int sizeClass, PooledBuffer buffer) {
+			if (counts[sizeClass] == buffers[sizeClass].length) {
+				return false;
+			}
+			buffers[sizeClass][counts[sizeClass]++] = buffer;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package fr.bmartel.protocol.websocket.socketutils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Byte array borrowed from a buffer pool. Buffer is reference counted : it
+ * goes back to its pool when last reference is released and must not be used
+ * afterwards.
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class PooledBuffer {
+
+	/** pool this buffer goes back to (null if buffer is not pooled) */
+	private final BufferPool pool;
+
+	/** size class of buffer in pool */
+	final int sizeClass;
+
+	/** backing array (may be larger than requested length) */
+	private final byte[] array;
+
+	/** reusable view over backing array */
+	private final ByteBuffer byteBuffer;
+
+	/** number of bytes requested when buffer was acquired */
+	private int length = 0;
+
+	/** number of references held on buffer */
+	private final AtomicInteger refCount = new AtomicInteger();
+
+	/**
+	 * Build a buffer
+	 *
+	 * @param pool
+	 *            pool this buffer goes back to (null if buffer is not pooled)
+	 * @param sizeClass
+	 *            size class of buffer in pool
+	 * @param capacity
+	 *            size of backing array
+	 */
+	PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.array = new byte[capacity];
+		this.byteBuffer = ByteBuffer.wrap(array);
+	}
+
+	/**
+	 * Prepare buffer for a new owner
+	 *
+	 * @param length
+	 *            number of bytes requested
+	 */
+	void reset(int length) {
+		this.length = length;
+		refCount.set(1);
+	}
+
+	/**
+	 * Retrieve backing array : only first length() bytes belong to buffer
+	 *
+	 * @return backing array
+	 */
+	public byte[] array() {
+		return array;
+	}
+
+	/**
+	 * Retrieve number of bytes requested when buffer was acquired
+	 *
+	 * @return buffer length
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Set number of bytes used in buffer
+	 *
+	 * @param length
+	 *            buffer length (at most capacity())
+	 */
+	public void setLength(int length) {
+		if (length > array.length) {
+			throw new IllegalArgumentException("length exceeds capacity");
+		}
+		this.length = length;
+	}
+
+	/**
+	 * Retrieve size of backing array
+	 *
+	 * @return buffer capacity
+	 */
+	public int capacity() {
+		return array.length;
+	}
+
+	/**
+	 * Retrieve a view over first length() bytes of buffer. The same view is
+	 * returned on each call (position and limit are reset)
+	 *
+	 * @return byte buffer wrapping backing array
+	 */
+	public ByteBuffer buffer() {
+		byteBuffer.clear();
+		byteBuffer.limit(length);
+		return byteBuffer;
+	}
+
+	/**
+	 * Take an additional reference on buffer : each reference must be
+	 * released
+	 *
+	 * @return this buffer
+	 */
+	public PooledBuffer retain() {
+		if (refCount.getAndIncrement() <= 0) {
+			refCount.decrementAndGet();
+			throw new IllegalStateException("buffer already released");
+		}
+		return this;
+	}
+
+	/**
+	 * Release a reference on buffer : buffer goes back to its pool when last
+	 * reference is released
+	 *
+	 * @return true if buffer has been given back to its pool
+	 */
+	public boolean release() {
+		int count = refCount.decrementAndGet();
+		if (count < 0) {
+			refCount.incrementAndGet();
+			throw new IllegalStateException("buffer already released");
+		}
+		if (count > 0) {
+			return false;
+		}
+		if (pool != null) {
+			pool.recycle(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieve number of references held on buffer
+	 *
+	 * @return reference count (0 once released)
+	 */
+	public int refCount() {
+		return refCount.get();
+	}
+}
@@ -0,0 +1,212 @@
+package fr.bmartel.protocol.websocket.socketutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * <b>SSL contexts shared by servers and clients using the same ssl
+ * parameters</b>
+ *
+ * Loading keystores and initializing key and trust managers is done once for
+ * a set of parameters instead of on each connection. Sharing the context also
+ * shares its session cache : a client reconnecting to the same server resumes
+ * its previous TLS session (abbreviated handshake) instead of negotiating a
+ * new one. A context is built again if keystore or trustore file has been
+ * modified.
+ *
+ * @author Bertrand Martel
+ */
+public class SSLContextCache {
+
+	/** contexts by ssl parameters */
+	private final static ConcurrentHashMap<List<String>, Entry> contexts = new ConcurrentHashMap<List<String>, Entry>();
+
+	/**
+	 * SSL context with modification date of files it has been built from
+	 */
+	private static class Entry {
+
+		private final SSLContext context;
+
+		private final long keystoreModified;
+
+		private final long trustoreModified;
+
+		private Entry(SSLContext context, long keystoreModified,
+				long trustoreModified) {
+			this.context = context;
+			this.keystoreModified = keystoreModified;
+			this.trustoreModified = trustoreModified;
+		}
+	}
+
+	/**
+	 * Retrieve SSL context initialized with key managers of keystore and trust
+	 * managers of trustore : context is built only if it has not been built
+	 * yet for these parameters or if a file has been modified since
+	 *
+	 * @param keystoreDefaultType
+	 *            keystore certificates type
+	 * @param trustoreDefaultType
+	 *            trustore certificates type
+	 * @param keystoreFile
+	 *            keystore file path
+	 * @param trustoreFile
+	 *            trustore file path
+	 * @param sslProtocol
+	 *            ssl protocol used
+	 * @param keystorePassword
+	 *            keystore password
+	 * @param trustorePassword
+	 *            trustore password
+	 * @return shared SSL context
+	 * @throws GeneralSecurityException
+	 *             keystore or protocol is not supported or password is wrong
+	 * @throws IOException
+	 *             keystore could not be read
+	 */
+	public static SSLContext getContext(String keystoreDefaultType,
+			String trustoreDefaultType, String keystoreFile,
+			String trustoreFile, String sslProtocol, String keystorePassword,
+			String trustorePassword) throws GeneralSecurityException,
+			IOException {
+
+		List<String> key = Arrays.asList(keystoreDefaultType,
+				trustoreDefaultType, keystoreFile, trustoreFile, sslProtocol,
+				keystorePassword, trustorePassword);
+
+		long keystoreModified = new File(keystoreFile).lastModified();
+		long trustoreModified = new File(trustoreFile).lastModified();
+
+		Entry entry = contexts.get(key);
+
+		if (entry != null && entry.keystoreModified == keystoreModified
+				&& entry.trustoreModified == trustoreModified) {
+			return entry.context;
+		}
+
+		/* clients reconnecting together must not all load keystores */
+		synchronized (contexts) {
+			entry = contexts.get(key);
+
+			if (entry != null && entry.keystoreModified == keystoreModified
+					&& entry.trustoreModified == trustoreModified) {
+				return entry.context;
+			}
+
+			SSLContext context = buildContext(keystoreDefaultType,
+					trustoreDefaultType, keystoreFile, trustoreFile,
+					sslProtocol, keystorePassword, trustorePassword);
+
+			contexts.put(key, new Entry(context, keystoreModified,
+					trustoreModified));
+
+			return context;
+		}
+	}
+
+	/**
+	 * Build a new SSL context from keystore and trustore files
+	 *
+	 * @see #getContext(String, String, String, String, String, String, String)
+	 */
+	public static SSLContext buildContext(String keystoreDefaultType,
+			String trustoreDefaultType, String keystoreFile,
+			String trustoreFile, String sslProtocol, String keystorePassword,
+			String trustorePassword) throws GeneralSecurityException,
+			IOException {
+
+		/* initial keystore instance */
+		KeyStore ks = KeyStore.getInstance(keystoreDefaultType);
+
+		/* load keystore from file */
+		InputStream in = new FileInputStream(keystoreFile);
+		try {
+			ks.load(in, keystorePassword.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		/*
+		 * assign a new keystore containing all certificated to be trusted
+		 */
+		KeyStore tks = KeyStore.getInstance(trustoreDefaultType);
+
+		/* load this keystore from file */
+		in = new FileInputStream(trustoreFile);
+		try {
+			tks.load(in, trustorePassword.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		/* initialize key manager factory with chosen algorithm */
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+
+		/* initialize trust manager factory with chosen algorithm */
+		TrustManagerFactory tmf = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+
+		/* initialize key manager factory with initial keystore */
+		kmf.init(ks, keystorePassword.toCharArray());
+
+		/*
+		 * initialize trust manager factory with keystore containing
+		 * certificates to be trusted
+		 */
+		tmf.init(tks);
+
+		/* get SSL context chosen algorithm */
+		SSLContext ctx = SSLContext.getInstance(sslProtocol);
+
+		/* initialize SSL context with key manager and trust managers */
+		ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+		return ctx;
+	}
+
+	/**
+	 * Remove all shared contexts : next connections load keystores again
+	 */
+	public static void clear() {
+		contexts.clear();
+	}
+
+	/**
+	 * Run TLS handshake of a socket
+	 *
+	 * A resumed session has been created by a previous handshake : session id
+	 * can not be compared since TLS 1.3 gives a new id to a resumed session,
+	 * but creation time is kept.
+	 *
+	 * @param socket
+	 *            ssl socket
+	 * @return true if a previous session has been resumed, false if a full
+	 *         handshake has been done
+	 * @throws IOException
+	 *             handshake has failed
+	 */
+	public static boolean startHandshake(SSLSocket socket) throws IOException {
+		long start = System.currentTimeMillis();
+
+		socket.startHandshake();
+
+		SSLSession session = socket.getSession();
+
+		return session.isValid() && session.getCreationTime() < start;
+	}
+}
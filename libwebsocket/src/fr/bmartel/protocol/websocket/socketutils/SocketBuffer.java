@@ -1,17 +1,56 @@
 package fr.bmartel.protocol.websocket.socketutils;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
 /**
- * Socket bufferized functions
+ * Socket bufferized functions : a socket buffer may be shared by all sockets
+ * of a server or client to configure writing and count bytes written
  * 
  * @author Bertrand Martel
  * 
  */
 public class SocketBuffer {
 
+	/** maximum size of data written in a single write call */
+	private volatile int blockSize = DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
+
+	/** socket send buffer size (-1 for system default) */
+	private volatile int sendBufferSize = -1;
+
+	/** socket receive buffer size (-1 for system default) */
+	private volatile int receiveBufferSize = -1;
+
+	/** define if Nagle algorithm is disabled on sockets (TCP_NODELAY) */
+	private volatile boolean tcpNoDelay = true;
+
+	/** default size of buffer coalescing frames written together */
+	public final static int DEFAULT_COALESCE_SIZE = 16384;
+
+	/** size of buffer coalescing frames written together (0 if disabled) */
+	private volatile int coalesceSize = DEFAULT_COALESCE_SIZE;
+
+	/** time in microseconds a writer waits for more frames before writing */
+	private volatile long flushDelay = 0;
+
+	/** number of bytes written to sockets */
+	private final LongAdder bytesWritten = new LongAdder();
+
+	/** number of write calls issued to sockets */
+	private final LongAdder writeCount = new LongAdder();
+
 	/**
 	 * Separate body content of http request into blocks of BLOCK_SIZE to match
 	 * buffer size of JVM
@@ -64,41 +103,427 @@ public class SocketBuffer {
 	 * @throws IOException
 	 */
 	public void separateBlock(byte[] arg, OutputStream out) throws IOException {
-		int numberOfBlockToWrite = arg.length
-				% DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
-		// 4096 = 2.6
-		int numberOfBlock = 0;
-		if (numberOfBlockToWrite == 0) {
-			numberOfBlock = arg.length / DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
-		} else {
-			numberOfBlock = (arg.length / DataBufferConst.DATA_BLOCK_SIZE_LIMIT) + 1;
+		write(arg, 0, arg.length, out);
+		flush(out);
+	}
+
+	/**
+	 * Write data to outputstream holding a lock shared by all writers of this
+	 * outputstream (see separateBlock(byte[], OutputStream))
+	 * 
+	 * @param arg
+	 *            data to send to the socket
+	 * @param out
+	 *            outputstream to write to the socket
+	 * @param lock
+	 *            write lock of outputstream
+	 * @throws IOException
+	 */
+	public void separateBlock(byte[] arg, OutputStream out, Lock lock)
+			throws IOException {
+		lock.lock();
+		try {
+			separateBlock(arg, out);
+		} finally {
+			lock.unlock();
 		}
-		int blockInit = 0;
-		int blockEnd = 0;
-		if (numberOfBlock == 1) {
-			blockEnd = arg.length;
+	}
+
+	/**
+	 * Write a slice of an array to outputstream in blocks of block size.
+	 * Blocks are written directly from array without being copied. Caller
+	 * must hold outputstream lock if several slices belong to the same frame.
+	 * 
+	 * @param arg
+	 *            array containing data to send to the socket
+	 * @param offset
+	 *            offset of data in array
+	 * @param length
+	 *            length of data
+	 * @param out
+	 *            outputstream to write to the socket
+	 * @throws IOException
+	 */
+	public void write(byte[] arg, int offset, int length, OutputStream out)
+			throws IOException {
+		if (out instanceof CoalescingOutputStream) {
+			/* socket writes are counted once coalesced data is written */
+			out.write(arg, offset, length);
+			return;
+		}
+		int end = offset + length;
+
+		while (offset < end) {
+			int size = end - offset;
+			if (blockSize > 0 && size > blockSize) {
+				size = blockSize;
+			}
+			out.write(arg, offset, size);
+			offset += size;
+
+			writeCount.increment();
+			bytesWritten.add(size);
+		}
+	}
+
+	/**
+	 * Write remaining bytes of a buffer to outputstream in blocks of block
+	 * size. Buffer position is moved to its limit.
+	 * 
+	 * @param buffer
+	 *            buffer containing data to send to the socket
+	 * @param out
+	 *            outputstream to write to the socket
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer buffer, OutputStream out) throws IOException {
+		if (buffer.hasArray()) {
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining(), out);
+			buffer.position(buffer.limit());
 		} else {
-			blockEnd = DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
+			byte[] block = new byte[Math.min(buffer.remaining(),
+					blockSize > 0 ? blockSize
+							: DataBufferConst.DATA_BLOCK_SIZE_LIMIT)];
+			while (buffer.hasRemaining()) {
+				int size = Math.min(block.length, buffer.remaining());
+				buffer.get(block, 0, size);
+				write(block, 0, size, out);
+			}
 		}
-		for (int i = 0; i < numberOfBlock; i++) {
-			byte[] arrayToWrite = new byte[blockEnd - blockInit];
-			for (int j = blockInit; j < blockEnd; j++) {
-				arrayToWrite[j - blockInit] = arg[j];
+	}
+
+	/**
+	 * Flush outputstream
+	 * 
+	 * @param out
+	 *            outputstream to flush
+	 * @throws IOException
+	 */
+	public void flush(OutputStream out) throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Write buffers to a channel with a single gathering write
+	 * 
+	 * @param channel
+	 *            channel to write to
+	 * @param buffers
+	 *            buffers to be written
+	 * @param offset
+	 *            index of first buffer to write
+	 * @param length
+	 *            number of buffers to write
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long write(GatheringByteChannel channel, ByteBuffer[] buffers,
+			int offset, int length) throws IOException {
+		long count = channel.write(buffers, offset, length);
+
+		writeCount.increment();
+		bytesWritten.add(count);
+		return count;
+	}
+
+	/**
+	 * Apply socket options to a newly connected socket
+	 * 
+	 * @param socket
+	 *            socket to configure
+	 * @throws SocketException
+	 */
+	public void configureSocket(Socket socket) throws SocketException {
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		socket.setTcpNoDelay(tcpNoDelay);
+	}
+
+	/**
+	 * Apply socket options to a server socket before it is bound : receive
+	 * buffer size of accepted sockets is inherited from server socket, so
+	 * that a window larger than 64KB can be advertised from connection
+	 * establishment
+	 * 
+	 * @param serverSocket
+	 *            server socket to configure
+	 * @throws SocketException
+	 */
+	public void configureServerSocket(ServerSocket serverSocket)
+			throws SocketException {
+		if (receiveBufferSize > 0) {
+			serverSocket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	/**
+	 * Enable SO_REUSEPORT on a server socket before it is bound, so that
+	 * several sockets may listen on the same port and share incoming
+	 * connections (option is retrieved by reflection : JDK 9+ on Linux or
+	 * BSD)
+	 * 
+	 * @param serverSocket
+	 *            unbound server socket
+	 * @return true if option has been set, false if JVM or system does not
+	 *         support it
+	 */
+	public static boolean setReusePort(ServerSocket serverSocket) {
+		try {
+			ServerSocket.class.getMethod("setOption", SocketOption.class,
+					Object.class).invoke(serverSocket, reusePortOption(), true);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Enable SO_REUSEPORT on a server socket channel before it is bound (see
+	 * setReusePort(ServerSocket))
+	 * 
+	 * @param channel
+	 *            unbound server socket channel
+	 * @return true if option has been set, false if JVM or system does not
+	 *         support it
+	 */
+	public static boolean setReusePort(NetworkChannel channel) {
+		try {
+			SocketOption<Boolean> option = reusePortOption();
+			if (!channel.supportedOptions().contains(option)) {
+				return false;
 			}
-			synchronized (out) {
-				out.write(arrayToWrite);
+			channel.setOption(option, true);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Retrieve SO_REUSEPORT socket option (added in JDK 9)
+	 * 
+	 * @return socket option
+	 * @throws ReflectiveOperationException
+	 *             if JVM does not define this option
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption()
+			throws ReflectiveOperationException {
+		return (SocketOption<Boolean>) StandardSocketOptions.class.getField(
+				"SO_REUSEPORT").get(null);
+	}
+
+	/**
+	 * Wrap socket outputstream so that small writes are coalesced and sent
+	 * with a single write call on flush (outputstream is returned as is if
+	 * coalescing is disabled). Writes larger than coalescing buffer are not
+	 * copied.
+	 * 
+	 * @param out
+	 *            socket outputstream
+	 * @return outputstream to be flushed once a batch of frames is written
+	 */
+	public OutputStream coalesce(OutputStream out) {
+		if (coalesceSize <= 0) {
+			return out;
+		}
+		return new CoalescingOutputStream(out, coalesceSize);
+	}
+
+	/**
+	 * Outputstream copying small writes into a buffer written to socket when
+	 * full or flushed. Socket writes are counted by socket buffer.
+	 */
+	private class CoalescingOutputStream extends FilterOutputStream {
+
+		/** data waiting to be written to socket */
+		private final byte[] buffer;
+
+		/** number of bytes in buffer */
+		private int count = 0;
+
+		private CoalescingOutputStream(OutputStream out, int size) {
+			super(out);
+			buffer = new byte[size];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flushBuffer();
 			}
+			buffer[count++] = (byte) b;
+		}
 
-			if (i == (numberOfBlock - 2) && numberOfBlockToWrite != 0) {
-				blockInit = blockInit + DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
-				blockEnd = blockEnd + numberOfBlockToWrite;
-			} else {
-				blockInit = blockInit + DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
-				blockEnd = blockEnd + DataBufferConst.DATA_BLOCK_SIZE_LIMIT;
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len >= buffer.length) {
+				/* large data is written directly, after data already buffered */
+				flushBuffer();
+				SocketBuffer.this.write(b, off, len, out);
+				return;
+			}
+			if (len > buffer.length - count) {
+				flushBuffer();
 			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
 		}
-		synchronized (out) {
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
 			out.flush();
 		}
+
+		@Override
+		public void close() throws IOException {
+			/* writers flush their frames : data left is from an aborted batch */
+			count = 0;
+			out.close();
+		}
+
+		/**
+		 * Write buffered data to socket
+		 * 
+		 * @throws IOException
+		 */
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				SocketBuffer.this.write(buffer, 0, count, out);
+				count = 0;
+			}
+		}
+	}
+
+	/**
+	 * Get maximum size of data written to socket in a single write call
+	 * 
+	 * @return block size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Set maximum size of data written to socket in a single write call (0 to
+	 * write each array in a single call)
+	 * 
+	 * @param blockSize
+	 *            block size in bytes
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Get socket send buffer size (SO_SNDBUF) applied to sockets
+	 * 
+	 * @return send buffer size in bytes or -1 if system default is used
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Set socket send buffer size (SO_SNDBUF) applied to sockets
+	 * 
+	 * @param sendBufferSize
+	 *            send buffer size in bytes or -1 to use system default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Get socket receive buffer size (SO_RCVBUF) applied to sockets
+	 * 
+	 * @return receive buffer size in bytes or -1 if system default is used
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Set socket receive buffer size (SO_RCVBUF) applied to sockets and to
+	 * server socket before it is bound
+	 * 
+	 * @param receiveBufferSize
+	 *            receive buffer size in bytes or -1 to use system default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Disable Nagle algorithm on sockets (TCP_NODELAY, default is true) :
+	 * frames are coalesced by socket writers, so Nagle algorithm only delays
+	 * small messages waiting for acknowledgement of previous ones
+	 * 
+	 * @param tcpNoDelay
+	 *            true to send data as soon as it is written
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public int getCoalesceSize() {
+		return coalesceSize;
+	}
+
+	/**
+	 * Set size of buffer coalescing frames queued for a client so that they
+	 * are written with a single write call (default is 16KB, 0 to write each
+	 * buffer directly). Applies to sockets connected afterwards.
+	 * 
+	 * @param coalesceSize
+	 *            coalescing buffer size in bytes
+	 */
+	public void setCoalesceSize(int coalesceSize) {
+		this.coalesceSize = coalesceSize;
+	}
+
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+
+	/**
+	 * Set time a socket writer waits for more frames to be queued before
+	 * writing (default is 0 : frames already queued are written at once).
+	 * Trades latency for fewer write calls when many small messages are sent
+	 * to the same client.
+	 * 
+	 * @param flushDelay
+	 *            delay in microseconds
+	 */
+	public void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+
+	/**
+	 * Get number of bytes written to sockets
+	 * 
+	 * @return number of bytes
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * Get number of write calls issued to sockets
+	 * 
+	 * @return number of write calls
+	 */
+	public long getWriteCount() {
+		return writeCount.sum();
 	}
 }
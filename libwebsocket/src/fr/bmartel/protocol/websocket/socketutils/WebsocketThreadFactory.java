@@ -0,0 +1,90 @@
+package fr.bmartel.protocol.websocket.socketutils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating named platform threads. Virtual threads factory and
+ * executor (JDK 21+) are retrieved by reflection so that library still runs
+ * on older JVM.
+ *
+ * @author Bertrand Martel
+ *
+ */
+public class WebsocketThreadFactory implements ThreadFactory {
+
+	/** prefix of thread names */
+	private final String prefix;
+
+	/** define if threads created are daemon threads */
+	private final boolean daemon;
+
+	/** number of threads created */
+	private final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * Build thread factory
+	 *
+	 * @param prefix
+	 *            prefix of thread names (followed by thread number)
+	 * @param daemon
+	 *            define if threads created are daemon threads
+	 */
+	public WebsocketThreadFactory(String prefix, boolean daemon) {
+		this.prefix = prefix;
+		this.daemon = daemon;
+	}
+
+	@Override
+	public Thread newThread(Runnable task) {
+		Thread thread = new Thread(task, prefix + "-"
+				+ threadCount.getAndIncrement());
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+	/**
+	 * Build a factory creating virtual threads
+	 *
+	 * @param prefix
+	 *            prefix of thread names (followed by thread number)
+	 * @return virtual threads factory or null if JVM does not support virtual
+	 *         threads
+	 */
+	public static ThreadFactory newVirtualThreadFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, prefix + "-", 0L);
+
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(
+					builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Build an executor running each task in a new thread : used with virtual
+	 * threads which must not be pooled. Falls back to a cached thread pool if
+	 * JVM does not provide such executor.
+	 *
+	 * @param factory
+	 *            factory creating threads
+	 * @return executor service
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(
+			ThreadFactory factory) {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+					null, factory);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(factory);
+		}
+	}
+}
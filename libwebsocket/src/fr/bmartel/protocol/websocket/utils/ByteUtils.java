@@ -90,4 +90,75 @@ public class ByteUtils {
 		result[1] = (byte) (i >> 0);
 		return result;
 	}
+
+	/**
+	 * Compute size of a string encoded in UTF-8 (an unpaired surrogate is
+	 * encoded as '?' like String.getBytes() does)
+	 * 
+	 * @param text
+	 *            string to encode
+	 * @return number of bytes
+	 */
+	public static int utf8Length(String text) {
+		int length = text.length();
+		int size = length;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				size += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				/* 4 bytes for 2 chars */
+				size += 2;
+				i++;
+			} else if (!Character.isSurrogate(c)) {
+				size += 2;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Encode a string in UTF-8 into an existing array without intermediate
+	 * allocation
+	 * 
+	 * @param text
+	 *            string to encode
+	 * @param dest
+	 *            array receiving encoded bytes (at least utf8Length(text)
+	 *            bytes from offset)
+	 * @param offset
+	 *            offset of first encoded byte in array
+	 * @return number of bytes written
+	 */
+	public static int encodeUtf8(String text, byte[] dest, int offset) {
+		int length = text.length();
+		int pos = offset;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dest[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				dest[pos++] = (byte) (0xC0 | (c >> 6));
+				dest[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				dest[pos++] = (byte) (0xF0 | (codePoint >> 18));
+				dest[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				dest[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				dest[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				dest[pos++] = '?';
+			} else {
+				dest[pos++] = (byte) (0xE0 | (c >> 12));
+				dest[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dest[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos - offset;
+	}
 }
@@ -23,6 +23,7 @@
  */
 package fr.bmartel.websocket;
 
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 import fr.bmartel.protocol.websocket.client.IWebsocketClientChannel;
@@ -106,6 +107,14 @@ public class LaunchClient {
 								.println("[CLIENT] Received message from server : "
 										+ new String(data));
 					}
+
+					@Override
+					public void onIncomingBinaryMessageReceived(
+							ByteBuffer data, IWebsocketClientChannel channel) {
+						System.out
+								.println("[CLIENT] Received binary message from server : "
+										+ data.remaining() + " bytes");
+					}
 				});
 
 		clientSocket.connect();
@@ -193,6 +202,13 @@ public class LaunchClient {
 				}
 			}
 
+			@Override
+			public void onBinaryMessageReceivedFromClient(
+					IWebsocketClient client, ByteBuffer message) {
+				// echo binary messages back to client
+				client.sendBinary(message);
+			}
+
 			@Override
 			public void onClientConnection(IWebsocketClient client) {
 				// when a websocket client connect. This will be called (you can
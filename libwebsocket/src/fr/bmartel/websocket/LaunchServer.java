@@ -23,6 +23,8 @@
  */
 package fr.bmartel.websocket;
 
+import java.nio.ByteBuffer;
+
 import fr.bmartel.protocol.http.utils.StringUtils;
 import fr.bmartel.protocol.websocket.listeners.IClientEventListener;
 import fr.bmartel.protocol.websocket.server.IWebsocketClient;
@@ -79,6 +81,15 @@ public class LaunchServer {
 				System.out.println("message received : " + message);
 			}
 
+			@Override
+			public void onBinaryMessageReceivedFromClient(
+					IWebsocketClient client, ByteBuffer message) {
+				// all your binary message received from websocket client will
+				// be here
+				System.out.println("binary message received : "
+						+ message.remaining() + " bytes");
+			}
+
 			@Override
 			public void onClientConnection(IWebsocketClient client) {
 				// when a websocket client connect. This will be called (you can